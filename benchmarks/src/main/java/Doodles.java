@@ -0,0 +1,35 @@
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.RenderingHints;
+import java.awt.geom.Line2D;
+import java.util.Random;
+
+/**
+ * Makes repeatable test images for the workloads.
+ */
+final class Doodles {
+    private Doodles() {
+    }
+
+    /**
+     * Draws random antialiased strokes, roughly like a busy doodle.
+     */
+    static TiledImage random(int width, int height) {
+        TiledImage image = new TiledImage(width, height);
+        TiledGraphics g = image.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+                RenderingHints.VALUE_ANTIALIAS_ON);
+        Random random = new Random(42);
+        int strokes = Math.max(1, (int) ((long) width * height / 50000));
+        for (int i = 0; i < strokes; ++i) {
+            g.setColor(new Color(random.nextInt(0xFFFFFF)));
+            g.setStroke(new BasicStroke(2 + random.nextInt(30),
+                    BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
+            g.draw(new Line2D.Float(random.nextInt(width), random
+                    .nextInt(height), random.nextInt(width), random
+                    .nextInt(height)));
+        }
+        g.dispose();
+        return image;
+    }
+}
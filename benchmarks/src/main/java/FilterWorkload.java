@@ -0,0 +1,34 @@
+import java.util.concurrent.ForkJoinPool;
+
+import doodler.bench.Workload;
+
+/**
+ * Filters a doodle. Parameters: side length of the canvas, the
+ * {@link Filter} with its default amount, and how many threads the
+ * fork-join pool has.
+ */
+public class FilterWorkload implements Workload {
+    private TiledImage image;
+    private Filter filter;
+    private ForkJoinPool pool;
+    private FilterEngine engine;
+
+    @Override
+    public void setUp(String... params) {
+        int size = Integer.parseInt(params[0]);
+        image = Doodles.random(size, size);
+        filter = Filter.valueOf(params[1]);
+        pool = new ForkJoinPool(Integer.parseInt(params[2]));
+        engine = new FilterEngine(pool);
+    }
+
+    @Override
+    public Object run() throws Exception {
+        return engine.filter(image, filter, filter.getDefaultAmount(), null);
+    }
+
+    @Override
+    public void tearDown() {
+        pool.shutdown();
+    }
+}
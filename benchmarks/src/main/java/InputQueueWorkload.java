@@ -0,0 +1,53 @@
+import java.awt.Color;
+import java.awt.Rectangle;
+
+import doodler.bench.Workload;
+
+/**
+ * Queues a pen stroke for a drawing thread and waits until it has been
+ * drawn. Parameters: number of dragged points in the stroke.
+ */
+public class InputQueueWorkload implements Workload {
+    private static final int CANVAS_SIZE = 1024;
+
+    private int points;
+    private DrawingThread worker;
+    private long submitted = 0;
+    private volatile int changes = 0;
+
+    @Override
+    public void setUp(String... params) {
+        points = Integer.parseInt(params[0]);
+        StrokeRenderer renderer = new StrokeRenderer(Tool.PEN, Color.BLACK,
+                Shape.CIRCLE, 10);
+        renderer.setTarget(new TiledImage(CANVAS_SIZE, CANVAS_SIZE), null);
+        worker = new DrawingThread(renderer, new Object(),
+                new DrawingThread.Listener() {
+                    @Override
+                    public void imageChanged(Rectangle bounds) {
+                        ++changes;
+                    }
+                });
+        worker.start();
+    }
+
+    @Override
+    public Object run() {
+        worker.addPressedPoint(0, 0);
+        for (int i = 1; i <= points; ++i) {
+            worker.addDraggedPoint(i % CANVAS_SIZE, i * 7 % CANVAS_SIZE);
+        }
+        worker.addReleasedPoint(0, 0);
+        submitted += points + 2;
+        while (worker.getProcessed() < submitted) {
+            Thread.yield();
+        }
+        return changes;
+    }
+
+    @Override
+    public void tearDown() throws InterruptedException {
+        worker.interrupt();
+        worker.join();
+    }
+}
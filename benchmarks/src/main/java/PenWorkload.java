@@ -0,0 +1,49 @@
+import java.awt.Color;
+
+import doodler.bench.Workload;
+
+/**
+ * Draws a zigzag pen stroke of {@value #SEGMENTS} segments, flushing after
+ * each as the drawing thread does when input arrives slowly. Parameters: tool
+ * size, and "direct" to draw into the image as the stroke goes, "preview"
+ * to preview it and draw it into the image on release, or "dabs" to draw it
+ * with the dab engine.
+ */
+public class PenWorkload implements Workload {
+    static final int SEGMENTS = 64;
+    private static final int CANVAS_SIZE = 1024;
+    private static final int STEP = 12;
+
+    private StrokeRenderer renderer;
+
+    @Override
+    public void setUp(String... params) {
+        int toolSize = Integer.parseInt(params[0]);
+        renderer = new StrokeRenderer(Tool.PEN, Color.BLACK, Shape.CIRCLE,
+                toolSize);
+        renderer.setPreviewStrokes(params[1].equals("preview"));
+        if (params[1].equals("dabs")) {
+            renderer.setPenEngine(StrokeRenderer.PenEngine.DABS);
+        }
+        renderer.setTarget(new TiledImage(CANVAS_SIZE, CANVAS_SIZE), null);
+    }
+
+    @Override
+    public Object run() {
+        int x = CANVAS_SIZE / 4;
+        int y = CANVAS_SIZE / 2;
+        renderer.press(x, y);
+        for (int i = 0; i < SEGMENTS; ++i) {
+            x += STEP;
+            y += (i & 1) == 0 ? STEP * 4 : -STEP * 4;
+            renderer.drag(x, y);
+            renderer.flush();
+        }
+        renderer.release(x, y);
+        return renderer.flush();
+    }
+
+    @Override
+    public void tearDown() {
+    }
+}
@@ -0,0 +1,52 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+
+import doodler.bench.Workload;
+
+/**
+ * Opens a PNG doodle from disk the way the File menu does, streaming it
+ * into tiles when it is large. Parameters: side length of the canvas.
+ */
+public class PngLoadWorkload implements Workload {
+    private static final ImageLoader.Listener IGNORE = new ImageLoader.Listener() {
+        @Override
+        public void rowsLoaded(int y, int height) {
+        }
+    };
+
+    private File file;
+
+    @Override
+    public void setUp(String... params) throws Exception {
+        int size = Integer.parseInt(params[0]);
+        file = File.createTempFile("doodle", ".png");
+        OutputStream out = new FileOutputStream(file);
+        try {
+            new PngWriter().write(Doodles.random(size, size), out, null);
+        } finally {
+            out.close();
+        }
+    }
+
+    @Override
+    public Object run() throws Exception {
+        ImageLoader loader = new ImageLoader(file);
+        try {
+            if (!loader.isLarge()) {
+                return TiledImage.fromImage(loader.read());
+            }
+            TiledImage image = new TiledImage(loader.getWidth(),
+                    loader.getHeight());
+            loader.readInto(image, IGNORE);
+            return image;
+        } finally {
+            loader.close();
+        }
+    }
+
+    @Override
+    public void tearDown() {
+        file.delete();
+    }
+}
@@ -0,0 +1,42 @@
+import java.io.ByteArrayOutputStream;
+
+import javax.imageio.ImageIO;
+
+import doodler.bench.Workload;
+
+/**
+ * Encodes a doodle as PNG into memory. Parameters: side length of the
+ * canvas, and a {@link PngWriter.Speed} or "IMAGEIO" for ImageIO's writer.
+ */
+public class PngSaveWorkload implements Workload {
+    private TiledImage image;
+    private PngWriter writer;
+    private ByteArrayOutputStream out;
+
+    @Override
+    public void setUp(String... params) {
+        int size = Integer.parseInt(params[0]);
+        image = Doodles.random(size, size);
+        if (!params[1].equals("IMAGEIO")) {
+            writer = new PngWriter();
+            writer.setSpeed(PngWriter.Speed.valueOf(params[1]));
+        }
+        out = new ByteArrayOutputStream(size * size);
+    }
+
+    @Override
+    public Object run() throws Exception {
+        out.reset();
+        if (writer != null) {
+            writer.write(image, out, null);
+        } else {
+            // ImageIO needs the image flattened, which counts toward its time
+            ImageIO.write(image.toBufferedImage(), "png", out);
+        }
+        return out.size();
+    }
+
+    @Override
+    public void tearDown() {
+    }
+}
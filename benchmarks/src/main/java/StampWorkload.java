@@ -0,0 +1,79 @@
+import java.awt.Color;
+import java.awt.Point;
+import java.awt.Rectangle;
+
+import doodler.bench.Workload;
+
+/**
+ * Puts down {@value #STAMPS} stamps. Parameters: shape, tool size, and
+ * "cached" to stamp through the stamp cache as drawing does or "uncached" to
+ * render and fill the shape each time. The cached stamps are put down by a
+ * stroke that goes back and forth one stamp spacing at a time, so there is
+ * one stamp for the press and one for each drag, flushed together.
+ */
+public class StampWorkload implements Workload {
+    static final int STAMPS = 32;
+    private static final int CANVAS_SIZE = 1024;
+    // Must match the renderer's spacing, which is the tool size
+    private static final int SPACING_PERCENT = 100;
+
+    private Shape shape;
+    private int toolSize;
+    private boolean cached;
+    private TiledImage image;
+    private StrokeRenderer renderer;
+
+    @Override
+    public void setUp(String... params) {
+        shape = Shape.valueOf(params[0]);
+        toolSize = Integer.parseInt(params[1]);
+        cached = params[2].equals("cached");
+        image = new TiledImage(CANVAS_SIZE, CANVAS_SIZE);
+        renderer = new StrokeRenderer(Tool.STAMP, Color.BLACK, shape, toolSize);
+        renderer.setTarget(image, null);
+    }
+
+    @Override
+    public Object run() {
+        return cached ? runCached() : runUncached();
+    }
+
+    @Override
+    public void tearDown() {
+    }
+
+    private Rectangle runCached() {
+        int y = CANVAS_SIZE / 2;
+        int x0 = CANVAS_SIZE / 2;
+        int x1 = x0 + Math.max(1, toolSize * SPACING_PERCENT / 100);
+        renderer.press(x0, y);
+        for (int i = 1; i < STAMPS; ++i) {
+            renderer.drag(i % 2 == 0 ? x0 : x1, y);
+        }
+        // Ends where the last drag did, so it adds no stamp
+        renderer.release(STAMPS % 2 == 1 ? x0 : x1, y);
+        return renderer.flush();
+    }
+
+    private Rectangle runUncached() {
+        TiledGraphics g = image.createGraphics();
+        g.setColor(Color.BLACK);
+        Point p = new Point(0, CANVAS_SIZE / 2);
+        Rectangle bounds = null;
+        for (int i = 0; i < STAMPS; ++i) {
+            p.x = x(i);
+            Rectangle r = g.fill(shape.render(p, toolSize));
+            if (bounds == null) {
+                bounds = r;
+            } else {
+                bounds.add(r);
+            }
+        }
+        g.dispose();
+        return bounds;
+    }
+
+    private static int x(int stamp) {
+        return stamp * CANVAS_SIZE / STAMPS;
+    }
+}
@@ -0,0 +1,68 @@
+package doodler.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time to put down one stamp, by shape and size. The cached benchmark goes
+ * through the stamp cache as drawing does; the uncached one renders and fills
+ * the shape each time.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class StampBenchmark {
+    // Must match StampWorkload.STAMPS
+    private static final int STAMPS = 32;
+
+    @Param({ "CIRCLE", "SQUARE", "TRIANGLE" })
+    public String shape;
+
+    @Param({ "10", "50", "200" })
+    public int toolSize;
+
+    private Workload cached, uncached;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        cached = Workloads.create("StampWorkload", shape,
+                String.valueOf(toolSize), "cached");
+        uncached = Workloads.create("StampWorkload", shape,
+                String.valueOf(toolSize), "uncached");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        cached.tearDown();
+        uncached.tearDown();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(STAMPS)
+    public Object cached() throws Exception {
+        return cached.run();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(STAMPS)
+    public Object uncached() throws Exception {
+        return uncached.run();
+    }
+}
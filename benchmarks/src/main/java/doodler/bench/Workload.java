@@ -0,0 +1,22 @@
+package doodler.bench;
+
+/**
+ * A piece of work to be timed. The application lives in the default package,
+ * which JMH benchmark classes cannot import from, so each workload is a
+ * default-package class that is loaded by name and called through this
+ * interface.
+ */
+public interface Workload {
+    /**
+     * Prepares everything the workload needs outside the timed region.
+     */
+    void setUp(String... params) throws Exception;
+
+    /**
+     * Does one unit of work and returns something that depends on it, so that
+     * the work cannot be optimized away.
+     */
+    Object run() throws Exception;
+
+    void tearDown() throws Exception;
+}
@@ -0,0 +1,16 @@
+package doodler.bench;
+
+/**
+ * Creates {@link Workload}s by class name.
+ */
+final class Workloads {
+    private Workloads() {
+    }
+
+    static Workload create(String name, String... params) throws Exception {
+        Workload w = (Workload) Class.forName(name).getDeclaredConstructor()
+                .newInstance();
+        w.setUp(params);
+        return w;
+    }
+}
@@ -0,0 +1,333 @@
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Saves the canvas image, flattened from its layers, to a recovery journal in
+ * the background every so often, so a doodle is not lost if Doodler dies
+ * before it is saved. Each autosave appends only the tiles drawn on since the
+ * last one and forces them to disk. The whole image is written only when it
+ * is replaced, or when the appended tiles outgrow the last checkpoint.
+ * <p>
+ * The recovery journal is an ordinary {@link JournalFile}, so it is read back
+ * with {@link JournalFile#open(File)}. It is deleted when Doodler exits
+ * normally, and when the image no longer holds unsaved work.
+ */
+public class Autosave implements TiledImage.TileListener {
+    public static final String FILE_NAME = ".doodler-recovery"
+            + JournalFile.EXTENSION;
+    // Documents after the first add their slot number to the name
+    private static final Pattern SLOT_NAME = Pattern
+            .compile("\\.doodler-recovery(?:-(\\d{1,6}))?"
+                    + Pattern.quote(JournalFile.EXTENSION));
+
+    private static final long INTERVAL_SECONDS = 30;
+    // Appended tiles beyond this and twice the checkpoint start a new journal
+    private static final long MIN_COMPACT_BYTES = 8L << 20;
+
+    private final File file;
+    private final Object lock;
+    private final ScheduledExecutorService executor = Executors
+            .newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Doodler autosave");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    // Guarded by lock
+    private LayerStack layers = null;
+    // The journal has to start over with a checkpoint of the image
+    private boolean rewrite = true;
+    // The image is unsaved work even before it is drawn on
+    private boolean unsaved = false;
+    // Tiles changed since the last autosave. Guarded by itself too, since
+    // loading an image writes tiles without the lock.
+    private final BitSet dirty = new BitSet();
+    private volatile int columns;
+
+    // Used only by the autosave thread
+    private RandomAccessFile raf = null;
+    private long length;
+    private long checkpointLength;
+
+    /**
+     * @param lock
+     *            held by whoever changes the image
+     */
+    public Autosave(File file, Object lock) {
+        this.file = file;
+        this.lock = lock;
+    }
+
+    /**
+     * Returns where the recovery journal is kept in a directory.
+     */
+    public static File recoveryFile(String directory) {
+        return new File(directory, FILE_NAME);
+    }
+
+    /**
+     * Returns where the recovery journal for the open document in the given
+     * slot is kept in a directory. Each open document autosaves to a slot of
+     * its own, numbered from 0, which is the one {@link #recoveryFile(String)}
+     * returns.
+     */
+    public static File recoveryFile(String directory, int slot) {
+        if (slot == 0) {
+            return recoveryFile(directory);
+        }
+        return new File(directory, ".doodler-recovery-" + slot
+                + JournalFile.EXTENSION);
+    }
+
+    /**
+     * Returns the slots that have a recovery journal left in a directory, in
+     * order.
+     */
+    public static List<Integer> recoverySlots(String directory) {
+        List<Integer> slots = new ArrayList<Integer>();
+        String[] names = new File(directory).list();
+        if (names == null) {
+            return slots;
+        }
+        for (String name : names) {
+            Matcher m = SLOT_NAME.matcher(name);
+            if (m.matches()) {
+                slots.add(m.group(1) == null ? 0 : Integer.parseInt(m
+                        .group(1)));
+            }
+        }
+        Collections.sort(slots);
+        return slots;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Starts autosaving on a timer.
+     */
+    public void start() {
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                save();
+            }
+        }, INTERVAL_SECONDS, INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stops autosaving and deletes the recovery journal, for when Doodler
+     * exits normally. Waits for an autosave in progress to finish.
+     */
+    public void stop() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        discard();
+    }
+
+    /**
+     * Follows changes to a new image. Must be called with the lock held.
+     */
+    public void setLayers(LayerStack layers) {
+        if (this.layers != null) {
+            this.layers.removeTileListener(this);
+        }
+        this.layers = layers;
+        columns = layers.getColumns();
+        layers.addTileListener(this);
+        synchronized (dirty) {
+            dirty.clear();
+        }
+        rewrite = true;
+        unsaved = false;
+    }
+
+    /**
+     * Notes that the image as it is now has been saved, so there is nothing
+     * to recover until it is drawn on again. Must be called with the lock
+     * held.
+     */
+    public void markSaved() {
+        synchronized (dirty) {
+            dirty.clear();
+        }
+        rewrite = true;
+        unsaved = false;
+    }
+
+    /**
+     * Notes that the image as it is now is not saved anywhere, such as an
+     * image that was itself recovered. Must be called with the lock held.
+     */
+    public void markUnsaved() {
+        unsaved = true;
+    }
+
+    @Override
+    public void tileWillChange(int col, int row, BufferedImage tile) {
+        synchronized (dirty) {
+            dirty.set(row * columns + col);
+        }
+    }
+
+    /**
+     * Writes the changes made since the last autosave. Called on the autosave
+     * thread.
+     */
+    void save() {
+        boolean compact = raf == null
+                || length > Math.max(MIN_COMPACT_BYTES, checkpointLength * 2);
+        LayerStack source;
+        TiledImage changed;
+        BitSet tiles;
+        boolean full;
+        synchronized (lock) {
+            if (layers == null) {
+                return;
+            }
+            synchronized (dirty) {
+                if (dirty.isEmpty() && !unsaved) {
+                    if (!rewrite) {
+                        return;
+                    }
+                    // Whatever the journal holds is saved or thrown away
+                    changed = null;
+                    tiles = null;
+                    full = false;
+                } else {
+                    full = rewrite || unsaved || compact;
+                    changed = full ? layers.flatten() : layers
+                            .flatten(dirty);
+                    tiles = (BitSet) dirty.clone();
+                    dirty.clear();
+                    rewrite = false;
+                    unsaved = false;
+                }
+            }
+            source = layers;
+        }
+
+        if (changed == null) {
+            discard();
+            return;
+        }
+        try {
+            if (full) {
+                writeCheckpoint(changed);
+            } else {
+                append(changed, tiles);
+            }
+        } catch (IOException e) {
+            System.err.println("ERROR: Autosave failed: " + e.getMessage());
+            close();
+            synchronized (lock) {
+                if (layers == source) {
+                    // Try again from scratch next time
+                    rewrite = true;
+                    unsaved = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Starts a new journal holding the whole image, written beside the old
+     * one and then moved over it.
+     */
+    private void writeCheckpoint(TiledImage snapshot) throws IOException {
+        close();
+        File temp = File.createTempFile(file.getName(), ".tmp", file
+                .getAbsoluteFile().getParentFile());
+        boolean done = false;
+        try {
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(
+                    temp));
+            JournalFile written;
+            try {
+                written = JournalFile.write(out, file, snapshot, 0);
+            } finally {
+                out.close();
+            }
+            try {
+                Files.move(temp.toPath(), file.toPath(),
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp.toPath(), file.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+            }
+            done = true;
+            length = written.getLength();
+            checkpointLength = length;
+        } finally {
+            if (!done) {
+                temp.delete();
+            }
+        }
+
+        raf = new RandomAccessFile(file, "rw");
+    }
+
+    /**
+     * Appends a record of the changed tiles to the journal. The journal is
+     * written through its channel rather than mapped, since a mapping stays
+     * open until it is garbage collected and would keep Windows from
+     * replacing or deleting the file.
+     */
+    private void append(TiledImage snapshot, BitSet tiles) throws IOException {
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        StrokeJournal.writeTiles(record, snapshot, tiles);
+        FileChannel channel = raf.getChannel();
+        ByteBuffer data = ByteBuffer.wrap(record.toByteArray());
+        long position = length;
+        while (data.hasRemaining()) {
+            position += channel.write(data, position);
+        }
+        channel.force(true);
+        length = position;
+    }
+
+    private void discard() {
+        close();
+        file.delete();
+    }
+
+    private void close() {
+        if (raf != null) {
+            try {
+                raf.close();
+            } catch (IOException e) {
+                // Nothing was left to write
+            }
+            raf = null;
+        }
+    }
+}
@@ -0,0 +1,164 @@
+import java.awt.Color;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Renders a directory of stroke journals to PNGs without any window, for
+ * making images of recorded doodles in bulk. Documents are spread over a
+ * fork-join pool, and each worker replays its documents through its own
+ * {@link StrokeRenderer}. Each PNG is written out as soon as its document is
+ * done.
+ * <p>
+ * Usage: {@code BatchRenderer [-threads n] <journal directory> <output directory>}
+ */
+public class BatchRenderer {
+    private final File outputDirectory;
+    private final ForkJoinPool pool;
+    private final PngWriter pngWriter;
+    private final ThreadLocal<StrokeRenderer> renderers =
+            new ThreadLocal<StrokeRenderer>() {
+                @Override
+                protected StrokeRenderer initialValue() {
+                    return new StrokeRenderer(Tool.PEN, Color.BLACK,
+                            Shape.CIRCLE, 0);
+                }
+            };
+    private final AtomicInteger rendered = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+
+    public BatchRenderer(File outputDirectory, int threads) {
+        this.outputDirectory = outputDirectory;
+        this.pool = new ForkJoinPool(threads);
+        // Documents already keep every thread busy, so each PNG is encoded
+        // by the worker writing it, helped by any that are idle
+        this.pngWriter = new PngWriter(pool, 1);
+    }
+
+    public int getRendered() {
+        return rendered.get();
+    }
+
+    public int getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * Renders every journal, returning once all are written.
+     */
+    public void renderAll(File[] journals) {
+        pool.invoke(new RenderTask(journals, 0, journals.length));
+    }
+
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    /**
+     * Renders one journal to a PNG of the same name in the output directory.
+     */
+    private void render(File journal) {
+        String name = journal.getName();
+        name = name.substring(0, name.length()
+                - JournalFile.EXTENSION.length());
+        File target = new File(outputDirectory, name + ".png");
+        try {
+            TiledImage image = JournalFile.open(journal, renderers.get())
+                    .getImage();
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(
+                    target));
+            try {
+                pngWriter.write(image, out, null);
+            } finally {
+                out.close();
+            }
+            rendered.incrementAndGet();
+        } catch (IOException e) {
+            failed.incrementAndGet();
+            target.delete();
+            System.err.println(journal.getName() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Renders a range of journals, splitting it in half until each task has
+     * one document.
+     */
+    @SuppressWarnings("serial")
+    private class RenderTask extends RecursiveAction {
+        private final File[] journals;
+        private final int from, to;
+
+        RenderTask(File[] journals, int from, int to) {
+            this.journals = journals;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= 1) {
+                if (to > from) {
+                    render(journals[from]);
+                }
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new RenderTask(journals, from, mid), new RenderTask(
+                    journals, mid, to));
+        }
+    }
+
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+
+        int threads = Runtime.getRuntime().availableProcessors();
+        int arg = 0;
+        if (args.length > 1 && args[0].equals("-threads")) {
+            threads = Integer.parseInt(args[1]);
+            arg = 2;
+        }
+        if (args.length - arg != 2) {
+            System.err.println("Usage: BatchRenderer [-threads n] "
+                    + "<journal directory> <output directory>");
+            System.exit(2);
+        }
+        File input = new File(args[arg]);
+        File output = new File(args[arg + 1]);
+
+        File[] journals = input.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File f) {
+                return f.isFile() && JournalFile.isJournal(f);
+            }
+        });
+        if (journals == null) {
+            System.err.println(input + " is not a directory.");
+            System.exit(2);
+        }
+        Arrays.sort(journals);
+        output.mkdirs();
+
+        BatchRenderer batch = new BatchRenderer(output, threads);
+        long start = System.nanoTime();
+        batch.renderAll(journals);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        batch.shutdown();
+
+        System.out.printf("Rendered %d documents in %.2f s on %d threads "
+                + "(%.1f documents/s)%n", batch.getRendered(), seconds,
+                threads, batch.getRendered() / seconds);
+        if (batch.getFailed() > 0) {
+            System.out.printf("%d documents could not be rendered%n",
+                    batch.getFailed());
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,92 @@
+import java.awt.Color;
+
+/**
+ * The tool settings a stroke is drawn with. Instances never change, so the
+ * settings can be changed on the event dispatch thread while the drawing
+ * thread works from the ones it took when the stroke began. The
+ * <code>with</code> methods return a copy with one setting changed.
+ */
+public final class BrushState {
+    private final Tool tool;
+    private final Color color;
+    private final Shape shape;
+    private final int toolSize;
+    private final int fillTolerance;
+    private final boolean previewStrokes;
+    private final StrokeRenderer.PenEngine penEngine;
+
+    public BrushState(Tool tool, Color color, Shape shape, int toolSize,
+            int fillTolerance, boolean previewStrokes,
+            StrokeRenderer.PenEngine penEngine) {
+        this.tool = tool;
+        this.color = color;
+        this.shape = shape;
+        this.toolSize = toolSize;
+        this.fillTolerance = fillTolerance;
+        this.previewStrokes = previewStrokes;
+        this.penEngine = penEngine;
+    }
+
+    public Tool getTool() {
+        return tool;
+    }
+
+    public Color getColor() {
+        return color;
+    }
+
+    public Shape getShape() {
+        return shape;
+    }
+
+    public int getToolSize() {
+        return toolSize;
+    }
+
+    public int getFillTolerance() {
+        return fillTolerance;
+    }
+
+    public boolean isPreviewStrokes() {
+        return previewStrokes;
+    }
+
+    public StrokeRenderer.PenEngine getPenEngine() {
+        return penEngine;
+    }
+
+    public BrushState withTool(Tool t) {
+        return new BrushState(t, color, shape, toolSize, fillTolerance,
+                previewStrokes, penEngine);
+    }
+
+    public BrushState withColor(Color c) {
+        return new BrushState(tool, c, shape, toolSize, fillTolerance,
+                previewStrokes, penEngine);
+    }
+
+    public BrushState withShape(Shape s) {
+        return new BrushState(tool, color, s, toolSize, fillTolerance,
+                previewStrokes, penEngine);
+    }
+
+    public BrushState withToolSize(int size) {
+        return new BrushState(tool, color, shape, size, fillTolerance,
+                previewStrokes, penEngine);
+    }
+
+    public BrushState withFillTolerance(int tolerance) {
+        return new BrushState(tool, color, shape, toolSize, tolerance,
+                previewStrokes, penEngine);
+    }
+
+    public BrushState withPreviewStrokes(boolean preview) {
+        return new BrushState(tool, color, shape, toolSize, fillTolerance,
+                preview, penEngine);
+    }
+
+    public BrushState withPenEngine(StrokeRenderer.PenEngine engine) {
+        return new BrushState(tool, color, shape, toolSize, fillTolerance,
+                previewStrokes, engine);
+    }
+}
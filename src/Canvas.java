@@ -2,121 +2,188 @@ import javax.swing.*;
 
 import java.awt.*;
 import java.awt.event.*;
-import java.awt.geom.Line2D;
 import java.awt.image.*;
 
 import java.io.*;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 @SuppressWarnings("serial")
 public class Canvas extends JPanel {
-    private class DrawingThread extends Thread {
-        private static final int STAMP_FREQUENCY = 15;
-        
-        private BlockingQueue<Point> draggedPoints = new LinkedBlockingQueue<Point>();
-        private Point pressedPoint, releasedPoint;
-        private final Point END_OF_STREAM = new Point(Integer.MAX_VALUE,
-                Integer.MAX_VALUE);
-
-        public void addDraggedPoint(Point p) {
-            p.translate(-CANVAS_MARGIN, -CANVAS_MARGIN);
-            draggedPoints.add(p);
+    /**
+     * A consistent copy of the image together with the version of the
+     * drawing it was taken at.
+     */
+    public static class Snapshot {
+        private final TiledImage image;
+        private final long version;
+        private final StrokeJournal.Records records;
 
+        private Snapshot(TiledImage image, long version,
+                StrokeJournal.Records records) {
+            this.image = image;
+            this.version = version;
+            this.records = records;
         }
 
-        public void addPressedPoint(Point p) {
-            p.translate(-CANVAS_MARGIN, -CANVAS_MARGIN);
-            pressedPoint = p;
-            synchronized (this) {
-                this.notify();
-            }
+        public TiledImage getImage() {
+            return image;
         }
 
-        public void addReleasedPoint(Point p) {
-            p.translate(-CANVAS_MARGIN, -CANVAS_MARGIN);
-            releasedPoint = p;
-            draggedPoints.add(END_OF_STREAM);
+        /**
+         * Returns the journal records that were made since the records were
+         * last taken, or null if they were not taken with this snapshot.
+         */
+        public StrokeJournal.Records getRecords() {
+            return records;
         }
 
-        @Override
-        public void run() {
-            while (true) {
-                try {
-                    synchronized (this) {
-                        this.wait();
-                    }
-                    switch (tool) {
-                    case PEN:
-                        Point lastPoint = pressedPoint;
-                        while (true) {
-                            Point currentPoint = draggedPoints.take();
-                            if (currentPoint.equals(END_OF_STREAM))
-                                break;
-                            pen(lastPoint, currentPoint);
-                            lastPoint = currentPoint;
-                        }
-                        break;
-                    case STAMP:
-                        int counter = 0;
-                        while (true) {
-                            Point currentPoint = draggedPoints.take();
-                            if (currentPoint.equals(END_OF_STREAM))
-                                break;
-                            else if (counter == STAMP_FREQUENCY) {
-                                stamp(currentPoint);
-                                counter = 0;
-                            } else {
-                                ++counter;
-                            }
-                            
-                        }
-                        stamp(releasedPoint);
-                        break;
-                    default:
-                        throw new IllegalStateException("Bad tool selected");
-                    }
-
-                } catch (InterruptedException e) {
-                    // Do nothing
-                }
-            }
+        public long getVersion() {
+            return version;
         }
     }
 
     private static final int CANVAS_MARGIN = 10;
-    private static final int PEN_SIZE_CONVERSION = 5;
-
-    private BufferedImage image = null;
-    private Tool tool;
-    private int toolSize;
-    private Color color;
-    private Shape shape;
-    private boolean modified, saved = false;
+    private static final int FRAME_INTERVAL = 16;
+    private static final Rectangle HUD_BOUNDS = new Rectangle(CANVAS_MARGIN,
+            CANVAS_MARGIN, 330, 64);
+    private static final Font HUD_FONT = new Font(Font.MONOSPACED, Font.PLAIN,
+            12);
+    private static final long DEFAULT_UNDO_BUDGET = 64L << 20;
+    // Zoom steps are powers of the square root of two, from 1/16 to 16
+    private static final int MIN_ZOOM = -8;
+    private static final int MAX_ZOOM = 8;
+
+    // Replaced with imageLock held, read without it by painting and loading
+    private volatile LayerStack layers = null;
+    // The active layer, which is the one drawn on, and its history
+    private volatile TiledImage image = null;
+    private volatile UndoHistory history = null;
+    private volatile MipmapPyramid mipmaps = null;
+    private long undoBudget = DEFAULT_UNDO_BUDGET;
+    // How opaque layers keep their tiles between strokes
+    private TiledImage.Storage storage = TiledImage.Storage.FULL_COLOR;
+    // Held by the drawing thread while it changes the image
+    private final Object imageLock = new Object();
+    private final StrokeRenderer renderer;
+    private final StrokeJournal journal = new StrokeJournal();
+    private final FilterEngine filterEngine = new FilterEngine();
+    // Set while a filter works on a snapshot of the active layer
+    private volatile boolean filtering = false;
+    private final Autosave autosave;
+    private final LatencyMonitor latency = new LatencyMonitor();
+    private volatile boolean hudVisible = false;
+    // Whether the image is modified or was ever saved
+    private final DocumentState state = new DocumentState(this);
+    // Counts changes to the image, for telling whether it changed since a
+    // snapshot was taken. Only changed while imageLock is held.
+    private volatile long version = 0;
+    // Shown in place of the rows that have not been loaded yet
+    private volatile BufferedImage preview = null;
+    private volatile int loadedRows = 0;
     private File saveFile = createNewFile();
-    private DrawingThread drawWorker = new DrawingThread();
+    // The journal last saved or opened, which later saves append to
+    private volatile JournalFile journalFile = null;
+    // Records the input drawn, or null when no trace is being recorded
+    private volatile InputTrace.Recorder trace = null;
+    private final DrawingThread drawWorker;
     private String saveDirectory;
 
+    // Union of the image regions changed since the last repaint
+    private final Rectangle damage = new Rectangle();
+    private boolean damaged = false;
+    private final AtomicBoolean repaintScheduled = new AtomicBoolean();
+
+    // The view, used only on the event dispatch thread. The image is drawn
+    // scaled by 2^(zoom / 2) with its origin at (viewX, viewY).
+    private int zoom = 0;
+    private double viewX = CANVAS_MARGIN, viewY = CANVAS_MARGIN;
+    private boolean panning = false;
+    private int panX, panY;
+    private final Timer repaintTimer = new Timer(FRAME_INTERVAL,
+            new ActionListener() {
+                @Override
+                public void actionPerformed(ActionEvent e) {
+                    repaintScheduled.set(false);
+                    repaintDamage();
+                }
+            });
+
     public Canvas(Tool tool, Color color, Shape shape, String directory) {
-        this.tool = tool;
-        this.color = color;
-        this.shape = shape;
+        this(tool, color, shape, directory, Autosave.recoveryFile(directory));
+    }
+
+    /**
+     * @param recovery
+     *            the recovery journal to autosave to, which no other open
+     *            canvas may share
+     */
+    public Canvas(Tool tool, Color color, Shape shape, String directory,
+            File recovery) {
+        this.renderer = new StrokeRenderer(tool, color, shape, 0);
+        renderer.setJournal(journal);
+        this.drawWorker = new DrawingThread(renderer, imageLock,
+                new DrawingThread.Listener() {
+                    @Override
+                    public void imageChanged(Rectangle bounds) {
+                        publish(bounds);
+                    }
+                }, latency);
         this.saveDirectory = directory;
+        this.autosave = new Autosave(recovery, imageLock);
         this.setBackground(Color.GRAY);
+        repaintTimer.setRepeats(false);
 
+        // Drawing is disabled while an image is being loaded or filtered. Each
+        // event is timestamped on arrival for the latency monitor. The left
+        // button draws; the others drag the view around.
         this.addMouseListener(new MouseAdapter() {
             public void mousePressed(MouseEvent e) {
-                drawWorker.addPressedPoint(e.getPoint());
+                long time = System.nanoTime();
+                if (!SwingUtilities.isLeftMouseButton(e)) {
+                    panning = true;
+                    panX = e.getX();
+                    panY = e.getY();
+                } else if (!isBusy()) {
+                    int x = toImageX(e.getX());
+                    int y = toImageY(e.getY());
+                    drawWorker.addPressedPoint(x, y, time);
+                    trace(InputBuffer.PRESS, x, y, time);
+                }
             }
 
             public void mouseReleased(MouseEvent e) {
-                drawWorker.addReleasedPoint(e.getPoint());
+                long time = System.nanoTime();
+                if (!SwingUtilities.isLeftMouseButton(e)) {
+                    panning = false;
+                } else if (!isBusy()) {
+                    int x = toImageX(e.getX());
+                    int y = toImageY(e.getY());
+                    drawWorker.addReleasedPoint(x, y, time);
+                    trace(InputBuffer.RELEASE, x, y, time);
+                }
             }
         });
 
         this.addMouseMotionListener(new MouseMotionAdapter() {
             public void mouseDragged(MouseEvent e) {
-                drawWorker.addDraggedPoint(e.getPoint());
+                long time = System.nanoTime();
+                if (panning) {
+                    pan(e.getX() - panX, e.getY() - panY);
+                    panX = e.getX();
+                    panY = e.getY();
+                } else if (!isBusy()) {
+                    int x = toImageX(e.getX());
+                    int y = toImageY(e.getY());
+                    drawWorker.addDraggedPoint(x, y, time);
+                    trace(InputBuffer.DRAG, x, y, time);
+                }
+            }
+        });
+
+        // The wheel zooms about the point under the mouse
+        this.addMouseWheelListener(new MouseWheelListener() {
+            public void mouseWheelMoved(MouseWheelEvent e) {
+                zoomAt(zoom - e.getWheelRotation(), e.getX(), e.getY());
             }
         });
 
@@ -124,15 +191,34 @@ public class Canvas extends JPanel {
     }
 
     public Color getColor() {
-        return color;
+        return renderer.getColor();
+    }
+
+    public Tool getTool() {
+        return renderer.getTool();
     }
 
     public File getSaveFile() {
         return saveFile;
     }
 
+    /**
+     * Returns the image flattened from its layers.
+     */
     public BufferedImage getImage() {
-        return image;
+        TiledImage flat;
+        synchronized (imageLock) {
+            flat = layers.flatten();
+        }
+        return flat.toBufferedImage();
+    }
+
+    /**
+     * Returns the layers of the image, for reading only. Use the layer
+     * methods of the canvas to change them.
+     */
+    public LayerStack getLayers() {
+        return layers;
     }
 
     public String getSaveDirectory() {
@@ -140,30 +226,347 @@ public class Canvas extends JPanel {
     }
 
     public Shape getShape() {
-        return shape;
+        return renderer.getShape();
     }
 
     public int getToolSize() {
-        return toolSize;
+        return renderer.getToolSize();
+    }
+
+    public int getFillTolerance() {
+        return renderer.getFillTolerance();
+    }
+
+    public LatencyMonitor getLatencyMonitor() {
+        return latency;
+    }
+
+    public boolean isHudVisible() {
+        return hudVisible;
+    }
+
+    public StrokeRenderer.PenEngine getPenEngine() {
+        return renderer.getPenEngine();
+    }
+
+    public boolean isPreviewStrokes() {
+        return renderer.isPreviewStrokes();
     }
 
     public boolean isModified() {
-        return modified;
+        return state.isModified();
+    }
+
+    /**
+     * Returns whether the image is modified and whether it was ever saved.
+     * Listen to it for the "modified" and "saved" properties.
+     */
+    public DocumentState getDocumentState() {
+        return state;
+    }
+
+    /**
+     * Returns the tool settings that the next stroke will be drawn with.
+     */
+    public BrushState getBrush() {
+        return renderer.getBrush();
+    }
+
+    public JournalFile getJournalFile() {
+        return journalFile;
+    }
+
+    /**
+     * Sets the journal last saved or opened, which later saves of the image
+     * append to, or null if the next save has to write everything.
+     */
+    public void setJournalFile(JournalFile journal) {
+        this.journalFile = journal;
     }
 
     public boolean isSaved() {
-        return saved;
+        return state.isSaved();
+    }
+
+    /**
+     * Clears the modified flag if nothing was drawn since the given snapshot
+     * was taken.
+     */
+    public void markSaved(Snapshot s) {
+        synchronized (imageLock) {
+            if (s.getVersion() != version) {
+                return;
+            }
+            autosave.markSaved();
+        }
+        setModified(false);
+    }
+
+    /**
+     * Takes a snapshot of the image flattened from its layers. The snapshot
+     * is not affected by later drawing and may be read from any thread. With
+     * a single layer it is copy-on-write and costs nothing up front.
+     */
+    public Snapshot snapshot() {
+        synchronized (imageLock) {
+            return new Snapshot(layers.flatten(), version, null);
+        }
+    }
+
+    /**
+     * Takes a snapshot of the image along with the journal records made since
+     * the records were last taken, for appending to a journal file.
+     */
+    public Snapshot snapshotWithRecords() {
+        synchronized (imageLock) {
+            if (!layers.isPlain()) {
+                // Records replay onto a single layer only
+                journal.invalidate();
+            }
+            return new Snapshot(layers.flatten(), version, journal.drain());
+        }
+    }
+
+    /**
+     * Returns the generation of the journal, which changes whenever the image
+     * is replaced.
+     */
+    public long getJournalGeneration() {
+        synchronized (imageLock) {
+            return journal.getGeneration();
+        }
+    }
+
+    public boolean isLoading() {
+        return preview != null;
+    }
+
+    /**
+     * Returns whether drawing is disabled because an image is being loaded
+     * or a filter is running.
+     */
+    public boolean isBusy() {
+        return isLoading() || filtering;
+    }
+
+    /**
+     * Replaces the image with a blank one for an image of the given size to
+     * be loaded into. Until {@link #endLoad()} is called, the preview is shown
+     * scaled up over the rows that have not arrived, and drawing is disabled.
+     * May be called from any thread.
+     *
+     * @return the image to load the rows into
+     */
+    public TiledImage beginLoad(int w, int h, BufferedImage preview) {
+        TiledImage target = new TiledImage(w, h);
+        synchronized (imageLock) {
+            setTarget(target);
+        }
+        loadedRows = 0;
+        this.preview = preview;
+        repaint();
+        return target;
+    }
+
+    /**
+     * Shows rows that have been loaded into the image returned by
+     * {@link #beginLoad(int, int, BufferedImage)}. Rows are expected to
+     * arrive from top to bottom. May be called from any thread.
+     */
+    public void rowsLoaded(int y, int height) {
+        loadedRows = Math.max(loadedRows, y + height);
+        addDamage(new Rectangle(0, y, image.getWidth(), height));
+    }
+
+    public void endLoad() {
+        synchronized (imageLock) {
+            // The loaded image is already on disk
+            autosave.markSaved();
+            preview = null;
+            compactLayers();
+        }
+        repaint();
+    }
+
+    /**
+     * Returns whether there is a stroke to undo and undoing is allowed now.
+     */
+    public boolean canUndo() {
+        return history != null && !isBusy() && history.canUndo();
+    }
+
+    /**
+     * Returns whether there is a stroke to redo and redoing is allowed now.
+     */
+    public boolean canRedo() {
+        return history != null && !isBusy() && history.canRedo();
+    }
+
+    /**
+     * Reverts the last stroke. Does nothing while a stroke is in progress,
+     * or while the canvas is busy, since a running filter would apply its
+     * result over the undone stroke.
+     */
+    public void undo() {
+        synchronized (imageLock) {
+            if (history != null && !isBusy() && !drawWorker.isDrawing()) {
+                Rectangle changed = history.undo();
+                if (changed != null) {
+                    journal.recordTiles(image, changed);
+                    publish(changed);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reapplies the last undone stroke. Does nothing while a stroke is in
+     * progress or the canvas is busy.
+     */
+    public void redo() {
+        synchronized (imageLock) {
+            if (history != null && !isBusy() && !drawWorker.isDrawing()) {
+                Rectangle changed = history.redo();
+                if (changed != null) {
+                    journal.recordTiles(image, changed);
+                    publish(changed);
+                }
+            }
+        }
+    }
+
+    /**
+     * Applies a filter to the active layer as one undoable edit. The filter
+     * works on a snapshot, so the canvas keeps painting meanwhile, and
+     * drawing is disabled until it is done. Blocks, so must not be called on
+     * the event dispatch thread.
+     *
+     * @param listener
+     *            told of the progress and able to cancel, or null
+     * @return whether the filter was applied; it is not if it was cancelled,
+     *         a stroke or another filter was in progress, or the active layer
+     *         changed meanwhile
+     */
+    public boolean applyFilter(Filter filter, int amount,
+            FilterEngine.ProgressListener listener)
+            throws InterruptedException {
+        TiledImage target, source;
+        synchronized (imageLock) {
+            if (image == null || filtering || isLoading()
+                    || drawWorker.isDrawing()) {
+                return false;
+            }
+            filtering = true;
+            target = image;
+            source = image.snapshot();
+        }
+        try {
+            FilterEngine.Result result = filterEngine.filter(source, filter,
+                    amount, listener);
+            if (result == null) {
+                return false;
+            }
+            synchronized (imageLock) {
+                if (image != target || image.getWidth() != source.getWidth()
+                        || image.getHeight() != source.getHeight()) {
+                    return false;
+                }
+                if (drawWorker.isDrawing()) {
+                    // A stroke began just before drawing was disabled
+                    renderer.setTarget(image, history);
+                }
+                history.beginEdit();
+                Rectangle changed = result.applyTo(image);
+                history.endEdit();
+                if (changed != null) {
+                    journal.recordTiles(image, changed);
+                    publish(changed);
+                }
+                return true;
+            }
+        } finally {
+            filtering = false;
+        }
     }
 
     public void paintComponent(Graphics g) {
+        FrameEvent frame = new FrameEvent();
+        frame.begin();
         super.paintComponent(g);
 
         Graphics2D tempg = (Graphics2D) g;
-        if (image == null) {
+        if (layers == null) {
             reset();
         }
 
-        tempg.drawImage(image, null, CANVAS_MARGIN, CANVAS_MARGIN);
+        // Taken before the image is painted, so that a stroke committed in
+        // between is still shown by one or the other
+        StrokeOverlay overlay = renderer.getOverlay();
+        StrokeOverlay.Tiles strokePreview = overlay == null ? null : overlay
+                .getTiles();
+
+        // Only copy the tiles that lie inside the clip
+        int w = image.getWidth();
+        int h = image.getHeight();
+        Rectangle area = new Rectangle(0, 0, w, h);
+        Rectangle clip = tempg.getClipBounds();
+        if (clip != null) {
+            area = area.intersection(toImage(clip));
+        }
+
+        // Everything below is drawn in image coordinates
+        double scale = getScale();
+        Graphics2D view = (Graphics2D) tempg.create();
+        view.translate(viewX, viewY);
+        view.scale(scale, scale);
+        view.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                scale < 1 ? RenderingHints.VALUE_INTERPOLATION_BILINEAR
+                        : RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
+
+        // Show the preview scaled up wherever the image is not loaded yet
+        BufferedImage p = preview;
+        if (p != null) {
+            int loaded = loadedRows;
+            Rectangle rest = area.intersection(new Rectangle(0, loaded, w, h
+                    - loaded));
+            area = area.intersection(new Rectangle(0, 0, w, loaded));
+            if (!rest.isEmpty()) {
+                Graphics2D pg = (Graphics2D) view.create();
+                pg.clipRect(rest.x, rest.y, rest.width, rest.height);
+                pg.drawImage(p, 0, 0, w, h, 0, 0, p.getWidth(),
+                        p.getHeight(), null);
+                pg.dispose();
+            }
+        }
+
+        if (!area.isEmpty()) {
+            int level = Math.min(MipmapPyramid.LEVELS, -zoom / 2);
+            if (level > 0) {
+                // Zoomed out, so draw from a smaller copy of the image
+                drawMipmap(view, level, area);
+                if (strokePreview != null) {
+                    strokePreview.drawTo(view, area, 0, 0);
+                }
+            } else {
+                layers.drawTo(view, area, strokePreview);
+            }
+        }
+        view.dispose();
+
+        long now = System.nanoTime();
+        int inputs = latency.getPending();
+        long oldest = latency.presented(now);
+        if (hudVisible) {
+            paintHud(tempg);
+        }
+
+        frame.end();
+        if (frame.shouldCommit()) {
+            frame.pixels = (long) area.width * area.height;
+            frame.inputs = inputs;
+            frame.oldestInputAge = now - oldest;
+            frame.commit();
+        }
     }
 
     public void reset() {
@@ -177,57 +580,357 @@ public class Canvas extends JPanel {
             h = image.getHeight();
         }
 
-        image = (BufferedImage) this.createImage(w, h);
-        Graphics2D gc = image.createGraphics();
-        gc.setColor(Color.WHITE);
-        gc.fillRect(0, 0, w, h);
+        synchronized (imageLock) {
+            setTarget(new TiledImage(w, h));
+        }
         this.setModified(false);
         repaint();
     }
 
+    public int getZoom() {
+        return zoom;
+    }
+
+    public void zoomIn() {
+        zoomAt(zoom + 1, getWidth() / 2, getHeight() / 2);
+    }
+
+    public void zoomOut() {
+        zoomAt(zoom - 1, getWidth() / 2, getHeight() / 2);
+    }
+
+    /**
+     * Shows the image at its actual size in the top left corner.
+     */
+    public void zoomToActualSize() {
+        zoom = 0;
+        viewX = CANVAS_MARGIN;
+        viewY = CANVAS_MARGIN;
+        repaint();
+    }
+
     public void setColor(Color c) {
-        this.color = c;
+        renderer.setColor(c);
+    }
+
+    public TiledImage.Storage getStorage() {
+        return storage;
+    }
+
+    /**
+     * Sets how opaque layers keep their tiles, for this image and the ones
+     * after it. Tiles are packed to match once no stroke is in progress.
+     */
+    public void setStorage(TiledImage.Storage storage) {
+        synchronized (imageLock) {
+            this.storage = storage;
+            for (int i = 0; i < layers.size(); ++i) {
+                layers.getLayer(i).getImage().setStorage(storage);
+            }
+            compactLayers();
+        }
     }
 
     public void setCurrentFile(File f) {
+        File old = saveFile;
         this.saveFile = f;
+        firePropertyChange("saveFile", old, f);
+    }
+
+    /**
+     * Shows or hides the latency figures in the corner of the canvas.
+     */
+    public void setHudVisible(boolean visible) {
+        this.hudVisible = visible;
+        repaint(HUD_BOUNDS);
     }
 
     public void setImage(BufferedImage b) {
-        image = b;
+        setImage(TiledImage.fromImage(b));
+    }
+
+    public void setImage(TiledImage image) {
+        synchronized (imageLock) {
+            setTarget(image);
+        }
         repaint();
     }
 
-    public void setModified(boolean b) {
-        String newTitle;
-        if (b) {
-            newTitle = "Doodler! - " + saveFile.getName() + " (Modified)";
-        } else {
-            newTitle = "Doodler! - " + saveFile.getName();
+    /**
+     * Replaces the image with one recovered from the autosave journal of an
+     * earlier session. It counts as unsaved work until it is saved.
+     */
+    public void recover(TiledImage recovered) {
+        synchronized (imageLock) {
+            setTarget(recovered);
+            autosave.markUnsaved();
         }
+        setModified(true);
+        repaint();
+    }
+
+    /**
+     * Starts saving the image to a recovery journal in the save directory
+     * every so often.
+     */
+    public void startAutosave() {
+        autosave.start();
+    }
 
-        ((JFrame) this.getTopLevelAncestor()).setTitle(newTitle);
-        modified = b;
+    /**
+     * Stops autosaving and deletes the recovery journal, for when Doodler
+     * exits normally.
+     */
+    public void stopAutosave() {
+        autosave.stop();
+    }
+
+    /**
+     * Starts recording the input drawn on the canvas, with the tool settings
+     * in effect, to a trace file that {@link TraceReplay} can play back. Any
+     * trace already being recorded is finished first.
+     */
+    public void startTrace(File file) throws IOException {
+        stopTrace();
+        TiledImage target = image;
+        trace = new InputTrace.Recorder(file, target.getWidth(), target
+                .getHeight(), storage);
+    }
+
+    /**
+     * Finishes the trace being recorded, if any.
+     *
+     * @throws IOException
+     *             if the trace could not all be written
+     */
+    public void stopTrace() throws IOException {
+        InputTrace.Recorder t = trace;
+        trace = null;
+        if (t != null) {
+            t.close();
+        }
+    }
+
+    public boolean isTracing() {
+        return trace != null;
+    }
+
+    /**
+     * Sets whether the image has changed since it was saved. May be called
+     * from any thread; see {@link DocumentState} for how listeners are told.
+     */
+    public void setModified(boolean b) {
+        state.setModified(b);
     }
 
     public void setSaved(boolean saved) {
-        this.saved = saved;
+        state.setSaved(saved);
     }
 
     public void setSaveDirectory(String directory) {
         this.saveDirectory = directory;
     }
 
+    /**
+     * Sets whether pen strokes are drawn roughly while dragging and then
+     * antialiased on release, or drawn into the image as they go.
+     */
+    public void setPreviewStrokes(boolean preview) {
+        renderer.setPreviewStrokes(preview);
+    }
+
+    /**
+     * Sets what pen strokes are drawn with, from the next stroke on.
+     */
+    public void setPenEngine(StrokeRenderer.PenEngine engine) {
+        renderer.setPenEngine(engine);
+    }
+
     public void setShape(Shape s) {
-        this.shape = s;
+        renderer.setShape(s);
     }
 
     public void setShapeSize(int s) {
-        this.toolSize = s;
+        renderer.setToolSize(s);
+    }
+
+    /**
+     * Sets how close to the color clicked on a pixel must be for the fill
+     * tool to fill it, from 0 to 255 in each channel.
+     */
+    public void setFillTolerance(int tolerance) {
+        renderer.setFillTolerance(tolerance);
+    }
+
+    /**
+     * Sets how many bytes of compressed stroke history are kept for undo.
+     */
+    public void setUndoBudget(long bytes) {
+        this.undoBudget = bytes;
+        synchronized (imageLock) {
+            if (layers != null) {
+                layers.setUndoBudget(bytes);
+            }
+        }
+    }
+
+    /**
+     * Adds a transparent layer above the active one and makes it active.
+     */
+    public void addLayer() {
+        synchronized (imageLock) {
+            layers.add();
+            layersChanged(null);
+        }
+    }
+
+    /**
+     * Removes a layer, unless it is the only one.
+     */
+    public void removeLayer(int index) {
+        synchronized (imageLock) {
+            layersChanged(layers.remove(index));
+        }
+    }
+
+    /**
+     * Moves a layer to another position in the stack, counted from the
+     * bottom.
+     */
+    public void moveLayer(int from, int to) {
+        synchronized (imageLock) {
+            layersChanged(layers.move(from, to));
+        }
+    }
+
+    public void setLayerVisible(int index, boolean visible) {
+        synchronized (imageLock) {
+            layersChanged(layers.setVisible(index, visible));
+        }
+    }
+
+    /**
+     * @param opacity
+     *            from 0 to 1
+     */
+    public void setLayerOpacity(int index, float opacity) {
+        synchronized (imageLock) {
+            layersChanged(layers.setOpacity(index, opacity));
+        }
+    }
+
+    /**
+     * Makes another layer the one that is drawn on. A stroke in progress is
+     * ended.
+     */
+    public void setActiveLayer(int index) {
+        synchronized (imageLock) {
+            layers.setActive(index);
+            layersChanged(null);
+        }
     }
 
     public void setTool(Tool t) {
-        this.tool = t;
+        renderer.setTool(t);
+    }
+
+    /**
+     * Takes on the tool and view settings of another canvas, so that they
+     * carry over from one document to the next.
+     */
+    public void copySettings(Canvas other) {
+        renderer.setBrush(other.getBrush());
+        setHudVisible(other.isHudVisible());
+        if (other.getStorage() != getStorage()) {
+            setStorage(other.getStorage());
+        }
+    }
+
+    /**
+     * Returns roughly how many bytes of memory the pixels of the image take,
+     * including its cached composites and zoomed out copies.
+     */
+    public long getMemoryUsed() {
+        synchronized (imageLock) {
+            if (layers == null) {
+                return 0;
+            }
+            return layers.getMemoryUsed() + mipmaps.getMemoryUsed();
+        }
+    }
+
+    /**
+     * Compresses the pixels of the image in memory, for a document that is
+     * not shown. They come back when the image is next read or drawn on, or
+     * by {@link #unpark()}.
+     *
+     * @return false if the image is in use and was left alone
+     */
+    public boolean park() {
+        synchronized (imageLock) {
+            if (layers == null || isBusy() || drawWorker.isDrawing()) {
+                return false;
+            }
+            layers.park();
+            // The zoomed out copies are made again when next shown
+            mipmaps = new MipmapPyramid(layers);
+            return true;
+        }
+    }
+
+    /**
+     * Moves the compressed pixels of a parked image out of memory, into a
+     * temporary file in the save directory.
+     */
+    public void spill() throws IOException {
+        synchronized (imageLock) {
+            if (layers != null) {
+                layers.spill(new File(saveDirectory));
+            }
+        }
+    }
+
+    /**
+     * Brings back the pixels of a parked image.
+     *
+     * @throws UncheckedIOException
+     *             if they were spilled and cannot be read back
+     */
+    public void unpark() {
+        synchronized (imageLock) {
+            if (layers != null && layers.isParked()) {
+                layers.unpark();
+                compactLayers();
+            }
+        }
+    }
+
+    public boolean isParked() {
+        synchronized (imageLock) {
+            return layers != null && layers.isParked();
+        }
+    }
+
+    /**
+     * Stops drawing and autosaving for good, deleting the recovery journal
+     * and any pixels spilled to disk, for when the document is closed.
+     */
+    public void close() {
+        try {
+            stopTrace();
+        } catch (IOException e) {
+            System.err.println("ERROR: Could not finish an input trace: "
+                    + e.getMessage());
+        }
+        drawWorker.interrupt();
+        repaintTimer.stop();
+        state.dispose();
+        autosave.stop();
+        synchronized (imageLock) {
+            if (layers != null) {
+                layers.discardParked();
+            }
+        }
     }
 
     private File createNewFile() {
@@ -242,35 +945,269 @@ public class Canvas extends JPanel {
         return new File(saveDirectory + File.separator + name + ".png");
     }
 
-    private void pen(Point p1, Point p2) {
-        Graphics2D tempg = image.createGraphics();
-        tempg.setColor(color);
-        tempg.setStroke(new BasicStroke(toolSize / PEN_SIZE_CONVERSION,
-                BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
-        tempg.draw(new Line2D.Float(p1, p2));
+    /**
+     * Adds an input to the trace being recorded, if any.
+     */
+    private void trace(int kind, int x, int y, long time) {
+        InputTrace.Recorder t = trace;
+        if (t != null) {
+            t.record(kind, x, y, time, renderer.getBrush());
+        }
+    }
+
+    /**
+     * Marks a region of the image as changed. Regions added within the same
+     * frame are folded together and repainted at once.
+     */
+    private void addDamage(Rectangle r) {
+        MipmapPyramid m = mipmaps;
+        if (m != null) {
+            m.invalidate(r);
+        }
+        synchronized (damage) {
+            if (damaged) {
+                damage.add(r);
+            } else {
+                damage.setBounds(r);
+                damaged = true;
+            }
+        }
+
+        if (repaintScheduled.compareAndSet(false, true)) {
+            repaintTimer.restart();
+        }
+    }
+
+    /**
+     * Marks the image as modified and schedules a repaint of the given region.
+     */
+    private void publish(Rectangle bounds) {
+        ++version;
         setModified(true);
+        addDamage(bounds);
+        compactLayers();
+    }
+
+    /**
+     * Packs the tiles drawn on since the last time, unless a stroke still
+     * holds on to them. Must be called with imageLock held.
+     */
+    private void compactLayers() {
+        if (drawWorker.isDrawing() || isLoading()) {
+            return;
+        }
+        for (int i = 0; i < layers.size(); ++i) {
+            layers.getLayer(i).getImage().compact();
+        }
+    }
+
+    /**
+     * Follows a change to the layer stack, which changed the composite in the
+     * given region. Must be called with imageLock held.
+     */
+    private void layersChanged(Rectangle changed) {
+        if (layers.getActive().getImage() != image) {
+            useActiveLayer();
+        }
+        // Records replay onto a single layer, so the next save writes the
+        // flattened image
+        journal.invalidate();
+        if (changed != null) {
+            publish(changed);
+        }
+        fireLayersChanged();
+    }
+
+    /**
+     * Tells listeners for the "layers" property that the stack changed, on
+     * the event dispatch thread.
+     */
+    private void fireLayersChanged() {
+        final LayerStack current = layers;
+        if (SwingUtilities.isEventDispatchThread()) {
+            firePropertyChange("layers", null, current);
+        } else {
+            SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    firePropertyChange("layers", null, current);
+                }
+            });
+        }
+    }
+
+    private void repaintDamage() {
+        Rectangle r;
+        synchronized (damage) {
+            if (!damaged) {
+                return;
+            }
+            r = new Rectangle(damage);
+            damaged = false;
+        }
+        latency.repaintRequested();
+        repaint(toScreen(r));
+        if (hudVisible) {
+            // Keep the figures current while drawing
+            repaint(HUD_BOUNDS);
+        }
+    }
+
+    /**
+     * Draws the latency percentiles, queue depth and repaint counts over the
+     * top left corner of the image.
+     */
+    private void paintHud(Graphics2D g) {
+        LatencyHistogram raster = latency.getRasterLatency();
+        LatencyHistogram present = latency.getPresentLatency();
+        String[] lines = {
+                String.format("drawn   p50 %6.2f p99 %6.2f max %6.2f ms",
+                        raster.getValueAtPercentile(50) / 1e6,
+                        raster.getValueAtPercentile(99) / 1e6,
+                        raster.getMax() / 1e6),
+                String.format("painted p50 %6.2f p99 %6.2f max %6.2f ms",
+                        present.getValueAtPercentile(50) / 1e6,
+                        present.getValueAtPercentile(99) / 1e6,
+                        present.getMax() / 1e6),
+                String.format("queue %d (max %d)", latency.getQueueDepth(),
+                        latency.getMaxQueueDepth()),
+                String.format("repaints %d asked, %d painted",
+                        latency.getRepaintsRequested(), latency.getPaints()) };
+
+        Graphics2D hud = (Graphics2D) g.create();
+        hud.clip(HUD_BOUNDS);
+        hud.setColor(new Color(0, 0, 0, 160));
+        hud.fill(HUD_BOUNDS);
+        hud.setColor(Color.WHITE);
+        hud.setFont(HUD_FONT);
+        int lineHeight = hud.getFontMetrics().getHeight();
+        int y = HUD_BOUNDS.y + hud.getFontMetrics().getAscent() + 2;
+        for (String line : lines) {
+            hud.drawString(line, HUD_BOUNDS.x + 4, y);
+            y += lineHeight;
+        }
+        hud.dispose();
+    }
+
+    /**
+     * Draws part of the image from a level of the mipmap pyramid, bringing
+     * the level up to date first.
+     */
+    private void drawMipmap(Graphics2D view, int level, Rectangle area) {
+        BufferedImage m;
+        synchronized (imageLock) {
+            m = mipmaps.getLevel(level);
+        }
+        // The pixels of the level that cover the area
+        int f = 1 << level;
+        int x0 = area.x / f;
+        int y0 = area.y / f;
+        int x1 = Math.min(m.getWidth(), (area.x + area.width + f - 1) / f);
+        int y1 = Math.min(m.getHeight(), (area.y + area.height + f - 1) / f);
+        view.drawImage(m, x0 * f, y0 * f, x1 * f, y1 * f, x0, y0, x1, y1,
+                null);
+    }
+
+    private double getScale() {
+        return Math.pow(2, zoom / 2.0);
+    }
+
+    private int toImageX(int x) {
+        return (int) Math.floor((x - viewX) / getScale());
+    }
+
+    private int toImageY(int y) {
+        return (int) Math.floor((y - viewY) / getScale());
+    }
+
+    /**
+     * Returns the part of the image shown in a region of the canvas.
+     */
+    private Rectangle toImage(Rectangle r) {
+        double scale = getScale();
+        int x0 = (int) Math.floor((r.x - viewX) / scale);
+        int y0 = (int) Math.floor((r.y - viewY) / scale);
+        int x1 = (int) Math.ceil((r.x + r.width - viewX) / scale);
+        int y1 = (int) Math.ceil((r.y + r.height - viewY) / scale);
+        Rectangle result = new Rectangle(x0, y0, x1 - x0, y1 - y0);
+        // Filtering reaches a pixel beyond
+        result.grow(1, 1);
+        return result;
+    }
+
+    /**
+     * Returns the region of the canvas that shows a part of the image.
+     */
+    private Rectangle toScreen(Rectangle r) {
+        double scale = getScale();
+        int x0 = (int) Math.floor(viewX + r.x * scale);
+        int y0 = (int) Math.floor(viewY + r.y * scale);
+        int x1 = (int) Math.ceil(viewX + (r.x + r.width) * scale);
+        int y1 = (int) Math.ceil(viewY + (r.y + r.height) * scale);
+        Rectangle result = new Rectangle(x0, y0, x1 - x0, y1 - y0);
+        result.grow(1, 1);
+        return result;
+    }
+
+    private void pan(int dx, int dy) {
+        viewX += dx;
+        viewY += dy;
+        repaint();
+    }
+
+    /**
+     * Changes the zoom step, keeping the image point under (x, y) in place.
+     */
+    private void zoomAt(int step, int x, int y) {
+        step = Math.max(MIN_ZOOM, Math.min(MAX_ZOOM, step));
+        if (step == zoom) {
+            return;
+        }
+        double imageX = (x - viewX) / getScale();
+        double imageY = (y - viewY) / getScale();
+        zoom = step;
+        viewX = x - imageX * getScale();
+        viewY = y - imageY * getScale();
         repaint();
     }
 
+    /**
+     * Replaces the image with a new one as the only layer, with a fresh
+     * history. Must be called with imageLock held.
+     */
+    private void setTarget(TiledImage target) {
+        target.setStorage(storage);
+        layers = new LayerStack(target, undoBudget);
+        useActiveLayer();
+        journal.restart();
+        autosave.setLayers(layers);
+        mipmaps = new MipmapPyramid(layers);
+        ++version;
+        compactLayers();
+        fireLayersChanged();
+    }
+
+    /**
+     * Points drawing and undo at the active layer. Must be called with
+     * imageLock held.
+     */
+    private void useActiveLayer() {
+        LayerStack.Layer active = layers.getActive();
+        image = active.getImage();
+        history = active.getHistory();
+        renderer.setTarget(image, history);
+    }
+
     @SuppressWarnings("unused")
     private void resizeCanvas() {
         if (this.getWidth() <= 0 || this.getHeight() <= 0) {
             return;
         }
-        BufferedImage oldImage = image;
-        image = new BufferedImage(this.getWidth(), this.getHeight(),
-                oldImage.getType());
-        Graphics2D tempg = image.createGraphics();
-        tempg.setColor(Color.WHITE);
-        tempg.fillRect(0, 0, this.getWidth(), this.getHeight());
-        tempg.drawImage(oldImage, null, 0, 0);
-    }
-
-    private void stamp(Point p) {
-        Graphics2D tempg = image.createGraphics();
-        tempg.setColor(color);
-        tempg.fill(shape.render(p, toolSize));
-        setModified(true);
-        repaint();
+        synchronized (imageLock) {
+            layers.resize(this.getWidth(), this.getHeight());
+            journal.restart();
+            autosave.setLayers(layers);
+            mipmaps = new MipmapPyramid(layers);
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,368 @@
+import java.awt.Color;
+import java.awt.Rectangle;
+import java.awt.geom.PathIterator;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+
+/**
+ * Draws one pen stroke straight into the tiles of a {@link TiledImage} by
+ * stamping antialiased round dabs along it, without going through Java2D.
+ * <p>
+ * A dab is put down on each point of the stroke and at even steps between
+ * them, placed to a quarter of a pixel. Its coverage comes from a {@link Tip}
+ * worked out ahead of time for each of those sub-pixel offsets. Each pixel
+ * keeps the most coverage any dab has given it during the stroke, and only
+ * the increase is blended in, so the overlapping dabs do not build up into
+ * a darker or wider edge than a single dab has. Coverage falls with the
+ * distance from the center, so a dab can only raise the coverage of pixels
+ * nearer to it than to the dab before and outside the part the dab before
+ * covered fully, and only those are looked at.
+ */
+public class DabBrush {
+    // Sub-pixel positions a dab may take along each axis
+    static final int PHASES = 4;
+    private static final int SIZE = TiledImage.TILE_SIZE;
+
+    /**
+     * The coverage masks of a round dab of one diameter, one for each
+     * sub-pixel offset of its center. Tips can be shared between brushes.
+     */
+    public static class Tip {
+        // How deep the gaps between dabs along the edge of a stroke may be
+        private static final float GAP_DEPTH = 1f / 8;
+
+        private final float diameter;
+        private final float spacing;
+        // Masks are square, with the cell holding the center at (origin,
+        // origin)
+        private final int side, origin;
+        private final byte[][] masks = new byte[PHASES * PHASES][];
+        // The columns of each mask row that have any coverage, and those
+        // that are fully covered
+        private final int[][] starts = new int[PHASES * PHASES][];
+        private final int[][] ends = new int[PHASES * PHASES][];
+        private final int[][] solidStarts = new int[PHASES * PHASES][];
+        private final int[][] solidEnds = new int[PHASES * PHASES][];
+
+        public Tip(float diameter) {
+            this.diameter = diameter;
+            float r = diameter / 2;
+            float d = Math.min(r, GAP_DEPTH);
+            // Thin dabs are kept closer, where the gaps would show more
+            this.spacing = Math.max(1f / PHASES, Math.min(diameter / 4,
+                    2 * (float) Math.sqrt(2 * r * d - d * d)));
+            this.origin = (int) Math.ceil(r) + 1;
+            this.side = 2 * origin + 1;
+            for (int py = 0; py < PHASES; ++py) {
+                for (int px = 0; px < PHASES; ++px) {
+                    rasterize(py * PHASES + px, r, (float) px / PHASES,
+                            (float) py / PHASES);
+                }
+            }
+        }
+
+        public float getDiameter() {
+            return diameter;
+        }
+
+        /**
+         * Coverage is one where a pixel center is half a pixel inside the
+         * edge and falls off to nothing half a pixel outside it.
+         */
+        private void rasterize(int phase, float r, float fx, float fy) {
+            byte[] mask = new byte[side * side];
+            int[] start = new int[side];
+            int[] end = new int[side];
+            int[] solidStart = new int[side];
+            int[] solidEnd = new int[side];
+            for (int y = 0; y < side; ++y) {
+                double dy = y - origin + 0.5 - fy;
+                start[y] = side;
+                solidStart[y] = side;
+                for (int x = 0; x < side; ++x) {
+                    double dx = x - origin + 0.5 - fx;
+                    double c = r + 0.5 - Math.sqrt(dx * dx + dy * dy);
+                    int a = (int) Math.round(Math.max(0, Math.min(1, c)) * 255);
+                    mask[y * side + x] = (byte) a;
+                    if (a != 0) {
+                        start[y] = Math.min(start[y], x);
+                        end[y] = x + 1;
+                    }
+                    if (a == 255) {
+                        solidStart[y] = Math.min(solidStart[y], x);
+                        solidEnd[y] = x + 1;
+                    }
+                }
+            }
+            masks[phase] = mask;
+            starts[phase] = start;
+            ends[phase] = end;
+            solidStarts[phase] = solidStart;
+            solidEnds[phase] = solidEnd;
+        }
+    }
+
+    // 255 / n for each n, in 16.16 fixed point
+    private static final int[] RECIPROCALS = new int[256];
+    static {
+        for (int n = 1; n < 256; ++n) {
+            RECIPROCALS[n] = (255 << 16) / n;
+        }
+    }
+
+    private final TiledImage image;
+    private final Tip tip;
+    private final int width, height, cols;
+    private final boolean premultiplied;
+    private final int rgb, alpha;
+    private final int sr, sg, sb;
+    // The pixels of each tile once written, and the stroke's coverage of it
+    private final int[][] pixels;
+    private final byte[][] coverage;
+    private float lastX, lastY;
+    private boolean started = false;
+    // The center of the last dab put down, in units of a phase, and where its
+    // mask was
+    private boolean placed = false;
+    private int lastQX, lastQY;
+    private int lastPhase, lastLeft, lastTop;
+    // Pixels with 2 (p . move) > bias, p being the center of the pixel in
+    // units of a phase, are nearer to the new dab than to the last one
+    private int moveX, moveY;
+    private long bias;
+    // The region changed by the dabs of the current draw
+    private int minX, minY, maxX, maxY;
+
+    public DabBrush(TiledImage image, Tip tip, Color color) {
+        this.image = image;
+        this.tip = tip;
+        this.width = image.getWidth();
+        this.height = image.getHeight();
+        this.cols = image.getColumns();
+        this.premultiplied = image.isTransparent();
+        this.rgb = color.getRGB() & 0xFFFFFF;
+        this.alpha = color.getAlpha();
+        this.sr = (rgb >> 16) & 0xFF;
+        this.sg = (rgb >> 8) & 0xFF;
+        this.sb = rgb & 0xFF;
+        int tiles = cols * image.getRows();
+        this.pixels = new int[tiles][];
+        this.coverage = new byte[tiles][];
+    }
+
+    /**
+     * Draws the lines of a path, which may only move and draw lines, as part
+     * of the stroke. A move to where the stroke already is continues it.
+     *
+     * @return the region of the image that may have changed, or null if none
+     */
+    public Rectangle draw(java.awt.Shape path) {
+        minX = Integer.MAX_VALUE;
+        minY = Integer.MAX_VALUE;
+        maxX = -1;
+        maxY = -1;
+        float[] coords = new float[6];
+        for (PathIterator it = path.getPathIterator(null); !it.isDone(); it
+                .next()) {
+            switch (it.currentSegment(coords)) {
+            case PathIterator.SEG_MOVETO:
+                if (!started || coords[0] != lastX || coords[1] != lastY) {
+                    lastX = coords[0];
+                    lastY = coords[1];
+                    started = false;
+                }
+                break;
+            case PathIterator.SEG_LINETO:
+                lineTo(coords[0], coords[1]);
+                break;
+            default:
+                throw new IllegalArgumentException("Only lines can be drawn");
+            }
+        }
+        if (maxX < 0) {
+            return null;
+        }
+        return new Rectangle(minX, minY, maxX - minX, maxY - minY);
+    }
+
+    private void lineTo(float x, float y) {
+        if (!started) {
+            dab(lastX, lastY);
+            started = true;
+        }
+        float dx = x - lastX;
+        float dy = y - lastY;
+        double length = Math.sqrt(dx * dx + dy * dy);
+        int steps = (int) Math.ceil(length / tip.spacing);
+        for (int i = 1; i <= steps; ++i) {
+            float t = (float) i / steps;
+            dab(lastX + dx * t, lastY + dy * t);
+        }
+        lastX = x;
+        lastY = y;
+    }
+
+    /**
+     * Puts down a dab centered on the pixel at (x, y), so that a dab on a
+     * whole point lines up with the pixel drawn there.
+     */
+    private void dab(float x, float y) {
+        int qx = Math.round((x + 0.5f) * PHASES);
+        int qy = Math.round((y + 0.5f) * PHASES);
+        int cx = Math.floorDiv(qx, PHASES);
+        int cy = Math.floorDiv(qy, PHASES);
+        int phase = (qy - cy * PHASES) * PHASES + qx - cx * PHASES;
+        if (placed) {
+            moveX = qx - lastQX;
+            moveY = qy - lastQY;
+            bias = (long) qx * qx + (long) qy * qy - (long) lastQX * lastQX
+                    - (long) lastQY * lastQY;
+        }
+        int side = tip.side;
+        int left = cx - tip.origin;
+        int top = cy - tip.origin;
+
+        int x1 = Math.max(0, left);
+        int y1 = Math.max(0, top);
+        int x2 = Math.min(width, left + side);
+        int y2 = Math.min(height, top + side);
+        if (x1 >= x2 || y1 >= y2) {
+            return;
+        }
+        boolean halved = placed;
+        minX = Math.min(minX, x1);
+        minY = Math.min(minY, y1);
+        maxX = Math.max(maxX, x2);
+        maxY = Math.max(maxY, y2);
+
+        for (int ty = y1 / SIZE; ty <= (y2 - 1) / SIZE; ++ty) {
+            int rowTop = Math.max(y1, ty * SIZE);
+            int rowBottom = Math.min(y2, (ty + 1) * SIZE);
+            for (int tx = x1 / SIZE; tx <= (x2 - 1) / SIZE; ++tx) {
+                int colLeft = Math.max(x1, tx * SIZE);
+                int colRight = Math.min(x2, (tx + 1) * SIZE);
+                int tile = ty * cols + tx;
+                if (pixels[tile] == null) {
+                    BufferedImage t = image.getWritableTile(tx, ty);
+                    pixels[tile] = ((DataBufferInt) t.getRaster()
+                            .getDataBuffer()).getData();
+                    coverage[tile] = new byte[SIZE * SIZE];
+                }
+                blend(phase, halved, left, top, pixels[tile],
+                        coverage[tile], tx * SIZE, ty * SIZE, colLeft,
+                        rowTop, colRight, rowBottom);
+            }
+        }
+        placed = true;
+        lastQX = qx;
+        lastQY = qy;
+        lastPhase = phase;
+        lastLeft = left;
+        lastTop = top;
+    }
+
+    /**
+     * Blends the part of a dab mask inside one tile, from (x1, y1) to (x2,
+     * y2) in image coordinates.
+     *
+     * @param halved
+     *            whether to skip the pixels the last dab already covers as
+     *            much
+     */
+    private void blend(int phase, boolean halved, int left, int top, int[] p,
+            byte[] covered, int tileX, int tileY, int x1, int y1, int x2,
+            int y2) {
+        byte[] mask = tip.masks[phase];
+        int[] starts = tip.starts[phase];
+        int[] ends = tip.ends[phase];
+        int side = tip.side;
+        int[] solidStarts = tip.solidStarts[lastPhase];
+        int[] solidEnds = tip.solidEnds[lastPhase];
+        for (int y = y1; y < y2; ++y) {
+            int row = y - top;
+            int from = Math.max(x1, left + starts[row]);
+            int to = Math.min(x2, left + ends[row]);
+            if (halved) {
+                // Solves 2 (px moveX + py moveY) > bias for px = 4 x + 2
+                long rest = bias - 2L * (PHASES * y + PHASES / 2) * moveY;
+                if (moveX == 0) {
+                    if (rest >= 0) {
+                        continue;
+                    }
+                } else {
+                    double edge = ((double) rest / (2 * moveX) - PHASES / 2)
+                            / PHASES;
+                    if (moveX > 0) {
+                        from = (int) Math.max(from, Math.floor(edge) + 1);
+                    } else {
+                        to = (int) Math.min(to, Math.ceil(edge));
+                    }
+                }
+                int lastRow = y - lastTop;
+                if (lastRow >= 0 && lastRow < side) {
+                    // The run the last dab covered fully may split the row
+                    int solidFrom = Math.max(from, lastLeft
+                            + solidStarts[lastRow]);
+                    int solidTo = Math.min(to, lastLeft + solidEnds[lastRow]);
+                    if (solidFrom < solidTo) {
+                        blendRun(mask, row * side - left, p, covered, (y
+                                - tileY) * SIZE - tileX, from, solidFrom);
+                        from = solidTo;
+                    }
+                }
+            }
+            blendRun(mask, row * side - left, p, covered, (y - tileY) * SIZE
+                    - tileX, from, to);
+        }
+    }
+
+    /**
+     * Blends the pixels of a row from x1 to x2, the mask and tile offsets
+     * being what to add to x to index them.
+     */
+    private void blendRun(byte[] mask, int maskOffset, int[] p,
+            byte[] covered, int tileOffset, int x1, int x2) {
+        int m = maskOffset + x1;
+        int d = tileOffset + x1;
+        for (int x = x1; x < x2; ++x, ++m, ++d) {
+            int c1 = mask[m] & 0xFF;
+            int c0 = covered[d] & 0xFF;
+            if (c1 <= c0) {
+                continue;
+            }
+            covered[d] = (byte) c1;
+            int e1 = c1;
+            int e0 = c0;
+            if (alpha != 255) {
+                e1 = (c1 * alpha + 127) / 255;
+                e0 = (c0 * alpha + 127) / 255;
+                if (e1 == e0) {
+                    continue;
+                }
+            }
+            // The pixel already has e0 of the color over what was there, so
+            // blending in a more gets it to e1
+            int a = e1 == 255 ? 255 : ((e1 - e0) * RECIPROCALS[255 - e0]
+                    + 0x8000) >> 16;
+            p[d] = over(p[d], a);
+        }
+    }
+
+    /**
+     * Returns the color blended over a pixel with the given coverage.
+     */
+    private int over(int p, int a) {
+        if (a == 255) {
+            return premultiplied ? 0xFF000000 | rgb : rgb;
+        }
+        int na = 255 - a;
+        int r = (((p >> 16) & 0xFF) * na + sr * a + 127) / 255;
+        int g = (((p >> 8) & 0xFF) * na + sg * a + 127) / 255;
+        int b = ((p & 0xFF) * na + sb * a + 127) / 255;
+        if (!premultiplied) {
+            return r << 16 | g << 8 | b;
+        }
+        int pa = ((p >>> 24) * na + 255 * a + 127) / 255;
+        return pa << 24 | r << 16 | g << 8 | b;
+    }
+}
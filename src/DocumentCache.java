@@ -0,0 +1,150 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the pixels of the open documents within a memory budget. The
+ * document in front is left alone. When the total goes over the budget, the
+ * others are parked, least recently shown first, which compresses their
+ * tiles in memory. If that is still too much, their compressed tiles are
+ * spilled to temporary files in the save directory.
+ * <p>
+ * A parked document is brought back when it is shown again. Anything else
+ * that reads it in the meantime, such as an autosave, brings it back too, so
+ * parking never loses pixels; it only costs the time to restore them.
+ * <p>
+ * Parking is done on a thread of its own, so switching documents is not held
+ * up by compressing the one left behind. The budget is also checked every so
+ * often, since documents grow as they are drawn on and come back when read.
+ */
+public class DocumentCache {
+    private static final long TRIM_INTERVAL_SECONDS = 10;
+
+    private final long budget;
+    // Least recently shown first, so the one in front is last
+    private final List<Canvas> documents = new ArrayList<Canvas>();
+    private final ScheduledExecutorService executor = Executors
+            .newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Doodler documents");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    /**
+     * @param budget
+     *            how many bytes the pixels of all the documents should take
+     */
+    public DocumentCache(long budget) {
+        this.budget = budget;
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                trim();
+            }
+        }, TRIM_INTERVAL_SECONDS, TRIM_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    /**
+     * Starts keeping track of a document, behind the others.
+     */
+    public synchronized void add(Canvas document) {
+        documents.add(0, document);
+    }
+
+    public synchronized void remove(Canvas document) {
+        documents.remove(document);
+    }
+
+    /**
+     * Brings a document to the front, restoring it if it was parked, and
+     * parks others in the background if the budget calls for it.
+     *
+     * @throws java.io.UncheckedIOException
+     *             if the document was spilled and cannot be read back
+     */
+    public void show(Canvas document) {
+        // Waits for the document to be parked if that is under way
+        synchronized (this) {
+            documents.remove(document);
+            documents.add(document);
+        }
+        document.unpark();
+        executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                trim();
+            }
+        });
+    }
+
+    /**
+     * Returns roughly how many bytes of memory the pixels of all the
+     * documents take.
+     */
+    public long getMemoryUsed() {
+        long bytes = 0;
+        for (Canvas c : getDocuments()) {
+            bytes += c.getMemoryUsed();
+        }
+        return bytes;
+    }
+
+    /**
+     * Parks, and then spills, the documents behind the one in front until
+     * they fit the budget. Called on the cache thread.
+     */
+    void trim() {
+        List<Canvas> order = getDocuments();
+        long total = 0;
+        for (Canvas c : order) {
+            total += c.getMemoryUsed();
+        }
+        // Compressing in memory first keeps them quick to bring back
+        for (int i = 0; i < order.size() - 1 && total > budget; ++i) {
+            total -= shrink(order.get(i), false);
+        }
+        for (int i = 0; i < order.size() - 1 && total > budget; ++i) {
+            total -= shrink(order.get(i), true);
+        }
+    }
+
+    /**
+     * Parks or spills one document unless it has come to the front since.
+     *
+     * @return how many bytes of memory that saved
+     */
+    private synchronized long shrink(Canvas document, boolean spill) {
+        int index = documents.indexOf(document);
+        if (index < 0 || index == documents.size() - 1) {
+            return 0;
+        }
+        long before = document.getMemoryUsed();
+        try {
+            if (spill) {
+                document.spill();
+            } else if (!document.park()) {
+                return 0;
+            }
+        } catch (IOException e) {
+            System.err.println("ERROR: Could not spill a doodle to disk: "
+                    + e.getMessage());
+            return 0;
+        }
+        return before - document.getMemoryUsed();
+    }
+
+    private synchronized List<Canvas> getDocuments() {
+        return new ArrayList<Canvas>(documents);
+    }
+}
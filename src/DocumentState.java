@@ -0,0 +1,119 @@
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.beans.PropertyChangeListener;
+import java.beans.PropertyChangeSupport;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+
+/**
+ * Whether a document has changed since it was saved, and whether it was ever
+ * saved. Both may be set from any thread and read at once from any thread.
+ * <p>
+ * Listeners for the "modified" and "saved" properties are told on the event
+ * dispatch thread. Changes made off it are folded together and delivered at
+ * most once a frame, so a stroke marking the document modified on every
+ * segment costs the window title nothing. Listeners are only told of values
+ * that differ from the last ones they were told of.
+ */
+public class DocumentState {
+    private static final int FRAME_INTERVAL = 16;
+
+    private volatile boolean modified = false;
+    private volatile boolean saved = false;
+    // The values listeners were last told of, used only on the event
+    // dispatch thread
+    private boolean firedModified = false;
+    private boolean firedSaved = false;
+    private final PropertyChangeSupport listeners;
+    private final AtomicBoolean fireScheduled = new AtomicBoolean();
+    private final Timer fireTimer = new Timer(FRAME_INTERVAL,
+            new ActionListener() {
+                @Override
+                public void actionPerformed(ActionEvent e) {
+                    fireScheduled.set(false);
+                    fireChanges();
+                }
+            });
+
+    /**
+     * @param source
+     *            the object the property change events come from
+     */
+    public DocumentState(Object source) {
+        this.listeners = new PropertyChangeSupport(source);
+        fireTimer.setRepeats(false);
+    }
+
+    public boolean isModified() {
+        return modified;
+    }
+
+    public boolean isSaved() {
+        return saved;
+    }
+
+    /**
+     * Sets whether the document has changed since it was saved.
+     */
+    public void setModified(boolean b) {
+        if (modified != b) {
+            modified = b;
+            changed();
+        }
+    }
+
+    /**
+     * Sets whether the document has been saved to or opened from a file.
+     */
+    public void setSaved(boolean b) {
+        if (saved != b) {
+            saved = b;
+            changed();
+        }
+    }
+
+    public void addPropertyChangeListener(String property,
+            PropertyChangeListener l) {
+        listeners.addPropertyChangeListener(property, l);
+    }
+
+    public void removePropertyChangeListener(String property,
+            PropertyChangeListener l) {
+        listeners.removePropertyChangeListener(property, l);
+    }
+
+    /**
+     * Stops any delivery still pending, for when the document is closed.
+     */
+    public void dispose() {
+        fireTimer.stop();
+    }
+
+    private void changed() {
+        if (SwingUtilities.isEventDispatchThread()) {
+            // Changes made here come from the user, so show them at once
+            fireChanges();
+        } else if (fireScheduled.compareAndSet(false, true)) {
+            fireTimer.restart();
+        }
+    }
+
+    /**
+     * Tells listeners of the values that changed since they were last told.
+     * Called on the event dispatch thread.
+     */
+    private void fireChanges() {
+        boolean m = modified;
+        boolean s = saved;
+        if (m != firedModified) {
+            firedModified = m;
+            listeners.firePropertyChange("modified", !m, m);
+        }
+        if (s != firedSaved) {
+            firedSaved = s;
+            listeners.firePropertyChange("saved", !s, s);
+        }
+    }
+}
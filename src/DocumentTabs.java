@@ -0,0 +1,250 @@
+import java.awt.Color;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.io.File;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.swing.JFrame;
+import javax.swing.JOptionPane;
+import javax.swing.JTabbedPane;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+
+/**
+ * The open doodles, each on a canvas of its own in a tab. The canvas in the
+ * selected tab is the one the tools, menus and layer panel work on; tool
+ * settings carry over to it when another tab is selected. Listeners for the
+ * "canvas" property are told when that changes.
+ * <p>
+ * Each document autosaves to its own recovery slot, and the pixels of the
+ * ones in the other tabs are kept within a memory budget by a
+ * {@link DocumentCache}.
+ */
+@SuppressWarnings("serial")
+public class DocumentTabs extends JTabbedPane {
+    private final Tool tool;
+    private final Color color;
+    private final Shape shape;
+    private final String directory;
+    private final DocumentCache cache;
+    // In tab order, with the recovery slot of each
+    private final List<Canvas> documents = new ArrayList<Canvas>();
+    private final List<Integer> slots = new ArrayList<Integer>();
+    private Canvas current = null;
+    private boolean autosaving = false;
+    private final PropertyChangeListener titleUpdater =
+            new PropertyChangeListener() {
+                @Override
+                public void propertyChange(PropertyChangeEvent e) {
+                    updateTitle((Canvas) e.getSource());
+                }
+            };
+
+    /**
+     * @param tool
+     *            the tool settings of the first document
+     * @param budget
+     *            how many bytes the pixels of all the documents should take
+     */
+    public DocumentTabs(Tool tool, Color color, Shape shape, String directory,
+            long budget) {
+        this.tool = tool;
+        this.color = color;
+        this.shape = shape;
+        this.directory = directory;
+        this.cache = new DocumentCache(budget);
+        this.addChangeListener(new ChangeListener() {
+            @Override
+            public void stateChanged(ChangeEvent e) {
+                selectionChanged();
+            }
+        });
+    }
+
+    /**
+     * Returns the canvas in the selected tab.
+     */
+    public Canvas getCanvas() {
+        return current;
+    }
+
+    /**
+     * Returns the canvases of all the documents, in tab order.
+     */
+    public List<Canvas> getCanvases() {
+        return new ArrayList<Canvas>(documents);
+    }
+
+    public DocumentCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Opens a new blank document in a tab of its own and selects it.
+     */
+    public Canvas open() {
+        int slot = 0;
+        while (slots.contains(slot)) {
+            ++slot;
+        }
+        return open(slot);
+    }
+
+    /**
+     * Opens a new blank document that autosaves to the given recovery slot,
+     * which no open document may be using, and selects it.
+     */
+    public Canvas open(int slot) {
+        Canvas c = new Canvas(tool, color, shape, directory,
+                Autosave.recoveryFile(directory, slot));
+        if (current != null) {
+            c.copySettings(current);
+        }
+        c.setCurrentFile(untitledFile());
+        c.getDocumentState().addPropertyChangeListener("modified",
+                titleUpdater);
+        c.addPropertyChangeListener("saveFile", titleUpdater);
+        documents.add(c);
+        slots.add(slot);
+        cache.add(c);
+        if (autosaving) {
+            c.startAutosave();
+        }
+        this.addTab(c.getSaveFile().getName(), c);
+        this.setSelectedComponent(c);
+        return c;
+    }
+
+    /**
+     * Returns the recovery slot a document autosaves to.
+     */
+    public int getSlot(Canvas c) {
+        return slots.get(documents.indexOf(c));
+    }
+
+    /**
+     * Returns whether a document is new and has not been drawn on, so that
+     * opening a file can reuse its tab.
+     */
+    public boolean isUntouched(Canvas c) {
+        return !c.isModified() && !c.isSaved();
+    }
+
+    public void select(Canvas c) {
+        this.setSelectedComponent(c);
+    }
+
+    /**
+     * Closes a document without asking, deleting its recovery journal. A new
+     * blank document takes its place if it was the last one.
+     */
+    public void close(Canvas c) {
+        int index = documents.indexOf(c);
+        if (index < 0) {
+            return;
+        }
+        documents.remove(index);
+        slots.remove(index);
+        cache.remove(c);
+        // Selects a neighbour, which takes on the settings of this one
+        this.remove(c);
+        c.close();
+        if (documents.isEmpty()) {
+            open();
+        }
+    }
+
+    /**
+     * Starts autosaving every document, and every one opened from now on.
+     */
+    public void startAutosave() {
+        autosaving = true;
+        for (Canvas c : documents) {
+            c.startAutosave();
+        }
+    }
+
+    /**
+     * Stops autosaving every document and deletes their recovery journals,
+     * for when Doodler exits normally.
+     */
+    public void stopAutosave() {
+        for (Canvas c : documents) {
+            c.stopAutosave();
+        }
+    }
+
+    @Override
+    public void addNotify() {
+        super.addNotify();
+        // The window title can be set now that there is a window
+        if (current != null) {
+            updateTitle(current);
+        }
+    }
+
+    private void selectionChanged() {
+        Canvas next = (Canvas) this.getSelectedComponent();
+        if (next == null || next == current) {
+            return;
+        }
+        Canvas previous = current;
+        if (previous != null) {
+            next.copySettings(previous);
+        }
+        current = next;
+        try {
+            cache.show(next);
+        } catch (UncheckedIOException e) {
+            JOptionPane.showMessageDialog(this, e.getMessage(),
+                    "Error When Switching Doodles", JOptionPane.ERROR_MESSAGE);
+        }
+        updateTitle(next);
+        firePropertyChange("canvas", previous, next);
+    }
+
+    /**
+     * Shows the name of a document on its tab, and in the window title if it
+     * is selected, marked if it has changes that are not saved.
+     */
+    private void updateTitle(Canvas c) {
+        int index = this.indexOfComponent(c);
+        if (index < 0) {
+            return;
+        }
+        String name = c.getSaveFile().getName();
+        this.setTitleAt(index, c.isModified() ? name + " *" : name);
+        if (c == current && this.getTopLevelAncestor() instanceof JFrame) {
+            ((JFrame) this.getTopLevelAncestor()).setTitle("Doodler! - "
+                    + name + (c.isModified() ? " (Modified)" : ""));
+        }
+    }
+
+    /**
+     * Returns a file for a new doodle that is not on disk yet and that no
+     * other open document uses.
+     */
+    private File untitledFile() {
+        String name = "doodle";
+        File file = new File(directory, name + ".png");
+        int count = 1;
+        while (file.exists() || isOpen(file)) {
+            name = "doodle (" + count + ")";
+            file = new File(directory, name + ".png");
+            ++count;
+        }
+        return file;
+    }
+
+    private boolean isOpen(File file) {
+        for (Canvas c : documents) {
+            if (c.getSaveFile().getAbsoluteFile().equals(
+                    file.getAbsoluteFile())) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -1,5 +1,10 @@
 import java.awt.*;
 import java.awt.event.*;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
 import javax.swing.*;
 import javax.swing.event.*;
 
@@ -10,6 +15,9 @@ public class DoodleGUI extends JFrame {
     private static final int SIZE_MAX_VAL = 200;
     private static final int SIZE_MIN_VAL = 5;
     private static final int SIZE_MINOR_TICKS = 10;
+    private static final int TOLERANCE_MAX_VAL = 255;
+    private static final int TOLERANCE_MAJOR_TICKS = 64;
+    private static final int TOLERANCE_MINOR_TICKS = 16;
     private static final int COLOR_PREVIEW_SIZE = 30;
     private static final int WINDOW_HEIGHT = 768;
     private static final int WINDOW_WIDTH = 1024;
@@ -22,6 +30,8 @@ public class DoodleGUI extends JFrame {
     private static final Shape DEFAULT_SHAPE = Shape.CIRCLE;
     private static final String DEFAULT_SAVE_DIRECTORY = System
             .getProperty("user.home");
+    // The share of the heap the pixels of all open doodles may take
+    private static final int DOCUMENT_BUDGET_DIVISOR = 4;
 
     public DoodleGUI(String title) {
         super(title);
@@ -49,9 +59,11 @@ public class DoodleGUI extends JFrame {
     private void createAndShowGUI() {
         // Initialize the main panes of the GUI
         final JPanel options = new JPanel();
-        final Canvas canvas = new Canvas(DEFAULT_TOOL, DEFAULT_COLOR,
-                DEFAULT_SHAPE, DEFAULT_SAVE_DIRECTORY);
-        final DoodleMenuBar menuBar = new DoodleMenuBar(canvas);
+        final DocumentTabs documents = new DocumentTabs(DEFAULT_TOOL,
+                DEFAULT_COLOR, DEFAULT_SHAPE, DEFAULT_SAVE_DIRECTORY, Runtime
+                        .getRuntime().maxMemory() / DOCUMENT_BUDGET_DIVISOR);
+        documents.open();
+        final DoodleMenuBar menuBar = new DoodleMenuBar(documents);
 
         // Add the panels within the options pane
         // Create the Tools Pane
@@ -66,7 +78,7 @@ public class DoodleGUI extends JFrame {
             // Add the listener for tool changes
             t.getButton().addActionListener(new ActionListener() {
                 public void actionPerformed(ActionEvent e) {
-                    canvas.setTool(t);
+                    documents.getCanvas().setTool(t);
                 }
             });
 
@@ -100,7 +112,7 @@ public class DoodleGUI extends JFrame {
             public void stateChanged(ChangeEvent e) {
                 JSlider source = (JSlider) e.getSource();
                 if (!source.getValueIsAdjusting()) {
-                    canvas.setShapeSize(source.getValue());
+                    documents.getCanvas().setShapeSize(source.getValue());
                 }
             }
         });
@@ -109,6 +121,30 @@ public class DoodleGUI extends JFrame {
         size.add(sizeSlider);
         options.add(size);
 
+        // Initialize the fill tolerance panel
+        JPanel tolerance = new JPanel();
+        tolerance.setBorder(BorderFactory.createTitledBorder("Fill Tolerance"));
+
+        JSlider toleranceSlider = new JSlider(0, TOLERANCE_MAX_VAL,
+                documents.getCanvas().getFillTolerance());
+        toleranceSlider.setPaintTicks(true);
+        toleranceSlider.setMajorTickSpacing(TOLERANCE_MAJOR_TICKS);
+        toleranceSlider.setMinorTickSpacing(TOLERANCE_MINOR_TICKS);
+
+        // Changes how alike the filled pixels must be if the slider is moved
+        toleranceSlider.addChangeListener(new ChangeListener() {
+            @Override
+            public void stateChanged(ChangeEvent e) {
+                JSlider source = (JSlider) e.getSource();
+                if (!source.getValueIsAdjusting()) {
+                    documents.getCanvas().setFillTolerance(source.getValue());
+                }
+            }
+        });
+
+        tolerance.add(toleranceSlider);
+        options.add(tolerance);
+
         // Initialize the Color panel
         JPanel colors = new JPanel();
         colors.setBorder(BorderFactory.createTitledBorder("Color"));
@@ -119,7 +155,7 @@ public class DoodleGUI extends JFrame {
 
         // Initialize JLabel to show current color
         final JLabel colorLabel = new JLabel();
-        colorLabel.setBackground(canvas.getColor());
+        colorLabel.setBackground(documents.getCanvas().getColor());
         colorLabel.setOpaque(true);
         colorLabel.setSize(COLOR_PREVIEW_SIZE, COLOR_PREVIEW_SIZE);
         colorLabel.setPreferredSize(new Dimension(COLOR_PREVIEW_SIZE,
@@ -130,9 +166,9 @@ public class DoodleGUI extends JFrame {
             @Override
             public void mousePressed(MouseEvent e) {
                 Color newColor = JColorChooser.showDialog(colorChooser,
-                        "Choose Color", canvas.getColor());
+                        "Choose Color", documents.getCanvas().getColor());
                 if (newColor != null) {
-                    canvas.setColor(newColor);
+                    documents.getCanvas().setColor(newColor);
                     colorLabel.setBackground(newColor);
                 }
             }
@@ -146,14 +182,14 @@ public class DoodleGUI extends JFrame {
         JPanel shapePanel = new JPanel();
         shapePanel.setBorder(BorderFactory.createTitledBorder("Shape"));
 
-        JComboBox shapes = new JComboBox(Shape.values());
+        final JComboBox<Shape> shapes = new JComboBox<Shape>(Shape.values());
 
         // Class to listen for change of shapes
         shapes.addActionListener(new ActionListener() {
             @Override
             public void actionPerformed(ActionEvent e) {
-                JComboBox cb = (JComboBox) e.getSource();
-                canvas.setShape((Shape) cb.getSelectedItem());
+                documents.getCanvas().setShape(
+                        (Shape) shapes.getSelectedItem());
             }
         });
 
@@ -165,10 +201,23 @@ public class DoodleGUI extends JFrame {
         lay.setAlignment(FlowLayout.LEFT);
         options.setLayout(lay);
 
-        // Add the options and canvas panes to the main window
+        // The layers pane sits beside the canvas, following the selected one
+        JPanel layers = new JPanel(new BorderLayout());
+        final LayerPanel layerPanel = new LayerPanel(documents.getCanvas());
+        documents.addPropertyChangeListener("canvas",
+                new PropertyChangeListener() {
+                    @Override
+                    public void propertyChange(PropertyChangeEvent e) {
+                        layerPanel.setCanvas((Canvas) e.getNewValue());
+                    }
+                });
+        layers.add(layerPanel, BorderLayout.NORTH);
+
+        // Add the options, document tabs and layers panes to the main window
         this.setJMenuBar(menuBar);
         this.add(options, BorderLayout.NORTH);
-        this.add(canvas, BorderLayout.CENTER);
+        this.add(documents, BorderLayout.CENTER);
+        this.add(layers, BorderLayout.EAST);
 
         // Final settings for the main GUI
         this.setLocation(WINDOW_X, WINDOW_Y);
@@ -183,5 +232,55 @@ public class DoodleGUI extends JFrame {
         this.setSize(WINDOW_WIDTH, WINDOW_HEIGHT);
         this.setMinimumSize(this.getLayout().minimumLayoutSize(this));
         this.setLocationRelativeTo(null);
+
+        // Once the window is up, offer back the doodles from a session that
+        // did not exit normally
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                offerRecovery(documents);
+                documents.startAutosave();
+            }
+        });
+    }
+
+    /**
+     * Offers back the doodles left in recovery journals, each in the tab of
+     * the slot it was autosaved from, so that it goes on autosaving there.
+     * The journals of doodles not recovered are deleted.
+     */
+    private void offerRecovery(DocumentTabs documents) {
+        String directory = documents.getCanvas().getSaveDirectory();
+        List<Integer> slots = Autosave.recoverySlots(directory);
+        if (slots.isEmpty()) {
+            return;
+        }
+        String doodles = slots.size() == 1 ? "the unsaved doodle" : "the "
+                + slots.size() + " unsaved doodles";
+        int choice = JOptionPane
+                .showConfirmDialog(
+                        this,
+                        "Doodler did not close properly last time.  Would you like to recover " + doodles + "?",
+                        "Recover Doodle", JOptionPane.YES_NO_OPTION);
+        Canvas first = documents.getCanvas();
+        for (int slot : slots) {
+            File recovery = Autosave.recoveryFile(directory, slot);
+            if (choice != JOptionPane.YES_OPTION) {
+                // Autosave has not opened the journal yet, so this is safe
+                // even for the slot of the first tab
+                recovery.delete();
+                continue;
+            }
+            try {
+                TiledImage image = JournalFile.open(recovery).getImage();
+                Canvas c = slot == documents.getSlot(first) ? first
+                        : documents.open(slot);
+                c.recover(image);
+            } catch (IOException e) {
+                JOptionPane.showMessageDialog(this, e.getMessage(),
+                        "Error When Recovering Doodle",
+                        JOptionPane.ERROR_MESSAGE);
+            }
+        }
     }
 }
@@ -1,23 +1,56 @@
 import java.awt.Container;
+import java.awt.Toolkit;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.KeyEvent;
 import java.awt.image.BufferedImage;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
-import javax.imageio.ImageIO;
+import javax.swing.ButtonGroup;
+import javax.swing.JCheckBoxMenuItem;
+import javax.swing.JDialog;
 import javax.swing.JFileChooser;
 import javax.swing.JMenu;
 import javax.swing.JMenuBar;
 import javax.swing.JMenuItem;
 import javax.swing.JOptionPane;
+import javax.swing.JProgressBar;
+import javax.swing.JRadioButtonMenuItem;
+import javax.swing.KeyStroke;
+import javax.swing.ProgressMonitor;
+import javax.swing.SwingUtilities;
+import javax.swing.event.MenuEvent;
 
 @SuppressWarnings("serial")
 public class DoodleMenuBar extends JMenuBar {
     public enum MenuChoices {
         // File
-        NEW, OPEN, SAVE, SAVEAS, EXIT,
+        NEW, OPEN, CLOSE, SAVE, SAVEAS, EXIT,
+
+        // Edit
+        UNDO, REDO,
+
+        // View
+        ZOOMIN, ZOOMOUT, ACTUALSIZE, LATENCYREPORT, RESETLATENCY,
+        RECORDINPUTTRACE, STOPINPUTTRACE,
 
         // Help
         ABOUT
@@ -36,6 +69,9 @@ public class DoodleMenuBar extends JMenuBar {
             case OPEN:
                 openFile();
                 break;
+            case CLOSE:
+                closeFile();
+                break;
             case SAVE:
                 saveFile();
                 break;
@@ -46,6 +82,37 @@ public class DoodleMenuBar extends JMenuBar {
                 exit();
                 break;
 
+            // Edit Menu
+            case UNDO:
+                canvas.undo();
+                break;
+            case REDO:
+                canvas.redo();
+                break;
+
+            // View Menu
+            case ZOOMIN:
+                canvas.zoomIn();
+                break;
+            case ZOOMOUT:
+                canvas.zoomOut();
+                break;
+            case ACTUALSIZE:
+                canvas.zoomToActualSize();
+                break;
+            case LATENCYREPORT:
+                latencyReport();
+                break;
+            case RESETLATENCY:
+                canvas.getLatencyMonitor().reset();
+                break;
+            case RECORDINPUTTRACE:
+                recordTrace();
+                break;
+            case STOPINPUTTRACE:
+                stopTrace();
+                break;
+
             // Help Menu
             case ABOUT:
                 about();
@@ -54,13 +121,47 @@ public class DoodleMenuBar extends JMenuBar {
     }
 
     private final Container rootPane = this.getTopLevelAncestor();
-    private final Canvas canvas;
-    private static final String VALID_IMAGES = "([^\\s]+(\\.(?i)(jpg|png|gif|bmp))$)";
+    private final DocumentTabs documents;
+    // The canvas of the selected document, which the menus work on
+    private Canvas canvas;
+    private static final String VALID_IMAGES = "([^\\s]+(\\.(?i)(jpg|png|gif|bmp|doodle))$)";
+    private final ExecutorService ioExecutor = Executors
+            .newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Doodler I/O");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+    // Filters run here, one at a time, so the I/O thread stays free to save
+    private final ExecutorService filterExecutor = Executors
+            .newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Doodler filters");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+    // The last save started for each open document. Only used on the event
+    // dispatch thread.
+    private final Map<Canvas, Future<Boolean>> saves =
+            new HashMap<Canvas, Future<Boolean>>();
+    private final PngWriter pngWriter = new PngWriter();
     
     
-    public DoodleMenuBar(Canvas canvas) {
+    public DoodleMenuBar(DocumentTabs documents) {
         super();
-        this.canvas = canvas;
+        this.documents = documents;
+        this.canvas = documents.getCanvas();
+        documents.addPropertyChangeListener("canvas",
+                new PropertyChangeListener() {
+                    @Override
+                    public void propertyChange(PropertyChangeEvent e) {
+                        canvas = (Canvas) e.getNewValue();
+                    }
+                });
         // Class to handle menu events
 
         ActionListener menuListener = new MenuListener();
@@ -76,6 +177,12 @@ public class DoodleMenuBar extends JMenuBar {
         openFile.addActionListener(menuListener);
         fileMenu.add(openFile);
 
+        JMenuItem closeFile = new JMenuItem("Close");
+        closeFile.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_W,
+                Toolkit.getDefaultToolkit().getMenuShortcutKeyMaskEx()));
+        closeFile.addActionListener(menuListener);
+        fileMenu.add(closeFile);
+
         JMenuItem saveFile = new JMenuItem("Save...");
         saveFile.addActionListener(menuListener);
         fileMenu.add(saveFile);
@@ -84,6 +191,23 @@ public class DoodleMenuBar extends JMenuBar {
         saveAs.addActionListener(menuListener);
         fileMenu.add(saveAs);
 
+        // Let the user trade saving speed against file size
+        JMenu compression = new JMenu("Compression");
+        ButtonGroup compressionGroup = new ButtonGroup();
+        for (final PngWriter.Speed speed : PngWriter.Speed.values()) {
+            JRadioButtonMenuItem item = new JRadioButtonMenuItem(
+                    speed.toString(), speed == pngWriter.getSpeed());
+            item.addActionListener(new ActionListener() {
+                @Override
+                public void actionPerformed(ActionEvent e) {
+                    pngWriter.setSpeed(speed);
+                }
+            });
+            compressionGroup.add(item);
+            compression.add(item);
+        }
+        fileMenu.add(compression);
+
         fileMenu.addSeparator();
 
         JMenuItem close = new JMenuItem("Exit");
@@ -92,6 +216,172 @@ public class DoodleMenuBar extends JMenuBar {
 
         this.add(fileMenu);
 
+        // Build the "Edit" Menu
+        JMenu editMenu = new JMenu("Edit");
+        int shortcut = Toolkit.getDefaultToolkit().getMenuShortcutKeyMaskEx();
+
+        final JMenuItem undo = new JMenuItem("Undo");
+        undo.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_Z, shortcut));
+        undo.addActionListener(menuListener);
+        editMenu.add(undo);
+
+        final JMenuItem redo = new JMenuItem("Redo");
+        redo.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_Y, shortcut));
+        redo.addActionListener(menuListener);
+        editMenu.add(redo);
+
+        // Grey the items out while the menu is open if there is nothing to
+        // undo or redo, or a filter is running, but keep their shortcuts
+        // working while it is closed; the canvas refuses them when busy
+        editMenu.addMenuListener(new javax.swing.event.MenuListener() {
+            @Override
+            public void menuSelected(MenuEvent e) {
+                undo.setEnabled(DoodleMenuBar.this.canvas.canUndo());
+                redo.setEnabled(DoodleMenuBar.this.canvas.canRedo());
+            }
+
+            @Override
+            public void menuDeselected(MenuEvent e) {
+                undo.setEnabled(true);
+                redo.setEnabled(true);
+            }
+
+            @Override
+            public void menuCanceled(MenuEvent e) {
+                undo.setEnabled(true);
+                redo.setEnabled(true);
+            }
+        });
+
+        this.add(editMenu);
+
+        // Build the "View" Menu
+        JMenu viewMenu = new JMenu("View");
+
+        JMenuItem zoomIn = new JMenuItem("Zoom In");
+        zoomIn.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_EQUALS,
+                shortcut));
+        zoomIn.addActionListener(menuListener);
+        viewMenu.add(zoomIn);
+
+        JMenuItem zoomOut = new JMenuItem("Zoom Out");
+        zoomOut.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_MINUS,
+                shortcut));
+        zoomOut.addActionListener(menuListener);
+        viewMenu.add(zoomOut);
+
+        JMenuItem actualSize = new JMenuItem("Actual Size");
+        actualSize.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_0,
+                shortcut));
+        actualSize.addActionListener(menuListener);
+        viewMenu.add(actualSize);
+        viewMenu.addSeparator();
+
+        // Rough pen strokes while dragging, antialiased once released
+        final JCheckBoxMenuItem previewStrokes = new JCheckBoxMenuItem(
+                "Preview Pen Strokes", canvas.isPreviewStrokes());
+        previewStrokes.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                DoodleMenuBar.this.canvas.setPreviewStrokes(previewStrokes
+                        .isSelected());
+            }
+        });
+        viewMenu.add(previewStrokes);
+
+        // Java2D or dabs written straight into the pixels, to compare them
+        JMenu penEngine = new JMenu("Pen Engine");
+        ButtonGroup penEngineGroup = new ButtonGroup();
+        for (final StrokeRenderer.PenEngine engine : StrokeRenderer.PenEngine
+                .values()) {
+            JRadioButtonMenuItem item = new JRadioButtonMenuItem(engine
+                    .toString(), engine == canvas.getPenEngine());
+            item.addActionListener(new ActionListener() {
+                @Override
+                public void actionPerformed(ActionEvent e) {
+                    DoodleMenuBar.this.canvas.setPenEngine(engine);
+                }
+            });
+            penEngineGroup.add(item);
+            penEngine.add(item);
+        }
+        viewMenu.add(penEngine);
+
+        // Packed tiles take a quarter of the memory of full color ones
+        JMenu storage = new JMenu("Canvas Storage");
+        ButtonGroup storageGroup = new ButtonGroup();
+        for (final TiledImage.Storage mode : TiledImage.Storage.values()) {
+            JRadioButtonMenuItem item = new JRadioButtonMenuItem(mode
+                    .toString(), mode == canvas.getStorage());
+            item.addActionListener(new ActionListener() {
+                @Override
+                public void actionPerformed(ActionEvent e) {
+                    DoodleMenuBar.this.canvas.setStorage(mode);
+                }
+            });
+            storageGroup.add(item);
+            storage.add(item);
+        }
+        viewMenu.add(storage);
+        viewMenu.addSeparator();
+
+        final JCheckBoxMenuItem hud = new JCheckBoxMenuItem("Latency HUD",
+                canvas.isHudVisible());
+        hud.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                DoodleMenuBar.this.canvas.setHudVisible(hud.isSelected());
+            }
+        });
+        viewMenu.add(hud);
+
+        JMenuItem latencyReport = new JMenuItem("Latency Report...");
+        latencyReport.addActionListener(menuListener);
+        viewMenu.add(latencyReport);
+
+        JMenuItem resetLatency = new JMenuItem("Reset Latency");
+        resetLatency.addActionListener(menuListener);
+        viewMenu.add(resetLatency);
+
+        // Input recorded here can be played back by TraceReplay
+        final JMenuItem trace = new JMenuItem("Record Input Trace...");
+        trace.addActionListener(menuListener);
+        viewMenu.add(trace);
+        viewMenu.addMenuListener(new javax.swing.event.MenuListener() {
+            @Override
+            public void menuSelected(MenuEvent e) {
+                trace.setText(DoodleMenuBar.this.canvas.isTracing()
+                        ? "Stop Input Trace" : "Record Input Trace...");
+            }
+
+            @Override
+            public void menuDeselected(MenuEvent e) {
+            }
+
+            @Override
+            public void menuCanceled(MenuEvent e) {
+            }
+        });
+
+        this.add(viewMenu);
+
+        // Build the "Filters" Menu
+        JMenu filtersMenu = new JMenu("Filters");
+
+        for (final Filter f : Filter.values()) {
+            JMenuItem item = new JMenuItem(f.getAmountPrompt() == null ? f
+                    .toString() : f + "...");
+            item.addActionListener(new ActionListener() {
+                @Override
+                public void actionPerformed(ActionEvent e) {
+                    applyFilter(f);
+                }
+            });
+            filtersMenu.add(item);
+        }
+
+        this.add(filtersMenu);
+
         // Build the "Help" Menu
         JMenu helpMenu = new JMenu("Help");
 
@@ -111,103 +401,527 @@ public class DoodleMenuBar extends JMenuBar {
     }
 
     public void exit() {
-        int result = 0;
-        if (canvas.isModified()) {
-            result = JOptionPane
-                    .showConfirmDialog(
-                            rootPane,
-                            "The current doodle is not saved.  Would you like to save it?",
-                            "Warning", JOptionPane.YES_NO_CANCEL_OPTION);
-            if (result == JOptionPane.YES_OPTION) {
-                saveFile();
-            }
-
-            if (result == JOptionPane.CANCEL_OPTION) {
+        // The recovery journals are only deleted once every document is saved
+        // or given up by the user
+        for (Canvas c : documents.getCanvases()) {
+            if (!offerSave(c)) {
                 return;
             }
         }
+        documents.stopAutosave();
+        for (Canvas c : documents.getCanvases()) {
+            // Whatever was recorded is kept even if the end cannot be written
+            try {
+                c.stopTrace();
+            } catch (IOException e) {
+                System.err.println("ERROR: Could not finish an input trace: "
+                        + e.getMessage());
+            }
+        }
         System.exit(0);
     }
 
-    public void newFile() {
-        if (canvas.isModified()) {
-            int choice = JOptionPane.showConfirmDialog(rootPane,
-                    "Are you sure you want to start over?", "Confirm Reset",
-                    JOptionPane.YES_NO_OPTION);
-            if (choice == JOptionPane.YES_OPTION)
-                canvas.reset();
-        } else {
-            canvas.reset();
+    /**
+     * Closes the selected document, offering to save it first.
+     */
+    public void closeFile() {
+        Canvas c = canvas;
+        if (!offerSave(c)) {
+            return;
         }
+        saves.remove(c);
+        documents.close(c);
     }
 
-    public void openFile() {
-        // OPEN
-        int result;
-
-        if (canvas.isModified()) {
-            result = JOptionPane
-                    .showConfirmDialog(
-                            rootPane,
-                            "The current doodle is not saved.  Would you like to save it?",
-                            "Warning", JOptionPane.YES_NO_CANCEL_OPTION);
-            if (result == JOptionPane.YES_OPTION) {
-                saveFile();
-            }
+    /**
+     * Asks whether to save a document with unsaved changes, showing it
+     * first, and saves it if so. Waits for the save to be written.
+     *
+     * @return false if the user cancelled, or the save failed or was
+     *         cancelled
+     */
+    private boolean offerSave(Canvas c) {
+        if (!c.isModified()) {
+            // Nothing is lost even if a save still being written fails, but
+            // it should not be cut off halfway
+            waitForSave(saves.get(c));
+            return true;
+        }
+        documents.select(c);
+        int result = JOptionPane.showConfirmDialog(rootPane, "\""
+                + c.getSaveFile().getName()
+                + "\" is not saved.  Would you like to save it?", "Warning",
+                JOptionPane.YES_NO_CANCEL_OPTION);
+        if (result == JOptionPane.YES_OPTION) {
+            return waitForSave(saveFile());
+        }
+        return result == JOptionPane.NO_OPTION;
+    }
 
-            if (result == JOptionPane.CANCEL_OPTION) {
-                return;
+    /**
+     * Saves the latency percentiles in HdrHistogram's text format.
+     */
+    public void latencyReport() {
+        JFileChooser chooser = new JFileChooser(canvas.getSaveDirectory());
+        chooser.setSelectedFile(new File(canvas.getSaveDirectory(),
+                "latency.hgrm"));
+        if (chooser.showSaveDialog(rootPane) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        try {
+            PrintWriter out = new PrintWriter(chooser.getSelectedFile(),
+                    "UTF-8");
+            try {
+                canvas.getLatencyMonitor().writeReport(out);
+            } finally {
+                out.close();
             }
+        } catch (IOException e) {
+            JOptionPane.showMessageDialog(rootPane, e.getMessage(),
+                    "Error When Saving Report", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+
+    /**
+     * Starts recording the input drawn on the current document to a trace
+     * file of the user's choosing.
+     */
+    public void recordTrace() {
+        JFileChooser chooser = new JFileChooser(canvas.getSaveDirectory());
+        chooser.setSelectedFile(new File(canvas.getSaveDirectory(), "input"
+                + InputTrace.EXTENSION));
+        if (chooser.showSaveDialog(rootPane) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        try {
+            canvas.startTrace(chooser.getSelectedFile());
+        } catch (IOException e) {
+            JOptionPane.showMessageDialog(rootPane, e.getMessage(),
+                    "Error When Recording Trace", JOptionPane.ERROR_MESSAGE);
         }
+    }
 
+    public void stopTrace() {
+        try {
+            canvas.stopTrace();
+        } catch (IOException e) {
+            JOptionPane.showMessageDialog(rootPane, e.getMessage(),
+                    "Error When Recording Trace", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+
+    /**
+     * Starts a new doodle in a tab of its own.
+     */
+    public void newFile() {
+        documents.open();
+    }
+
+    /**
+     * Opens an image in a tab of its own, or in the selected tab if that
+     * holds a new doodle that has not been drawn on.
+     */
+    public void openFile() {
         final JFileChooser chooser = new JFileChooser(canvas.getSaveDirectory());
         int returnVal = chooser.showOpenDialog(rootPane);
         if (returnVal == JFileChooser.APPROVE_OPTION) {
-            File newFile = chooser.getSelectedFile();
+            final File newFile = chooser.getSelectedFile();
+            if (newFile.getName().matches(VALID_IMAGES)) {
+                final Canvas target = documents.isUntouched(canvas) ? canvas
+                        : documents.open();
+                // Decode in the background so the window stays responsive
+                ioExecutor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        load(newFile, target);
+                    }
+                });
+            } else {
+                showOpenError("This file is not an image.");
+            }
+        }
+    }
+
+    /**
+     * Reads an image into a canvas. Large images show a subsampled preview
+     * first and then fill in at full resolution as they are decoded.
+     */
+    private void load(final File file, final Canvas canvas) {
+        if (JournalFile.isJournal(file)) {
             try {
-                if (newFile.getName().matches(VALID_IMAGES)) {
-                    BufferedImage newImage = ImageIO.read(newFile);
-                    canvas.setImage(newImage);
-                } else {
-                    throw new IOException("This file is not an image.");
-                }
+                final JournalFile.Contents contents = JournalFile.open(file);
+                SwingUtilities.invokeLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        canvas.setImage(contents.getImage());
+                        canvas.setJournalFile(contents.attach(canvas
+                                .getJournalGeneration()));
+                        canvas.setCurrentFile(file);
+                        canvas.setSaved(true);
+                        canvas.setModified(false);
+                    }
+                });
             } catch (IOException exc) {
-                JOptionPane.showMessageDialog(rootPane, exc.getMessage(),
-                        "Error When Opening File", JOptionPane.ERROR_MESSAGE);
+                showOpenError(exc.getMessage());
+            } catch (OutOfMemoryError exc) {
+                showOpenError("There is not enough memory to open this doodle.");
+            }
+            return;
+        }
+
+        ImageLoader loader = null;
+        try {
+            loader = new ImageLoader(file);
+            loader.checkMemory();
+            if (!loader.isLarge()) {
+                final BufferedImage newImage = loader.read();
+                SwingUtilities.invokeLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        canvas.setImage(newImage);
+                    }
+                });
+                return;
+            }
+
+            BufferedImage preview = loader.readPreview();
+            TiledImage target = canvas.beginLoad(loader.getWidth(),
+                    loader.getHeight(), preview);
+            try {
+                loader.readInto(target, new ImageLoader.Listener() {
+                    @Override
+                    public void rowsLoaded(int y, int height) {
+                        canvas.rowsLoaded(y, height);
+                    }
+                });
+            } finally {
+                SwingUtilities.invokeLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        canvas.endLoad();
+                    }
+                });
+            }
+        } catch (IOException exc) {
+            showOpenError(exc.getMessage());
+        } catch (OutOfMemoryError exc) {
+            // The estimate in checkMemory was too low; the failed allocation
+            // is garbage now, so the program can carry on
+            showOpenError("There is not enough memory to open this image.");
+        } finally {
+            if (loader != null) {
+                loader.close();
+            }
+        }
+    }
 
+    /**
+     * Asks for the amount if the filter takes one, then applies it to the
+     * active layer in the background with a progress monitor to cancel it.
+     */
+    public void applyFilter(final Filter filter) {
+        int amount = filter.getDefaultAmount();
+        String prompt = filter.getAmountPrompt();
+        if (prompt != null) {
+            Object answer = JOptionPane.showInputDialog(rootPane, prompt,
+                    filter.toString(), JOptionPane.QUESTION_MESSAGE, null,
+                    null, amount);
+            if (answer == null) {
+                return;
+            }
+            try {
+                amount = Integer.parseInt(answer.toString().trim());
+            } catch (NumberFormatException e) {
+                amount = -1;
+            }
+            if (amount < filter.getMinAmount()
+                    || amount > filter.getMaxAmount()) {
+                JOptionPane.showMessageDialog(rootPane, "Enter a whole number"
+                        + " from " + filter.getMinAmount() + " to "
+                        + filter.getMaxAmount() + ".", "Invalid Amount",
+                        JOptionPane.ERROR_MESSAGE);
+                return;
             }
         }
+
+        final int chosen = amount;
+        final Canvas target = canvas;
+        final ProgressMonitor progress = new ProgressMonitor(rootPane,
+                "Applying " + filter.toString().toLowerCase(), null, 0, 100);
+        filterExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    target.applyFilter(filter, chosen,
+                            new FilterEngine.ProgressListener() {
+                                @Override
+                                public boolean progress(float fraction) {
+                                    setProgress(progress,
+                                            (int) (fraction * 100));
+                                    return !progress.isCanceled();
+                                }
+                            });
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    SwingUtilities.invokeLater(new Runnable() {
+                        @Override
+                        public void run() {
+                            progress.close();
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    private void showOpenError(final String message) {
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                JOptionPane.showMessageDialog(rootPane, message,
+                        "Error When Opening File", JOptionPane.ERROR_MESSAGE);
+            }
+        });
     }
 
-    public void saveAs() {
+    /**
+     * Asks where to save the selected document, then saves it there.
+     *
+     * @return the save being written, or null if the user cancelled
+     */
+    public Future<Boolean> saveAs() {
         JFileChooser chooser = new JFileChooser(canvas.getSaveDirectory());
         chooser.setSelectedFile(canvas.getSaveFile());
         int returnVal = chooser.showSaveDialog(rootPane);
         if (returnVal == JFileChooser.APPROVE_OPTION) {
             if (chooser.getSelectedFile().exists()) {
                 returnVal = JOptionPane.showConfirmDialog(rootPane, chooser.getSelectedFile().getName() + " already exists.  Overwrite?", "Overwrite File?", JOptionPane.YES_NO_OPTION);
-                if (returnVal == JOptionPane.NO_OPTION) {
-                    return;
+                if (returnVal != JOptionPane.YES_OPTION) {
+                    return null;
                 }
             }
             canvas.setCurrentFile(chooser.getSelectedFile());
             canvas.setSaved(true);
-            saveFile();
+            return saveFile();
         }
+        return null;
     }
 
-    public void saveFile() {
+    /**
+     * Saves the selected document to its file, or asks where to save it if
+     * it has none yet.
+     *
+     * @return the save being written, which yields false if it failed or
+     *         was cancelled, or null if the user cancelled choosing a file
+     */
+    public Future<Boolean> saveFile() {
+        final Canvas canvas = this.canvas;
         if (canvas.isSaved()) {
+            // Encode a snapshot in the background so drawing can go on
+            final File target = canvas.getSaveFile();
+            final boolean journal = JournalFile.isJournal(target);
+            final Canvas.Snapshot snapshot = journal ? canvas
+                    .snapshotWithRecords() : canvas.snapshot();
+            // Journal saves only append or copy records and report no progress
+            final ProgressMonitor progress = journal ? null
+                    : new ProgressMonitor(rootPane, "Saving "
+                            + target.getName(), null, 0, 100);
+            Future<Boolean> save = ioExecutor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    try {
+                        if (journal) {
+                            saveJournal(canvas, snapshot, target);
+                        } else if (!writeAtomically(snapshot.getImage(),
+                                target, progress)) {
+                            return false;
+                        }
+                        SwingUtilities.invokeLater(new Runnable() {
+                            @Override
+                            public void run() {
+                                canvas.markSaved(snapshot);
+                            }
+                        });
+                        return true;
+                    } catch (final IOException exc) {
+                        SwingUtilities.invokeLater(new Runnable() {
+                            @Override
+                            public void run() {
+                                JOptionPane.showMessageDialog(rootPane,
+                                        exc.getMessage(),
+                                        "Error When Saving File",
+                                        JOptionPane.ERROR_MESSAGE);
+                            }
+                        });
+                        return false;
+                    } finally {
+                        if (progress != null) {
+                            SwingUtilities.invokeLater(new Runnable() {
+                                @Override
+                                public void run() {
+                                    progress.close();
+                                }
+                            });
+                        }
+                    }
+                }
+            });
+            saves.put(canvas, save);
+            return save;
+        } else {
+            return saveAs();
+        }
+    }
+
+    /**
+     * Waits until a save has finished. While it is still being written a
+     * modal dialog is shown, so the window keeps painting but cannot be
+     * edited in the meantime.
+     *
+     * @param save
+     *            the save, or null if the user cancelled it before it began
+     * @return false if the save failed or was cancelled
+     */
+    private boolean waitForSave(Future<Boolean> save) {
+        if (save == null) {
+            return false;
+        }
+        if (!save.isDone()) {
+            JProgressBar bar = new JProgressBar();
+            bar.setIndeterminate(true);
+            JOptionPane pane = new JOptionPane(new Object[] {
+                    "Finishing the save...", bar },
+                    JOptionPane.INFORMATION_MESSAGE,
+                    JOptionPane.DEFAULT_OPTION, null, new Object[0]);
+            final JDialog dialog = pane.createDialog(rootPane, "Saving");
+            dialog.setDefaultCloseOperation(JDialog.DO_NOTHING_ON_CLOSE);
+            // The I/O thread runs tasks in order, so this runs once the
+            // save is done; the dialog is disposed after it has been shown
+            ioExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    SwingUtilities.invokeLater(new Runnable() {
+                        @Override
+                        public void run() {
+                            dialog.dispose();
+                        }
+                    });
+                }
+            });
+            dialog.setVisible(true);
+        }
+        try {
+            return save.get();
+        } catch (InterruptedException e) {
+            return false;
+        } catch (ExecutionException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Saves a snapshot of a canvas as a stroke journal. If the target is the
+     * journal last saved or opened and nothing else has written to it since,
+     * only the records made since are appended; otherwise a new journal is
+     * written.
+     */
+    private void saveJournal(Canvas canvas, Canvas.Snapshot snapshot,
+            File target) throws IOException {
+        StrokeJournal.Records records = snapshot.getRecords();
+        JournalFile current = canvas.getJournalFile();
+        // Until this save succeeds, the next one has to write everything
+        canvas.setJournalFile(null);
+        if (current != null && current.canAppend(target, records)) {
+            current.append(records, snapshot.getImage());
+            canvas.setJournalFile(current);
+            return;
+        }
+
+        File directory = target.getAbsoluteFile().getParentFile();
+        File temp = File.createTempFile(target.getName(), ".tmp", directory);
+        boolean done = false;
+        try {
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(
+                    temp));
+            JournalFile written;
             try {
-                ImageIO.write(canvas.getImage(), "png", canvas.getSaveFile());
-                canvas.setModified(false);
-            } catch (IOException exc) {
-                System.err.println("Exception thrown during write");
-                // Handle exception
+                written = JournalFile.write(out, target, snapshot.getImage(),
+                        records.getGeneration());
+            } finally {
+                out.close();
+            }
+            replace(temp, target);
+            done = true;
+            canvas.setJournalFile(written);
+        } finally {
+            if (!done) {
+                temp.delete();
+            }
+        }
+    }
+
+    /**
+     * Writes an image as a PNG to a temporary file next to the target, then
+     * renames it over the target so a failed save never leaves a partial
+     * file behind.
+     *
+     * @return false if the user cancelled the save
+     */
+    private boolean writeAtomically(TiledImage image, File target,
+            final ProgressMonitor progress) throws IOException {
+        File directory = target.getAbsoluteFile().getParentFile();
+        File temp = File.createTempFile(target.getName(), ".tmp", directory);
+        boolean done = false;
+        try {
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(
+                    temp));
+            try {
+                boolean finished = pngWriter.write(image, out,
+                        new PngWriter.ProgressListener() {
+                            @Override
+                            public boolean progress(float fraction) {
+                                setProgress(progress, (int) (fraction * 100));
+                                return !progress.isCanceled();
+                            }
+                        });
+                if (!finished) {
+                    return false;
+                }
+            } finally {
+                out.close();
+            }
+
+            replace(temp, target);
+            done = true;
+            return true;
+        } finally {
+            if (!done) {
+                temp.delete();
             }
-        } else {
-            saveAs();
         }
-        return;
+    }
+
+    /**
+     * Renames a finished temporary file over the target.
+     */
+    private static void replace(File temp, File target) throws IOException {
+        try {
+            Files.move(temp.toPath(), target.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp.toPath(), target.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static void setProgress(final ProgressMonitor progress,
+            final int value) {
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                progress.setProgress(value);
+            }
+        });
     }
 }
\ No newline at end of file
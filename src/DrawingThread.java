@@ -0,0 +1,161 @@
+import java.awt.Rectangle;
+
+/**
+ * Feeds mouse input to a {@link StrokeRenderer} off the event dispatch thread.
+ * Points are queued without blocking and drawn in batches, with a single
+ * update published for each batch.
+ */
+public class DrawingThread extends Thread {
+    public interface Listener {
+        /**
+         * Called from the drawing thread, with the lock held, after a batch of
+         * input changed the image.
+         */
+        void imageChanged(Rectangle bounds);
+    }
+
+    private static final int INPUT_CAPACITY = 1 << 14;
+    private static final int BATCH_SIZE = 1024;
+
+    private final InputBuffer input = new InputBuffer(INPUT_CAPACITY);
+    private final long[] batch = new long[BATCH_SIZE];
+    private final long[] batchTimes = new long[BATCH_SIZE];
+    private final StrokeRenderer renderer;
+    private final Object lock;
+    private final Listener listener;
+    private final LatencyMonitor latency;
+    // Number of input events drawn so far
+    private volatile long processed = 0;
+
+    /**
+     * @param lock
+     *            held while a batch is drawn
+     */
+    public DrawingThread(StrokeRenderer renderer, Object lock, Listener listener) {
+        this(renderer, lock, listener, new LatencyMonitor());
+    }
+
+    /**
+     * @param latency
+     *            told about each batch once it is drawn
+     */
+    public DrawingThread(StrokeRenderer renderer, Object lock,
+            Listener listener, LatencyMonitor latency) {
+        super("Doodler drawing");
+        this.renderer = renderer;
+        this.lock = lock;
+        this.listener = listener;
+        this.latency = latency;
+        setDaemon(true);
+    }
+
+    public void addDraggedPoint(int x, int y) {
+        addDraggedPoint(x, y, System.nanoTime());
+    }
+
+    /**
+     * @param time
+     *            when the point was received, from {@link System#nanoTime()}
+     */
+    public void addDraggedPoint(int x, int y, long time) {
+        input.put(InputBuffer.pack(InputBuffer.DRAG, x, y), time);
+    }
+
+    public void addPressedPoint(int x, int y) {
+        addPressedPoint(x, y, System.nanoTime());
+    }
+
+    public void addPressedPoint(int x, int y, long time) {
+        input.put(InputBuffer.pack(InputBuffer.PRESS, x, y), time);
+    }
+
+    public void addReleasedPoint(int x, int y) {
+        addReleasedPoint(x, y, System.nanoTime());
+    }
+
+    public void addReleasedPoint(int x, int y, long time) {
+        input.put(InputBuffer.pack(InputBuffer.RELEASE, x, y), time);
+    }
+
+    public LatencyMonitor getLatencyMonitor() {
+        return latency;
+    }
+
+    public long getProcessed() {
+        return processed;
+    }
+
+    /**
+     * Returns whether a stroke is in progress. Only meaningful with the lock
+     * held.
+     */
+    public boolean isDrawing() {
+        return renderer.isDrawing();
+    }
+
+    /**
+     * Draws queued input until the thread is interrupted.
+     */
+    @Override
+    public void run() {
+        while (true) {
+            int n;
+            try {
+                n = input.take(batch, batchTimes);
+            } catch (InterruptedException e) {
+                return;
+            }
+            int depth = n + input.size();
+
+            StrokeBatchEvent event = new StrokeBatchEvent();
+            event.begin();
+            long now;
+            synchronized (lock) {
+                Rectangle bounds = process(n);
+                now = System.nanoTime();
+                // Counted as drawn before anyone is told to paint it
+                latency.rasterized(batchTimes, n, depth, now);
+                if (bounds != null) {
+                    listener.imageChanged(bounds);
+                }
+            }
+            event.end();
+
+            if (event.shouldCommit()) {
+                event.events = n;
+                event.queueDepth = depth;
+                event.oldestInputAge = now - batchTimes[0];
+                event.commit();
+            }
+            processed += n;
+        }
+    }
+
+    /**
+     * Draws a batch of input.
+     *
+     * @return the region of the image the batch changed, or null
+     */
+    private Rectangle process(int n) {
+        for (int i = 0; i < n; ++i) {
+            long event = batch[i];
+            int x = InputBuffer.x(event);
+            int y = InputBuffer.y(event);
+            switch (InputBuffer.kind(event)) {
+            case InputBuffer.PRESS:
+                renderer.press(x, y);
+                break;
+            case InputBuffer.DRAG:
+                renderer.drag(x, y);
+                break;
+            case InputBuffer.RELEASE:
+                renderer.release(x, y);
+                break;
+            default:
+                throw new IllegalStateException("Bad input event");
+            }
+        }
+
+        return renderer.flush();
+    }
+}
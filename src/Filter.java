@@ -0,0 +1,66 @@
+/**
+ * The effects that {@link FilterEngine} can apply to an image. Some take an
+ * amount, such as the blur radius, which the user is asked for.
+ */
+public enum Filter {
+    BLUR("Blur radius in pixels:", 4, 1, 64),
+    SHARPEN,
+    INVERT,
+    GRAYSCALE,
+    POSTERIZE("Levels per color channel:", 4, 2, 64);
+
+    private final String prompt;
+    private final int defaultAmount, minAmount, maxAmount;
+
+    private Filter() {
+        this(null, 0, 0, 0);
+    }
+
+    private Filter(String prompt, int defaultAmount, int minAmount,
+            int maxAmount) {
+        this.prompt = prompt;
+        this.defaultAmount = defaultAmount;
+        this.minAmount = minAmount;
+        this.maxAmount = maxAmount;
+    }
+
+    public String toString() {
+        String word = name();
+        return word.charAt(0) + word.substring(1).toLowerCase();
+    }
+
+    /**
+     * Returns what to ask the user for the amount, or null if the filter
+     * takes none.
+     */
+    public String getAmountPrompt() {
+        return prompt;
+    }
+
+    public int getDefaultAmount() {
+        return defaultAmount;
+    }
+
+    public int getMinAmount() {
+        return minAmount;
+    }
+
+    public int getMaxAmount() {
+        return maxAmount;
+    }
+
+    /**
+     * Returns how many pixels around each pixel the filter reads, or 0 if it
+     * works on each pixel alone.
+     */
+    public int getRadius(int amount) {
+        switch (this) {
+        case BLUR:
+            return amount;
+        case SHARPEN:
+            return 1;
+        default:
+            return 0;
+        }
+    }
+}
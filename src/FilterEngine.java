@@ -0,0 +1,517 @@
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Applies a {@link Filter} to a {@link TiledImage} on a fork-join pool. The
+ * tiles are split between the threads of the pool, and each new tile is
+ * worked out straight in its int array from the pixels of the image, which
+ * must not change meanwhile; a snapshot is the usual source.
+ * <p>
+ * Blurring reads pixels up to the radius outside a tile, so it gathers them
+ * into a window first, clamping at the edges of the image. Tiles that are
+ * still blank, and have only blank tiles around them, are left blank when
+ * the filter would not change them.
+ */
+public class FilterEngine {
+    private static final int SIZE = TiledImage.TILE_SIZE;
+    // The Gaussian weights add up to 1 << WEIGHT_BITS
+    private static final int WEIGHT_BITS = 10;
+    private static final long POLL_MILLIS = 50;
+
+    private static ForkJoinPool sharedPool = null;
+
+    private final ForkJoinPool pool;
+
+    /**
+     * Lets a caller follow a filter and cancel it.
+     */
+    public interface ProgressListener {
+        /**
+         * Called now and then with the fraction of tiles done.
+         *
+         * @return false to cancel the filter
+         */
+        boolean progress(float fraction);
+    }
+
+    /**
+     * The new tiles made by a filter, ready to go into the image.
+     */
+    public static class Result {
+        private final int width, height, cols;
+        private final BufferedImage[] tiles;
+
+        private Result(TiledImage source, BufferedImage[] tiles) {
+            this.width = source.getWidth();
+            this.height = source.getHeight();
+            this.cols = source.getColumns();
+            this.tiles = tiles;
+        }
+
+        /**
+         * Puts the new tiles into an image the size of the one filtered.
+         * Must be called with the image locked.
+         *
+         * @return the region of the image that changed, or null if nothing did
+         */
+        public Rectangle applyTo(TiledImage image) {
+            if (image.getWidth() != width || image.getHeight() != height) {
+                throw new IllegalArgumentException("Image has been resized");
+            }
+            Rectangle changed = null;
+            for (int i = 0; i < tiles.length; ++i) {
+                if (tiles[i] == null) {
+                    continue;
+                }
+                int col = i % cols;
+                int row = i / cols;
+                image.setTile(col, row, tiles[i]);
+                Rectangle r = image.getTileBounds(col, row);
+                changed = changed == null ? r : changed.union(r);
+            }
+            return changed;
+        }
+    }
+
+    /**
+     * Creates an engine that runs on a pool shared by the whole application,
+     * with a thread for each processor.
+     */
+    public FilterEngine() {
+        this(sharedPool());
+    }
+
+    public FilterEngine(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Filters an image, blocking until done. The image must not change until
+     * this returns.
+     *
+     * @param amount
+     *            the blur radius or posterize levels, ignored by the others
+     * @param listener
+     *            told of the progress, or null
+     * @return the new tiles, or null if the listener cancelled the filter
+     */
+    public Result filter(TiledImage source, Filter filter, int amount,
+            ProgressListener listener) throws InterruptedException {
+        Job job = new Job(source, filter, amount);
+        TileTask task = new TileTask(job, 0, job.indices.length);
+        pool.execute(task);
+        try {
+            while (true) {
+                try {
+                    task.get(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                    break;
+                } catch (TimeoutException e) {
+                    float done = (float) job.done.get() / job.indices.length;
+                    if (listener != null && !listener.progress(done)) {
+                        job.cancelled = true;
+                        task.quietlyJoin();
+                        return null;
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            job.cancelled = true;
+            throw e;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException("Filter failed", cause);
+        }
+        if (listener != null) {
+            listener.progress(1);
+        }
+        return new Result(source, job.results);
+    }
+
+    /**
+     * What one run of a filter shares between its tasks.
+     */
+    private static class Job {
+        final TiledImage source;
+        final Filter filter;
+        final int amount;
+        final int width, height, cols;
+        final boolean transparent;
+        final int radius;
+        // The tiles to work on, and the new tile for each of them
+        final int[] indices;
+        final BufferedImage[] results;
+        final int[] kernel;
+        final int[] levels;
+        final AtomicInteger done = new AtomicInteger();
+        volatile boolean cancelled = false;
+
+        Job(TiledImage source, Filter filter, int amount) {
+            this.source = source;
+            this.filter = filter;
+            this.amount = amount;
+            this.width = source.getWidth();
+            this.height = source.getHeight();
+            this.cols = source.getColumns();
+            this.transparent = source.isTransparent();
+            this.radius = filter.getRadius(amount);
+            this.kernel = filter == Filter.BLUR ? gaussian(radius) : null;
+            this.levels = filter == Filter.POSTERIZE ? posterizeTable(amount)
+                    : null;
+            this.results = new BufferedImage[cols * source.getRows()];
+            this.indices = tilesToFilter();
+        }
+
+        private int[] tilesToFilter() {
+            int rows = source.getRows();
+            boolean[] wanted = new boolean[cols * rows];
+            int blank = transparent ? 0 : 0xFFFFFF;
+            int mask = transparent ? 0xFFFFFFFF : 0xFFFFFF;
+            if (radius == 0 && (point(blank) & mask) != blank) {
+                // Even blank tiles change
+                for (int i = 0; i < wanted.length; ++i) {
+                    wanted[i] = true;
+                }
+            } else {
+                // A blank tile only changes if a pixel near it is not blank
+                int reach = (radius + SIZE - 1) / SIZE;
+                for (int row = 0; row < rows; ++row) {
+                    for (int col = 0; col < cols; ++col) {
+                        if (source.isBlank(col, row)) {
+                            continue;
+                        }
+                        int r1 = Math.max(0, row - reach);
+                        int r2 = Math.min(rows - 1, row + reach);
+                        int c1 = Math.max(0, col - reach);
+                        int c2 = Math.min(cols - 1, col + reach);
+                        for (int r = r1; r <= r2; ++r) {
+                            for (int c = c1; c <= c2; ++c) {
+                                wanted[r * cols + c] = true;
+                            }
+                        }
+                    }
+                }
+            }
+            int count = 0;
+            for (boolean w : wanted) {
+                if (w) {
+                    ++count;
+                }
+            }
+            int[] indices = new int[count];
+            count = 0;
+            for (int i = 0; i < wanted.length; ++i) {
+                if (wanted[i]) {
+                    indices[count++] = i;
+                }
+            }
+            return indices;
+        }
+
+        /**
+         * Works out the new tile at the given index.
+         */
+        void run(int index) {
+            int col = index % cols;
+            int row = index / cols;
+            BufferedImage from = source.getTile(col, row);
+            BufferedImage to = source.createTile();
+            int[] src = pixelsOf(from);
+            int[] dst = pixelsOf(to);
+            // Keeps whatever lies past the edge of the image as it was
+            System.arraycopy(src, 0, dst, 0, src.length);
+            Rectangle r = source.getTileBounds(col, row);
+            if (radius == 0) {
+                pointFilter(src, dst, r.width, r.height);
+            } else if (filter == Filter.BLUR) {
+                blur(dst, r);
+            } else {
+                sharpen(dst, r);
+            }
+            results[index] = to;
+        }
+
+        private void pointFilter(int[] src, int[] dst, int w, int h) {
+            for (int y = 0; y < h; ++y) {
+                int offset = y * SIZE;
+                for (int x = 0; x < w; ++x) {
+                    dst[offset + x] = point(src[offset + x]);
+                }
+            }
+        }
+
+        /**
+         * Filters a single pixel with one of the filters that need no
+         * neighbours.
+         */
+        int point(int p) {
+            int a = p >>> 24;
+            int r = (p >> 16) & 0xFF;
+            int g = (p >> 8) & 0xFF;
+            int b = p & 0xFF;
+            switch (filter) {
+            case INVERT:
+                if (transparent) {
+                    return a << 24 | (a - r) << 16 | (a - g) << 8 | (a - b);
+                }
+                return ~p & 0xFFFFFF;
+            case GRAYSCALE:
+                int l = (77 * r + 150 * g + 29 * b + 128) >> 8;
+                return (transparent ? a << 24 : 0) | l << 16 | l << 8 | l;
+            case POSTERIZE:
+                if (!transparent) {
+                    return levels[r] << 16 | levels[g] << 8 | levels[b];
+                }
+                if (a == 0) {
+                    return 0;
+                }
+                // Quantizes the color itself, not its premultiplied value
+                r = (levels[Math.min(255, (r * 255 + a / 2) / a)] * a + 127) / 255;
+                g = (levels[Math.min(255, (g * 255 + a / 2) / a)] * a + 127) / 255;
+                b = (levels[Math.min(255, (b * 255 + a / 2) / a)] * a + 127) / 255;
+                return a << 24 | r << 16 | g << 8 | b;
+            default:
+                return p;
+            }
+        }
+
+        /**
+         * Blurs one tile, horizontally into a table of channel sums and then
+         * vertically out of it.
+         */
+        private void blur(int[] dst, Rectangle r) {
+            int m = radius;
+            int ww = r.width + 2 * m;
+            int wh = r.height + 2 * m;
+            int[] window = gather(r, m);
+            int channels = transparent ? 4 : 3;
+            int taps = kernel.length;
+
+            int[] sums = new int[wh * r.width * channels];
+            for (int y = 0; y < wh; ++y) {
+                int in = y * ww;
+                int out = y * r.width * channels;
+                for (int x = 0; x < r.width; ++x) {
+                    int sr = 0, sg = 0, sb = 0, sa = 0;
+                    for (int i = 0; i < taps; ++i) {
+                        int p = window[in + x + i];
+                        int k = kernel[i];
+                        sr += ((p >> 16) & 0xFF) * k;
+                        sg += ((p >> 8) & 0xFF) * k;
+                        sb += (p & 0xFF) * k;
+                        sa += (p >>> 24) * k;
+                    }
+                    sums[out] = sr;
+                    sums[out + 1] = sg;
+                    sums[out + 2] = sb;
+                    if (channels == 4) {
+                        sums[out + 3] = sa;
+                    }
+                    out += channels;
+                }
+            }
+
+            // Each sum is up to 255 << WEIGHT_BITS, so a second round of
+            // weights still fits in an int
+            int shift = 2 * WEIGHT_BITS;
+            int half = 1 << (shift - 1);
+            int stride = r.width * channels;
+            for (int y = 0; y < r.height; ++y) {
+                int offset = y * SIZE;
+                for (int x = 0; x < r.width; ++x) {
+                    int sr = half, sg = half, sb = half, sa = half;
+                    int in = y * stride + x * channels;
+                    for (int i = 0; i < taps; ++i) {
+                        int k = kernel[i];
+                        sr += sums[in] * k;
+                        sg += sums[in + 1] * k;
+                        sb += sums[in + 2] * k;
+                        if (channels == 4) {
+                            sa += sums[in + 3] * k;
+                        }
+                        in += stride;
+                    }
+                    int p = (sr >> shift) << 16 | (sg >> shift) << 8
+                            | (sb >> shift);
+                    if (channels == 4) {
+                        p |= (sa >> shift) << 24;
+                    }
+                    dst[offset + x] = p;
+                }
+            }
+        }
+
+        /**
+         * Sharpens one tile by taking its four neighbours from four times
+         * each pixel.
+         */
+        private void sharpen(int[] dst, Rectangle r) {
+            int ww = r.width + 2;
+            int[] window = gather(r, 1);
+            for (int y = 0; y < r.height; ++y) {
+                int offset = y * SIZE;
+                int in = (y + 1) * ww + 1;
+                for (int x = 0; x < r.width; ++x, ++in) {
+                    int c = window[in];
+                    int n = window[in - ww];
+                    int s = window[in + ww];
+                    int w = window[in - 1];
+                    int e = window[in + 1];
+                    int a = 255;
+                    if (transparent) {
+                        a = sharpen(c, n, s, w, e, 24, 255);
+                    }
+                    int p = sharpen(c, n, s, w, e, 16, a) << 16
+                            | sharpen(c, n, s, w, e, 8, a) << 8
+                            | sharpen(c, n, s, w, e, 0, a);
+                    dst[offset + x] = transparent ? a << 24 | p : p;
+                }
+            }
+        }
+
+        private static int sharpen(int c, int n, int s, int w, int e,
+                int shift, int max) {
+            int v = 5 * ((c >>> shift) & 0xFF) - ((n >>> shift) & 0xFF)
+                    - ((s >>> shift) & 0xFF) - ((w >>> shift) & 0xFF)
+                    - ((e >>> shift) & 0xFF);
+            return v < 0 ? 0 : v > max ? max : v;
+        }
+
+        /**
+         * Copies a region of the image and a margin around it into an array,
+         * repeating the edge pixels where the margin lies outside the image.
+         */
+        private int[] gather(Rectangle r, int margin) {
+            int ww = r.width + 2 * margin;
+            int wh = r.height + 2 * margin;
+            int[] window = new int[ww * wh];
+            int x1 = r.x - margin;
+            // The part of each row that lies inside the image
+            int left = Math.max(0, x1);
+            int right = Math.min(width, x1 + ww);
+            // Packed tiles are unpacked by each getTile, so the tiles are
+            // fetched once for all the rows
+            int firstCol = left / SIZE;
+            int firstRow = Math.max(0, r.y - margin) / SIZE;
+            int spanCols = (right - 1) / SIZE - firstCol + 1;
+            int spanRows = Math.min(height - 1, r.y - margin + wh - 1) / SIZE
+                    - firstRow + 1;
+            int[][] near = new int[spanCols * spanRows][];
+            for (int wy = 0; wy < wh; ++wy) {
+                int y = Math.min(height - 1, Math.max(0, r.y - margin + wy));
+                int out = wy * ww;
+                int row = y / SIZE;
+                int offset = (y % SIZE) * SIZE;
+                for (int x = left; x < right;) {
+                    int col = x / SIZE;
+                    int end = Math.min(right, (col + 1) * SIZE);
+                    int n = (row - firstRow) * spanCols + col - firstCol;
+                    if (near[n] == null) {
+                        near[n] = pixelsOf(source.getTile(col, row));
+                    }
+                    int[] p = near[n];
+                    System.arraycopy(p, offset + x - col * SIZE, window,
+                            out + x - x1, end - x);
+                    x = end;
+                }
+                int first = window[out + left - x1];
+                for (int x = out; x < out + left - x1; ++x) {
+                    window[x] = first;
+                }
+                int last = window[out + right - 1 - x1];
+                for (int x = out + right - x1; x < out + ww; ++x) {
+                    window[x] = last;
+                }
+            }
+            return window;
+        }
+    }
+
+    /**
+     * Splits a range of the tiles to work on in halves until one is left.
+     */
+    @SuppressWarnings("serial")
+    private static class TileTask extends RecursiveAction {
+        private final Job job;
+        private final int from, to;
+
+        TileTask(Job job, int from, int to) {
+            this.job = job;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new TileTask(job, from, middle), new TileTask(job,
+                        middle, to));
+            } else if (to > from && !job.cancelled) {
+                job.run(job.indices[from]);
+                job.done.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Returns integer Gaussian weights from -radius to radius that add up to
+     * exactly 1 << WEIGHT_BITS.
+     */
+    private static int[] gaussian(int radius) {
+        double sigma = Math.max(0.5, radius / 2.0);
+        double[] weights = new double[2 * radius + 1];
+        double total = 0;
+        for (int i = -radius; i <= radius; ++i) {
+            weights[i + radius] = Math.exp(-(i * i) / (2 * sigma * sigma));
+            total += weights[i + radius];
+        }
+        int[] kernel = new int[weights.length];
+        int sum = 0;
+        for (int i = 0; i < weights.length; ++i) {
+            kernel[i] = (int) Math.round(weights[i] / total
+                    * (1 << WEIGHT_BITS));
+            sum += kernel[i];
+        }
+        // Rounding is made up in the middle so flat areas stay the same
+        kernel[radius] += (1 << WEIGHT_BITS) - sum;
+        return kernel;
+    }
+
+    /**
+     * Returns what each channel value becomes with the given number of
+     * levels.
+     */
+    private static int[] posterizeTable(int levels) {
+        int[] table = new int[256];
+        for (int v = 0; v < 256; ++v) {
+            int level = v * levels / 256;
+            table[v] = (level * 255 + (levels - 1) / 2) / (levels - 1);
+        }
+        return table;
+    }
+
+    private static int[] pixelsOf(BufferedImage tile) {
+        return ((DataBufferInt) tile.getRaster().getDataBuffer()).getData();
+    }
+
+    private static synchronized ForkJoinPool sharedPool() {
+        if (sharedPool == null) {
+            sharedPool = new ForkJoinPool(Runtime.getRuntime()
+                    .availableProcessors());
+        }
+        return sharedPool;
+    }
+}
@@ -0,0 +1,329 @@
+import java.awt.Color;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+
+/**
+ * Fills the region of a {@link TiledImage} around a point whose pixels are
+ * close to the color of that point. Each channel of a pixel may differ from
+ * the seed by up to the tolerance.
+ * <p>
+ * This is a span fill: each row of the region is filled as a run, and the runs
+ * above and below it that still need filling are kept on a stack of ints
+ * rather than recursed into. Pixels are read and written straight in the tile
+ * arrays, a tile at a time, so a fill of any size needs no more stack than a
+ * small one and allocates only the tiles it paints and the stack itself.
+ */
+public class FloodFill {
+    private static final int SIZE = TiledImage.TILE_SIZE;
+    // Four ints per span on the stack: y, x1, x2 and the direction to go
+    private static final int SPAN = 4;
+
+    private final TiledImage image;
+    private final int width, height, cols;
+    private final int tolerance;
+    private final int color;
+    private final int alpha;
+    // The color as a pixel, if it is opaque
+    private final int solid;
+    private final boolean premultiplied;
+    // The pixels of each tile, replaced by the writable copy once painted
+    private final int[][] pixels;
+    private final boolean[] writable;
+    private int seed;
+    private int mask;
+    // Pixels already filled, kept only if a filled pixel could match again
+    private long[] filled;
+
+    private int[] stack = new int[SPAN * 64];
+    private int top = 0;
+    private int minX, minY, maxX, maxY;
+
+    /**
+     * @param tolerance
+     *            from 0, for exactly the seed color, to 255, for everything
+     */
+    public FloodFill(TiledImage image, Color color, int tolerance) {
+        this.image = image;
+        this.width = image.getWidth();
+        this.height = image.getHeight();
+        this.cols = image.getColumns();
+        this.tolerance = tolerance;
+        this.color = color.getRGB();
+        this.alpha = color.getAlpha();
+        this.premultiplied = image.isTransparent();
+        this.solid = premultiplied ? this.color : this.color & 0xFFFFFF;
+        this.pixels = new int[cols * image.getRows()][];
+        this.writable = new boolean[pixels.length];
+    }
+
+    /**
+     * Fills the region around (x, y). Must be called with the image
+     * unchanging.
+     *
+     * @return the region of the image that changed, or null if nothing did
+     */
+    public Rectangle fill(int x, int y) {
+        if (x < 0 || y < 0 || x >= width || y >= height) {
+            return null;
+        }
+        // The alpha byte of an opaque tile is undefined
+        mask = premultiplied ? 0xFFFFFFFF : 0xFFFFFF;
+        seed = read(x, y) & mask;
+        if (alpha == 255 && !matches(paint(seed))) {
+            // Filled pixels will not match, so nothing needs to mark them
+            filled = null;
+        } else {
+            filled = new long[(int) (((long) width * height + 63) >> 6)];
+        }
+        minX = Integer.MAX_VALUE;
+        minY = Integer.MAX_VALUE;
+        maxX = -1;
+        maxY = -1;
+
+        // The seed row is scanned from both of these, once going each way
+        push(y, x, x, 1);
+        push(y + 1, x, x, -1);
+        while (top > 0) {
+            top -= SPAN;
+            int dy = stack[top + 3];
+            int row = stack[top] + dy;
+            int x1 = stack[top + 1];
+            int x2 = stack[top + 2];
+            scan(row, x1, x2, dy);
+        }
+        if (maxX < 0) {
+            return null;
+        }
+        return new Rectangle(minX, minY, maxX - minX + 1, maxY - minY + 1);
+    }
+
+    /**
+     * Fills the runs in a row that reach into x1 to x2, which were filled in
+     * the row before it, and pushes the spans next to them still to be
+     * looked at.
+     */
+    private void scan(int y, int x1, int x2, int dy) {
+        // Run left from x1
+        int x = fillLeft(x1, y);
+        int left;
+        if (x < x1) {
+            left = x + 1;
+            extend(left, x1, y);
+            if (left < x1) {
+                // Leaked out to the left, so go back the other way too
+                push(y, left, x1 - 1, -dy);
+            }
+            x = x1 + 1;
+        } else {
+            x = skip(x1 + 1, x2, y);
+            left = x;
+            if (x > x2) {
+                return;
+            }
+        }
+        do {
+            int start = x;
+            x = fillRight(x, y);
+            extend(start, x - 1, y);
+            push(y, left, x - 1, dy);
+            if (x > x2 + 1) {
+                // Leaked out to the right
+                push(y, x2 + 1, x - 1, -dy);
+            }
+            x = skip(x + 1, x2, y);
+            left = x;
+        } while (x <= x2);
+    }
+
+    /**
+     * Fills leftwards from x while the pixels match.
+     *
+     * @return the last x that was not filled
+     */
+    private int fillLeft(int x, int y) {
+        int offset = (y % SIZE) * SIZE;
+        int base = (y / SIZE) * cols;
+        while (x >= 0) {
+            int col = x / SIZE;
+            int tile = base + col;
+            int start = col * SIZE;
+            int[] p = tileFor(tile);
+            if (!inside(p[offset + x - start], x, y)) {
+                return x;
+            }
+            if (!writable[tile]) {
+                p = makeWritable(tile);
+            }
+            for (; x >= start; --x) {
+                int i = offset + x - start;
+                if (!inside(p[i], x, y)) {
+                    return x;
+                }
+                p[i] = paint(p[i]);
+                mark(x, y);
+            }
+        }
+        return x;
+    }
+
+    /**
+     * Fills rightwards from x while the pixels match.
+     *
+     * @return the first x that was not filled
+     */
+    private int fillRight(int x, int y) {
+        int offset = (y % SIZE) * SIZE;
+        int base = (y / SIZE) * cols;
+        while (x < width) {
+            int col = x / SIZE;
+            int tile = base + col;
+            int start = col * SIZE;
+            int end = Math.min(width, start + SIZE);
+            int[] p = tileFor(tile);
+            if (!inside(p[offset + x - start], x, y)) {
+                return x;
+            }
+            if (!writable[tile]) {
+                p = makeWritable(tile);
+            }
+            for (; x < end; ++x) {
+                int i = offset + x - start;
+                if (!inside(p[i], x, y)) {
+                    return x;
+                }
+                p[i] = paint(p[i]);
+                mark(x, y);
+            }
+        }
+        return x;
+    }
+
+    /**
+     * Skips pixels from x up to x2 that do not match.
+     *
+     * @return the first x that matches, or x2 + 1
+     */
+    private int skip(int x, int x2, int y) {
+        int offset = (y % SIZE) * SIZE;
+        int base = (y / SIZE) * cols;
+        while (x <= x2) {
+            int col = x / SIZE;
+            int start = col * SIZE;
+            int end = Math.min(x2 + 1, start + SIZE);
+            int[] p = tileFor(base + col);
+            for (; x < end; ++x) {
+                if (inside(p[offset + x - start], x, y)) {
+                    return x;
+                }
+            }
+        }
+        return x;
+    }
+
+    private boolean inside(int p, int x, int y) {
+        if (!matches(p & mask)) {
+            return false;
+        }
+        if (filled == null) {
+            return true;
+        }
+        long i = (long) y * width + x;
+        return (filled[(int) (i >> 6)] & 1L << i) == 0;
+    }
+
+    private boolean matches(int p) {
+        if (p == seed) {
+            return true;
+        }
+        if (tolerance == 0) {
+            return false;
+        }
+        for (int shift = 0; shift < 32; shift += 8) {
+            int a = (p >>> shift) & 0xFF;
+            int b = (seed >>> shift) & 0xFF;
+            if (a - b > tolerance || b - a > tolerance) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the fill color blended over a pixel.
+     */
+    private int paint(int p) {
+        if (alpha == 255) {
+            return solid;
+        }
+        int na = 255 - alpha;
+        int r = (((p >> 16) & 0xFF) * na + ((color >> 16) & 0xFF) * alpha
+                + 127) / 255;
+        int g = (((p >> 8) & 0xFF) * na + ((color >> 8) & 0xFF) * alpha
+                + 127) / 255;
+        int b = ((p & 0xFF) * na + (color & 0xFF) * alpha + 127) / 255;
+        if (!premultiplied) {
+            return r << 16 | g << 8 | b;
+        }
+        int a = ((p >>> 24) * na + 255 * alpha + 127) / 255;
+        return a << 24 | r << 16 | g << 8 | b;
+    }
+
+    private void mark(int x, int y) {
+        if (filled != null) {
+            long i = (long) y * width + x;
+            filled[(int) (i >> 6)] |= 1L << i;
+        }
+    }
+
+    private void extend(int x1, int x2, int y) {
+        if (x2 < x1) {
+            return;
+        }
+        minX = Math.min(minX, x1);
+        maxX = Math.max(maxX, x2);
+        minY = Math.min(minY, y);
+        maxY = Math.max(maxY, y);
+    }
+
+    private void push(int y, int x1, int x2, int dy) {
+        if (y + dy < 0 || y + dy >= height) {
+            return;
+        }
+        if (top + SPAN > stack.length) {
+            int[] grown = new int[stack.length * 2];
+            System.arraycopy(stack, 0, grown, 0, top);
+            stack = grown;
+        }
+        stack[top] = y;
+        stack[top + 1] = x1;
+        stack[top + 2] = x2;
+        stack[top + 3] = dy;
+        top += SPAN;
+    }
+
+    private int read(int x, int y) {
+        int[] p = tileFor((y / SIZE) * cols + x / SIZE);
+        return p[(y % SIZE) * SIZE + x % SIZE];
+    }
+
+    private int[] tileFor(int tile) {
+        int[] p = pixels[tile];
+        if (p == null) {
+            p = pixelsOf(image.getTile(tile % cols, tile / cols));
+            pixels[tile] = p;
+        }
+        return p;
+    }
+
+    private int[] makeWritable(int tile) {
+        int[] p = pixelsOf(image.getWritableTile(tile % cols, tile / cols));
+        pixels[tile] = p;
+        writable[tile] = true;
+        return p;
+    }
+
+    private static int[] pixelsOf(BufferedImage tile) {
+        return ((DataBufferInt) tile.getRaster().getDataBuffer()).getData();
+    }
+}
@@ -0,0 +1,28 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Recorded by the canvas for each time it paints.
+ */
+@Name("doodler.Frame")
+@Label("Frame")
+@Category("Doodler")
+@Description("A repaint of the canvas")
+public class FrameEvent extends jdk.jfr.Event {
+    @Label("Pixels")
+    @Description("Pixels of the image copied to the screen")
+    public long pixels;
+
+    @Label("Inputs Presented")
+    @Description("Input events first shown by this frame")
+    public int inputs;
+
+    @Label("Oldest Input Age")
+    @Description("Time from the oldest input shown by this frame being"
+            + " received to the frame being painted")
+    @Timespan(Timespan.NANOSECONDS)
+    public long oldestInputAge;
+}
@@ -0,0 +1,185 @@
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.event.IIOReadUpdateListener;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Opens an image file without decoding it into the heap up front. The size is
+ * known before any pixels are read, a small preview can be read quickly, and
+ * large images are decoded straight into the tiles of a {@link TiledImage}.
+ */
+public class ImageLoader {
+    public interface Listener {
+        /**
+         * Called from the decoding thread whenever more rows are in place.
+         */
+        void rowsLoaded(int y, int height);
+    }
+
+    private static final int PREVIEW_SIZE = 1024;
+    // Images up to this many pixels are decoded in one piece
+    private static final long STREAMING_THRESHOLD = 16L << 20;
+    // The share of the free heap an opened image may take up
+    private static final double MEMORY_SHARE = 0.75;
+    private static final int BYTES_PER_PIXEL = 4;
+
+    private final ImageInputStream input;
+    private final ImageReader reader;
+    private final int width, height;
+
+    public ImageLoader(File file) throws IOException {
+        input = ImageIO.createImageInputStream(file);
+        if (input == null) {
+            throw new IOException("Could not open " + file.getName() + ".");
+        }
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+        if (!readers.hasNext()) {
+            input.close();
+            throw new IOException("This file is not an image.");
+        }
+        reader = readers.next();
+        reader.setInput(input);
+        try {
+            width = reader.getWidth(0);
+            height = reader.getHeight(0);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Returns whether the image is large enough to be streamed into tiles
+     * rather than decoded in one piece.
+     */
+    public boolean isLarge() {
+        return (long) width * height > STREAMING_THRESHOLD;
+    }
+
+    /**
+     * Refuses images that would not fit in the memory left to the program,
+     * or that have more pixels than one raster can address.
+     */
+    public void checkMemory() throws IOException {
+        // The tiles are read and written as one flat raster of int pixels,
+        // which cannot hold more than Integer.MAX_VALUE of them
+        if ((long) width * height > Integer.MAX_VALUE) {
+            throw new IOException(String.format(
+                    "This image is too large to open (%d x %d).  Doodler can"
+                            + " open images of up to %d pixels.",
+                    width, height, Integer.MAX_VALUE));
+        }
+        Runtime rt = Runtime.getRuntime();
+        long free = rt.maxMemory() - (rt.totalMemory() - rt.freeMemory());
+        long needed = tileBytes();
+        if (!isLarge()) {
+            // The whole decoded image is held next to the tiles for a moment
+            needed += (long) width * height * BYTES_PER_PIXEL;
+        }
+        if (needed > free * MEMORY_SHARE) {
+            throw new IOException(String.format(
+                    "This image is too large to open (%d x %d).  It needs"
+                            + " about %d MB but only %d MB are available.",
+                    width, height, needed >> 20, free >> 20));
+        }
+    }
+
+    /**
+     * Reads the image subsampled so that it is at most about
+     * {@value #PREVIEW_SIZE} pixels on its longer side.
+     */
+    public BufferedImage readPreview() throws IOException {
+        if (reader.getNumThumbnails(0) > 0) {
+            return reader.readThumbnail(0, 0);
+        }
+        int step = Math.max(1, (Math.max(width, height) + PREVIEW_SIZE - 1)
+                / PREVIEW_SIZE);
+        ImageReadParam param = reader.getDefaultReadParam();
+        param.setSourceSubsampling(step, step, 0, 0);
+        return reader.read(0, param);
+    }
+
+    /**
+     * Decodes the whole image in one piece.
+     */
+    public BufferedImage read() throws IOException {
+        return reader.read(0);
+    }
+
+    /**
+     * Decodes the image directly into the tiles of the target, which must be
+     * the same size as the image.
+     */
+    public void readInto(TiledImage target, final Listener listener)
+            throws IOException {
+        ImageReadParam param = reader.getDefaultReadParam();
+        param.setDestination(target.createView());
+        reader.addIIOReadUpdateListener(new IIOReadUpdateListener() {
+            @Override
+            public void passStarted(ImageReader source, BufferedImage image,
+                    int pass, int minPass, int maxPass, int minX, int minY,
+                    int periodX, int periodY, int[] bands) {
+            }
+
+            @Override
+            public void imageUpdate(ImageReader source, BufferedImage image,
+                    int minX, int minY, int width, int height, int periodX,
+                    int periodY, int[] bands) {
+                listener.rowsLoaded(minY, (height - 1) * periodY + 1);
+            }
+
+            @Override
+            public void passComplete(ImageReader source, BufferedImage image) {
+            }
+
+            @Override
+            public void thumbnailPassStarted(ImageReader source,
+                    BufferedImage thumbnail, int pass, int minPass,
+                    int maxPass, int minX, int minY, int periodX,
+                    int periodY, int[] bands) {
+            }
+
+            @Override
+            public void thumbnailUpdate(ImageReader source,
+                    BufferedImage thumbnail, int minX, int minY, int width,
+                    int height, int periodX, int periodY, int[] bands) {
+            }
+
+            @Override
+            public void thumbnailPassComplete(ImageReader source,
+                    BufferedImage thumbnail) {
+            }
+        });
+        reader.read(0, param);
+    }
+
+    public void close() {
+        reader.dispose();
+        try {
+            input.close();
+        } catch (IOException e) {
+            // Nothing more can be done with the stream
+        }
+    }
+
+    private long tileBytes() {
+        long cols = (width + TiledImage.TILE_SIZE - 1) / TiledImage.TILE_SIZE;
+        long rows = (height + TiledImage.TILE_SIZE - 1) / TiledImage.TILE_SIZE;
+        return cols * rows * TiledImage.TILE_SIZE * TiledImage.TILE_SIZE
+                * BYTES_PER_PIXEL;
+    }
+}
@@ -0,0 +1,112 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A lock-free ring buffer of mouse events for exactly one producer and one
+ * consumer. Each event is packed into a single long, and kept with the time it
+ * was received, so that queueing does not allocate.
+ */
+public class InputBuffer {
+    public static final int PRESS = 1;
+    public static final int DRAG = 2;
+    public static final int RELEASE = 3;
+
+    private static final int COORD_BITS = 30;
+    private static final long COORD_MASK = (1L << COORD_BITS) - 1;
+    private static final int KIND_SHIFT = COORD_BITS * 2;
+
+    private final long[] events;
+    private final long[] times;
+    private final int mask;
+
+    // Index of the next event to read and the next slot to write
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private volatile Thread waiter;
+
+    public InputBuffer(int capacity) {
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException(
+                    "Capacity must be a power of two: " + capacity);
+        }
+        events = new long[capacity];
+        times = new long[capacity];
+        mask = capacity - 1;
+    }
+
+    public static long pack(int kind, int x, int y) {
+        return ((long) kind << KIND_SHIFT) | ((x & COORD_MASK) << COORD_BITS)
+                | (y & COORD_MASK);
+    }
+
+    public static int kind(long event) {
+        return (int) (event >>> KIND_SHIFT);
+    }
+
+    public static int x(long event) {
+        // Shift the sign bit of the field to the top to sign extend it
+        return (int) (event << (64 - KIND_SHIFT) >> (64 - COORD_BITS));
+    }
+
+    public static int y(long event) {
+        return (int) (event << (64 - COORD_BITS) >> (64 - COORD_BITS));
+    }
+
+    /**
+     * Appends an event. Only the producer thread may call this. If the buffer
+     * is full the producer yields until the consumer catches up.
+     *
+     * @param time
+     *            when the event was received, from {@link System#nanoTime()}
+     */
+    public void put(long event, long time) {
+        long t = tail.get();
+        while (t - head.get() == events.length) {
+            Thread.yield();
+        }
+        events[(int) t & mask] = event;
+        times[(int) t & mask] = time;
+        tail.set(t + 1);
+
+        // The volatile write of tail above orders this read, so a consumer
+        // that parks after checking tail is always seen here
+        Thread w = waiter;
+        if (w != null) {
+            LockSupport.unpark(w);
+        }
+    }
+
+    public int size() {
+        return (int) (tail.get() - head.get());
+    }
+
+    /**
+     * Moves up to dst.length queued events into dst and their receive times
+     * into dstTimes, blocking while the buffer is empty. Only the consumer
+     * thread may call this.
+     *
+     * @return the number of events copied, always at least one
+     */
+    public int take(long[] dst, long[] dstTimes) throws InterruptedException {
+        long h = head.get();
+        long t;
+        while ((t = tail.get()) == h) {
+            waiter = Thread.currentThread();
+            if (tail.get() == h) {
+                LockSupport.park(this);
+            }
+            waiter = null;
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+
+        int n = (int) Math.min(t - h, dst.length);
+        for (int i = 0; i < n; ++i) {
+            dst[i] = events[(int) (h + i) & mask];
+            dstTimes[i] = times[(int) (h + i) & mask];
+        }
+        head.lazySet(h + n);
+        return n;
+    }
+}
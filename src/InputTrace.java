@@ -0,0 +1,271 @@
+import java.awt.Color;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The mouse input a canvas received, with when it arrived and the tool
+ * settings in effect, so that a drawing session can be played back by
+ * {@link TraceReplay} to measure and check the drawing pipeline.
+ * <p>
+ * A trace file is the magic bytes, the image width and height as ints and
+ * the storage ordinal as a byte, then records, big-endian. Each record starts
+ * with a type byte. A press, drag or release has the {@link InputBuffer} kind
+ * as its type, then the nanoseconds since recording started as a long and
+ * the image coordinates as ints. A {@link #BRUSH} record sets the tool
+ * settings for the input after it: tool ordinal byte, ARGB int, shape ordinal
+ * byte, tool size and fill tolerance ints, and a flags byte. A record cut
+ * short at the end is ignored.
+ */
+public class InputTrace {
+    public static final String EXTENSION = ".trace";
+
+    private static final byte[] MAGIC = "DOODLET1"
+            .getBytes(StandardCharsets.US_ASCII);
+    private static final int BRUSH = 4;
+    private static final int FLAG_PREVIEW = 1;
+    private static final int FLAG_DABS = 2;
+
+    /**
+     * Writes input to a trace file as it arrives. Errors are kept until the
+     * recorder is closed, so recording never gets in the way of drawing.
+     */
+    public static class Recorder {
+        private final DataOutputStream out;
+        private final long start = System.nanoTime();
+        private BrushState lastBrush = null;
+        private long events = 0;
+        private IOException error = null;
+
+        /**
+         * Starts a trace of input on an image of the given size and storage.
+         */
+        public Recorder(File file, int width, int height,
+                TiledImage.Storage storage) throws IOException {
+            out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(file)));
+            boolean done = false;
+            try {
+                out.write(MAGIC);
+                out.writeInt(width);
+                out.writeInt(height);
+                out.writeByte(storage.ordinal());
+                done = true;
+            } finally {
+                if (!done) {
+                    out.close();
+                }
+            }
+        }
+
+        /**
+         * Records a press, drag or release.
+         *
+         * @param kind
+         *            one of the {@link InputBuffer} kinds
+         * @param time
+         *            when the input arrived, from {@link System#nanoTime()}
+         * @param brush
+         *            the tool settings when the input arrived
+         */
+        public synchronized void record(int kind, int x, int y, long time,
+                BrushState brush) {
+            if (error != null) {
+                return;
+            }
+            try {
+                // Settings never change in place, so a new one is a change
+                if (brush != lastBrush) {
+                    writeBrush(brush);
+                    lastBrush = brush;
+                }
+                out.writeByte(kind);
+                out.writeLong(Math.max(0, time - start));
+                out.writeInt(x);
+                out.writeInt(y);
+                ++events;
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+
+        public synchronized long getEvents() {
+            return events;
+        }
+
+        /**
+         * Finishes the trace.
+         *
+         * @throws IOException
+         *             if it could not all be written
+         */
+        public synchronized void close() throws IOException {
+            try {
+                out.close();
+            } catch (IOException e) {
+                if (error == null) {
+                    error = e;
+                }
+            }
+            if (error != null) {
+                throw error;
+            }
+        }
+
+        private void writeBrush(BrushState brush) throws IOException {
+            out.writeByte(BRUSH);
+            out.writeByte(brush.getTool().ordinal());
+            out.writeInt(brush.getColor().getRGB());
+            out.writeByte(brush.getShape().ordinal());
+            out.writeInt(brush.getToolSize());
+            out.writeInt(brush.getFillTolerance());
+            out.writeByte((brush.isPreviewStrokes() ? FLAG_PREVIEW : 0)
+                    | (brush.getPenEngine() == StrokeRenderer.PenEngine.DABS
+                            ? FLAG_DABS : 0));
+        }
+    }
+
+    private final int width, height;
+    private final TiledImage.Storage storage;
+    private final int count;
+    // Packed with InputBuffer.pack, with when each arrived since the start
+    // and the settings in effect for it
+    private final long[] events;
+    private final long[] times;
+    private final BrushState[] brushes;
+
+    private InputTrace(int width, int height, TiledImage.Storage storage,
+            int count, long[] events, long[] times, BrushState[] brushes) {
+        this.width = width;
+        this.height = height;
+        this.storage = storage;
+        this.count = count;
+        this.events = events;
+        this.times = times;
+        this.brushes = brushes;
+    }
+
+    /**
+     * Reads a whole trace file.
+     */
+    public static InputTrace read(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)));
+        try {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException("This file is not an input trace.");
+            }
+            int width = in.readInt();
+            int height = in.readInt();
+            TiledImage.Storage storage = TiledImage.Storage.values()[in
+                    .readUnsignedByte()];
+
+            int count = 0;
+            long[] events = new long[1024];
+            long[] times = new long[1024];
+            BrushState[] brushes = new BrushState[1024];
+            BrushState brush = null;
+            try {
+                while (true) {
+                    int type = in.read();
+                    if (type < 0) {
+                        break;
+                    }
+                    if (type == BRUSH) {
+                        brush = readBrush(in);
+                        continue;
+                    }
+                    if (type < InputBuffer.PRESS || type > InputBuffer.RELEASE
+                            || brush == null) {
+                        throw new IOException("This input trace is damaged.");
+                    }
+                    long time = in.readLong();
+                    int x = in.readInt();
+                    int y = in.readInt();
+                    if (count == events.length) {
+                        events = Arrays.copyOf(events, count * 2);
+                        times = Arrays.copyOf(times, count * 2);
+                        brushes = Arrays.copyOf(brushes, count * 2);
+                    }
+                    events[count] = InputBuffer.pack(type, x, y);
+                    times[count] = time;
+                    brushes[count] = brush;
+                    ++count;
+                }
+            } catch (EOFException e) {
+                // Recording was cut short in the middle of a record
+            }
+            return new InputTrace(width, height, storage, count, events,
+                    times, brushes);
+        } catch (RuntimeException e) {
+            throw new IOException("This input trace is damaged.", e);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static BrushState readBrush(DataInputStream in)
+            throws IOException {
+        Tool tool = Tool.values()[in.readUnsignedByte()];
+        Color color = new Color(in.readInt(), true);
+        Shape shape = Shape.values()[in.readUnsignedByte()];
+        int size = in.readInt();
+        int tolerance = in.readInt();
+        int flags = in.readUnsignedByte();
+        return new BrushState(tool, color, shape, size, tolerance,
+                (flags & FLAG_PREVIEW) != 0,
+                (flags & FLAG_DABS) != 0 ? StrokeRenderer.PenEngine.DABS
+                        : StrokeRenderer.PenEngine.JAVA2D);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public TiledImage.Storage getStorage() {
+        return storage;
+    }
+
+    /**
+     * Returns the number of presses, drags and releases.
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Returns an input packed with {@link InputBuffer#pack(int, int, int)}.
+     */
+    public long getEvent(int i) {
+        return events[i];
+    }
+
+    /**
+     * Returns when an input arrived, in nanoseconds since recording started.
+     */
+    public long getTime(int i) {
+        return times[i];
+    }
+
+    /**
+     * Returns the tool settings in effect when an input arrived. The same
+     * object is returned for inputs until the settings change.
+     */
+    public BrushState getBrush(int i) {
+        return brushes[i];
+    }
+}
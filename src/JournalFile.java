@@ -0,0 +1,408 @@
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * A doodle saved as a journal of {@link StrokeJournal} records. A new file
+ * holds a header and a checkpoint of the whole image; saving to it again only
+ * appends the records made since, with a fresh checkpoint every so often.
+ * Opening it reads the last checkpoint and replays the records after it.
+ * <p>
+ * A save that was cut short leaves a torn record at the end, which is found by
+ * its length or checksum and ignored.
+ */
+public class JournalFile {
+    public static final String EXTENSION = ".doodle";
+
+    private static final byte[] MAGIC = "DOODLEJ1"
+            .getBytes(StandardCharsets.US_ASCII);
+    // A checkpoint is appended once this many strokes or bytes follow the last
+    private static final int CHECKPOINT_STROKES = 256;
+    private static final long CHECKPOINT_BYTES = 4L << 20;
+
+    /**
+     * The image read from a journal, and where appending to it would start.
+     */
+    public static class Contents {
+        private final TiledImage image;
+        private final File file;
+        private final long length;
+        private final int strokes;
+        private final long bytes;
+
+        private Contents(TiledImage image, File file, long length,
+                int strokes, long bytes) {
+            this.image = image;
+            this.file = file;
+            this.length = length;
+            this.strokes = strokes;
+            this.bytes = bytes;
+        }
+
+        public TiledImage getImage() {
+            return image;
+        }
+
+        /**
+         * Returns a journal that later saves of the image can be appended to.
+         *
+         * @param generation
+         *            the generation of the canvas journal once the image was
+         *            put on the canvas
+         */
+        public JournalFile attach(long generation) {
+            return new JournalFile(file, generation, length, strokes, bytes);
+        }
+    }
+
+    private final File file;
+    private final long generation;
+    private long length;
+    private int strokesSinceCheckpoint;
+    private long bytesSinceCheckpoint;
+
+    private JournalFile(File file, long generation, long length, int strokes,
+            long bytes) {
+        this.file = file;
+        this.generation = generation;
+        this.length = length;
+        this.strokesSinceCheckpoint = strokes;
+        this.bytesSinceCheckpoint = bytes;
+    }
+
+    public static boolean isJournal(File f) {
+        return f.getName().toLowerCase().endsWith(EXTENSION);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Returns the length of the journal's contents, which is where the next
+     * records go.
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * Writes a new journal holding just a checkpoint of the image.
+     *
+     * @param target
+     *            where the journal will end up once the stream is finished
+     * @param generation
+     *            the generation of the canvas journal the image belongs to
+     * @return a journal that later records can be appended to
+     */
+    public static JournalFile write(OutputStream out, File target,
+            TiledImage image, long generation) throws IOException {
+        ByteArrayOutputStream checkpoint = new ByteArrayOutputStream();
+        StrokeJournal.writeCheckpoint(checkpoint, image);
+        out.write(MAGIC);
+        checkpoint.writeTo(out);
+        return new JournalFile(target, generation, MAGIC.length
+                + checkpoint.size(), 0, 0);
+    }
+
+    /**
+     * Returns whether records can be appended to this journal to save them
+     * to the given file. Otherwise the whole image has to be written.
+     */
+    public boolean canAppend(File target, StrokeJournal.Records records) {
+        return target.getAbsoluteFile().equals(file.getAbsoluteFile())
+                && records.isComplete()
+                && records.getGeneration() == generation
+                && file.length() == length;
+    }
+
+    /**
+     * Appends records to the journal, followed by a checkpoint of the image
+     * if one is due.
+     *
+     * @param image
+     *            the image as it was after the records
+     */
+    public void append(StrokeJournal.Records records, TiledImage image)
+            throws IOException {
+        byte[] data = records.getData();
+        int strokes = strokesSinceCheckpoint + records.getStrokes();
+        long bytes = bytesSinceCheckpoint + data.length;
+
+        ByteArrayOutputStream checkpoint = null;
+        if (strokes >= CHECKPOINT_STROKES || bytes >= CHECKPOINT_BYTES) {
+            checkpoint = new ByteArrayOutputStream();
+            StrokeJournal.writeCheckpoint(checkpoint, image);
+            strokes = 0;
+            bytes = 0;
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(length);
+            raf.write(data);
+            if (checkpoint != null) {
+                raf.write(checkpoint.toByteArray());
+            }
+            raf.getFD().sync();
+            length = raf.getFilePointer();
+        } finally {
+            raf.close();
+        }
+        strokesSinceCheckpoint = strokes;
+        bytesSinceCheckpoint = bytes;
+    }
+
+    /**
+     * Reads a journal, starting from its last checkpoint.
+     */
+    public static Contents open(File file) throws IOException {
+        return open(file, new StrokeRenderer(Tool.PEN, Color.BLACK,
+                Shape.CIRCLE, 0));
+    }
+
+    /**
+     * Reads a journal, replaying its strokes with the given renderer. The
+     * renderer's brush is left as the last stroke set it.
+     */
+    public static Contents open(File file, StrokeRenderer renderer)
+            throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            byte[] magic = new byte[MAGIC.length];
+            if (raf.length() < MAGIC.length
+                    || raf.read(magic) != MAGIC.length
+                    || !Arrays.equals(magic, MAGIC)) {
+                throw new IOException("This file is not a doodle journal.");
+            }
+
+            // Find the checkpoints from the record headers alone
+            byte[] header = new byte[StrokeJournal.HEADER_SIZE];
+            long end = raf.length();
+            long pos = MAGIC.length;
+            long[] checkpoints = new long[4];
+            int count = 0;
+            while (pos + header.length <= end) {
+                raf.seek(pos);
+                raf.readFully(header);
+                long next = pos + header.length
+                        + (StrokeJournal.getInt(header, 1) & 0xFFFFFFFFL);
+                if (header[0] == 0 || next > end) {
+                    break;
+                }
+                if (header[0] == StrokeJournal.CHECKPOINT) {
+                    if (count == checkpoints.length) {
+                        checkpoints = Arrays.copyOf(checkpoints, count * 2);
+                    }
+                    checkpoints[count++] = pos;
+                }
+                pos = next;
+            }
+
+            // Start from the last checkpoint that is intact. The journal ends
+            // at a damaged one, so the records after it are dropped too.
+            long checkpoint = -1;
+            while (count > 0 && checkpoint < 0) {
+                long candidate = checkpoints[--count];
+                if (readRecord(raf, candidate, header, end) != null) {
+                    checkpoint = candidate;
+                }
+            }
+            if (checkpoint < 0) {
+                throw new IOException("This doodle journal is damaged.");
+            }
+
+            TiledImage image = null;
+            int strokes = 0;
+            long bytes = 0;
+            pos = checkpoint;
+            while (pos + header.length <= end) {
+                byte[] payload = readRecord(raf, pos, header, end);
+                if (payload == null) {
+                    break;
+                }
+                int size = payload.length;
+
+                Reader in = new Reader(payload);
+                switch (header[0]) {
+                case StrokeJournal.CHECKPOINT:
+                    // Only the first record read is a checkpoint; any later
+                    // one failed its checksum above and ends this loop
+                    image = new TiledImage(in.varint(), in.varint());
+                    readTiles(in, image);
+                    renderer.setTarget(image, null);
+                    break;
+                case StrokeJournal.TILES:
+                    readTiles(in, image);
+                    bytes += header.length + size;
+                    break;
+                case StrokeJournal.STROKE:
+                    replayStroke(in, renderer);
+                    ++strokes;
+                    bytes += header.length + size;
+                    break;
+                default:
+                    // Written by a later version; there is nothing to replay
+                    bytes += header.length + size;
+                    break;
+                }
+                pos += header.length + size;
+            }
+            if (image == null) {
+                throw new IOException("This doodle journal is damaged.");
+            }
+            // Finishes a stroke that was cut short at the end
+            renderer.setTarget(image, null);
+            return new Contents(image, file, pos, strokes, bytes);
+        } catch (RuntimeException e) {
+            // A record passed its checksum but did not make sense
+            throw new IOException("This doodle journal is damaged.", e);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Reads the record at the given position into the header and returns
+     * its payload.
+     *
+     * @return the payload, or null if the record is torn or its checksum
+     *         does not match
+     */
+    private static byte[] readRecord(RandomAccessFile raf, long pos,
+            byte[] header, long end) throws IOException {
+        if (pos + header.length > end) {
+            return null;
+        }
+        raf.seek(pos);
+        raf.readFully(header);
+        int size = StrokeJournal.getInt(header, 1);
+        if (header[0] == 0 || size < 0 || pos + header.length + size > end) {
+            return null;
+        }
+        byte[] payload = new byte[size];
+        raf.readFully(payload);
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        if ((int) crc.getValue() != StrokeJournal.getInt(header, 5)) {
+            return null;
+        }
+        return payload;
+    }
+
+    private static void readTiles(Reader in, TiledImage image) {
+        int count = in.varint();
+        for (int i = 0; i < count; ++i) {
+            int col = in.varint();
+            int row = in.varint();
+            int length = in.varint();
+            if (length == 0) {
+                image.setTile(col, row, null);
+            } else {
+                BufferedImage tile = image.getWritableTile(col, row);
+                TileCodec.decompress(in.bytes(length), tile);
+            }
+        }
+    }
+
+    /**
+     * Draws a stroke record again through the same renderer that drew it, so
+     * it comes out the same.
+     */
+    private static void replayStroke(Reader in, StrokeRenderer renderer) {
+        Tool tool = Tool.values()[in.next()];
+        renderer.setTool(tool);
+        renderer.setColor(new Color((int) in.varlong(), true));
+        renderer.setShape(Shape.values()[in.next()]);
+        renderer.setToolSize(in.varint());
+        if (tool == Tool.FILL) {
+            renderer.setFillTolerance(in.varint());
+        }
+        int flags = in.next();
+        renderer.setPreviewStrokes((flags & StrokeJournal.FLAG_PREVIEW) != 0);
+        renderer.setPenEngine((flags & StrokeJournal.FLAG_DABS) != 0
+                ? StrokeRenderer.PenEngine.DABS
+                : StrokeRenderer.PenEngine.JAVA2D);
+        renderer.setSpacedStamps((flags & StrokeJournal.FLAG_SPACED) != 0);
+
+        int count = in.varint();
+        int[] xs = new int[count];
+        int[] ys = new int[count];
+        int x = 0, y = 0;
+        for (int i = 0; i < count; ++i) {
+            x += in.signed();
+            y += in.signed();
+            xs[i] = x;
+            ys[i] = y;
+        }
+        int flushes = in.varint();
+        int nextFlush = flushes > 0 ? in.varint() : -1;
+
+        boolean released = (flags & StrokeJournal.FLAG_UNRELEASED) == 0;
+        int drags = released ? count - 1 : count;
+        renderer.press(xs[0], ys[0]);
+        for (int i = 1; i < drags; ++i) {
+            renderer.drag(xs[i], ys[i]);
+            // Pieces of the stroke were drawn after this many points
+            while (nextFlush == i + 1) {
+                renderer.flush();
+                --flushes;
+                nextFlush = flushes > 0 ? nextFlush + in.varint() : -1;
+            }
+        }
+        if (released) {
+            renderer.release(xs[count - 1], ys[count - 1]);
+        }
+        // Otherwise the next press or the end of the journal ends the stroke
+        renderer.flush();
+    }
+
+    /**
+     * Reads the numbers in a record payload.
+     */
+    private static class Reader {
+        private final byte[] data;
+        private int pos = 0;
+
+        Reader(byte[] data) {
+            this.data = data;
+        }
+
+        int next() {
+            return data[pos++] & 0xFF;
+        }
+
+        long varlong() {
+            long v = 0;
+            for (int shift = 0;; shift += 7) {
+                int b = next();
+                v |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return v;
+                }
+            }
+        }
+
+        int varint() {
+            return (int) varlong();
+        }
+
+        int signed() {
+            int v = varint();
+            return (v >>> 1) ^ -(v & 1);
+        }
+
+        byte[] bytes(int length) {
+            byte[] b = Arrays.copyOfRange(data, pos, pos + length);
+            pos += length;
+            return b;
+        }
+    }
+}
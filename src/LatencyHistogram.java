@@ -0,0 +1,168 @@
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+/**
+ * A histogram of durations in nanoseconds with log-linear buckets, in the
+ * manner of HdrHistogram. Values are kept to within 1% across the whole range
+ * of a long in a fixed few kilobytes. Not thread-safe.
+ */
+public class LatencyHistogram {
+    // 128 linear sub-buckets per power of two keeps the error under 1%
+    private static final int SUB_BITS = 7;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int HALF_COUNT = SUB_COUNT / 2;
+    private static final int TICKS_PER_HALF = 5;
+
+    private final long[] counts = new long[SUB_COUNT + (64 - SUB_BITS)
+            * HALF_COUNT];
+    private long total = 0;
+    private long min = Long.MAX_VALUE, max = 0;
+    private double sum = 0, sumOfSquares = 0;
+
+    public LatencyHistogram() {
+    }
+
+    private LatencyHistogram(LatencyHistogram h) {
+        System.arraycopy(h.counts, 0, counts, 0, counts.length);
+        total = h.total;
+        min = h.min;
+        max = h.max;
+        sum = h.sum;
+        sumOfSquares = h.sumOfSquares;
+    }
+
+    public LatencyHistogram copy() {
+        return new LatencyHistogram(this);
+    }
+
+    public void record(long nanos) {
+        long v = Math.max(0, nanos);
+        ++counts[indexOf(v)];
+        ++total;
+        min = Math.min(min, v);
+        max = Math.max(max, v);
+        sum += v;
+        sumOfSquares += (double) v * v;
+    }
+
+    public void reset() {
+        Arrays.fill(counts, 0);
+        total = 0;
+        min = Long.MAX_VALUE;
+        max = 0;
+        sum = 0;
+        sumOfSquares = 0;
+    }
+
+    public long getCount() {
+        return total;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public long getMin() {
+        return total == 0 ? 0 : min;
+    }
+
+    public double getMean() {
+        return total == 0 ? 0 : sum / total;
+    }
+
+    public double getStdDeviation() {
+        if (total == 0) {
+            return 0;
+        }
+        double mean = sum / total;
+        return Math.sqrt(Math.max(0, sumOfSquares / total - mean * mean));
+    }
+
+    /**
+     * Returns the value that the given percentage of recorded values are at
+     * or below, or 0 if nothing was recorded.
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (total == 0) {
+            return 0;
+        }
+        long target = Math.max(1,
+                (long) Math.ceil(Math.min(percentile, 100) / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length; ++i) {
+            seen += counts[i];
+            if (seen >= target) {
+                return Math.min(highestEquivalent(i), max);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Writes the percentile distribution in the text format of HdrHistogram's
+     * outputPercentileDistribution, which its plotting tools read.
+     *
+     * @param scale
+     *            what to divide values by, for example 1e6 for milliseconds
+     */
+    public void write(PrintWriter out, double scale) {
+        out.printf("%12s %14s %10s %14s%n%n", "Value", "Percentile",
+                "TotalCount", "1/(1-Percentile)");
+        if (total > 0) {
+            double percentile = 0;
+            double step = 50.0 / TICKS_PER_HALF;
+            double half = 50;
+            while (true) {
+                long value = getValueAtPercentile(percentile);
+                long count = countAtOrBelow(value);
+                if (count >= total) {
+                    break;
+                }
+                out.printf("%12.3f %2.12f %10d %14.2f%n", value / scale,
+                        percentile / 100, count, 1 / (1 - percentile / 100));
+                percentile += step;
+                if (percentile >= half) {
+                    // Each half of the remaining distance gets as many ticks
+                    half += (100 - half) / 2;
+                    step /= 2;
+                }
+            }
+            out.printf("%12.3f %2.12f %10d%n", max / scale, 1.0, total);
+        }
+        out.printf("#[Mean    = %12.3f, StdDeviation   = %12.3f]%n", getMean()
+                / scale, getStdDeviation() / scale);
+        out.printf("#[Max     = %12.3f, Total count    = %12d]%n",
+                max / scale, total);
+        out.printf("#[Buckets = %12d, SubBuckets     = %12d]%n",
+                64 - SUB_BITS, SUB_COUNT);
+        out.flush();
+    }
+
+    private long countAtOrBelow(long value) {
+        long seen = 0;
+        for (int i = 0, last = indexOf(value); i <= last; ++i) {
+            seen += counts[i];
+        }
+        return seen;
+    }
+
+    private static int indexOf(long v) {
+        if (v < SUB_COUNT) {
+            return (int) v;
+        }
+        // Shift so that the value falls in the upper half of the sub-buckets
+        int shift = 64 - Long.numberOfLeadingZeros(v) - SUB_BITS;
+        return SUB_COUNT + (shift - 1) * HALF_COUNT + (int) (v >>> shift)
+                - HALF_COUNT;
+    }
+
+    private static long highestEquivalent(int index) {
+        if (index < SUB_COUNT) {
+            return index;
+        }
+        int i = index - SUB_COUNT;
+        int shift = i / HALF_COUNT + 1;
+        long sub = i % HALF_COUNT + HALF_COUNT;
+        return ((sub + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,151 @@
+import java.io.PrintWriter;
+
+/**
+ * Measures how far the canvas lags behind the mouse. Each input event is
+ * timestamped when the canvas receives it, and the time is recorded again
+ * when the drawing thread has drawn it into the image and when the canvas has
+ * painted it to the screen. Safe to use from any thread.
+ */
+public class LatencyMonitor {
+    // Inputs drawn but not yet painted are dropped beyond this many, so that
+    // nothing grows while the canvas is not being painted
+    private static final int MAX_PENDING = 1 << 16;
+    private static final double MILLIS = 1e6;
+
+    private final LatencyHistogram rasterLatency = new LatencyHistogram();
+    private final LatencyHistogram presentLatency = new LatencyHistogram();
+    // Receive times of the inputs drawn since the last paint
+    private long[] pending = new long[1024];
+    private int pendingCount = 0;
+    private int queueDepth = 0, maxQueueDepth = 0;
+    private long repaintsRequested = 0, paints = 0;
+
+    /**
+     * Records that a batch of input has been drawn into the image.
+     *
+     * @param times
+     *            the receive time of each input in the batch, from
+     *            {@link System#nanoTime()}
+     * @param depth
+     *            the number of inputs queued when the batch was taken
+     */
+    public synchronized void rasterized(long[] times, int n, int depth,
+            long now) {
+        for (int i = 0; i < n; ++i) {
+            rasterLatency.record(now - times[i]);
+        }
+
+        int room = Math.min(n, MAX_PENDING - pendingCount);
+        if (pendingCount + room > pending.length) {
+            long[] grown = new long[Math.max(pending.length * 2, pendingCount
+                    + room)];
+            System.arraycopy(pending, 0, grown, 0, pendingCount);
+            pending = grown;
+        }
+        System.arraycopy(times, 0, pending, pendingCount, room);
+        pendingCount += room;
+
+        queueDepth = depth;
+        maxQueueDepth = Math.max(maxQueueDepth, depth);
+    }
+
+    /**
+     * Records that a repaint of the canvas was asked for.
+     */
+    public synchronized void repaintRequested() {
+        ++repaintsRequested;
+    }
+
+    /**
+     * Records that the canvas has been painted, showing every input drawn
+     * since the last paint.
+     *
+     * @return the receive time of the oldest input shown, or now if there was
+     *         none
+     */
+    public synchronized long presented(long now) {
+        ++paints;
+        long oldest = now;
+        for (int i = 0; i < pendingCount; ++i) {
+            presentLatency.record(now - pending[i]);
+            oldest = Math.min(oldest, pending[i]);
+        }
+        pendingCount = 0;
+        return oldest;
+    }
+
+    /**
+     * Returns the number of inputs waiting to be painted.
+     */
+    public synchronized int getPending() {
+        return pendingCount;
+    }
+
+    public synchronized long getPaints() {
+        return paints;
+    }
+
+    public synchronized int getQueueDepth() {
+        return queueDepth;
+    }
+
+    public synchronized int getMaxQueueDepth() {
+        return maxQueueDepth;
+    }
+
+    public synchronized long getRepaintsRequested() {
+        return repaintsRequested;
+    }
+
+    /**
+     * Returns a copy of the times from inputs being received to being drawn
+     * into the image.
+     */
+    public synchronized LatencyHistogram getRasterLatency() {
+        return rasterLatency.copy();
+    }
+
+    /**
+     * Returns a copy of the times from inputs being received to being painted.
+     */
+    public synchronized LatencyHistogram getPresentLatency() {
+        return presentLatency.copy();
+    }
+
+    public synchronized void reset() {
+        rasterLatency.reset();
+        presentLatency.reset();
+        pendingCount = 0;
+        maxQueueDepth = queueDepth;
+        repaintsRequested = 0;
+        paints = 0;
+    }
+
+    /**
+     * Writes both latency distributions in milliseconds, followed by the queue
+     * and repaint counts.
+     */
+    public void writeReport(PrintWriter out) {
+        LatencyHistogram raster, present;
+        int depth, maxDepth;
+        long requested, painted;
+        synchronized (this) {
+            raster = rasterLatency.copy();
+            present = presentLatency.copy();
+            depth = queueDepth;
+            maxDepth = maxQueueDepth;
+            requested = repaintsRequested;
+            painted = paints;
+        }
+
+        out.println("# Input to drawn in image (ms)");
+        raster.write(out, MILLIS);
+        out.println();
+        out.println("# Input to painted on screen (ms)");
+        present.write(out, MILLIS);
+        out.println();
+        out.printf("# Queue depth %d, max %d%n", depth, maxDepth);
+        out.printf("# Repaints requested %d, painted %d%n", requested, painted);
+        out.flush();
+    }
+}
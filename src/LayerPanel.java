@@ -0,0 +1,160 @@
+import java.awt.*;
+import java.awt.event.*;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import javax.swing.*;
+import javax.swing.event.*;
+
+/**
+ * Lists the layers of the canvas, top layer first, with controls for adding,
+ * removing, reordering, hiding and fading them. Selecting a layer makes it
+ * the one that is drawn on.
+ */
+@SuppressWarnings("serial")
+public class LayerPanel extends JPanel {
+    private static final int LIST_ROWS = 6;
+    private static final int OPACITY_MAJOR_TICKS = 25;
+
+    private Canvas canvas;
+    private final DefaultListModel<String> names = new DefaultListModel<String>();
+    private final JList<String> list = new JList<String>(names);
+    private final JButton add = new JButton("Add");
+    private final JButton remove = new JButton("Remove");
+    private final JButton up = new JButton("Up");
+    private final JButton down = new JButton("Down");
+    private final JCheckBox visible = new JCheckBox("Visible");
+    private final JSlider opacity = new JSlider(0, 100, 100);
+    // Set while the controls are being made to match the canvas
+    private boolean updating = false;
+    private final PropertyChangeListener layersListener =
+            new PropertyChangeListener() {
+                @Override
+                public void propertyChange(PropertyChangeEvent e) {
+                    refresh();
+                }
+            };
+
+    public LayerPanel(Canvas c) {
+        this.canvas = c;
+        this.setBorder(BorderFactory.createTitledBorder("Layers"));
+        this.setLayout(new BorderLayout());
+
+        list.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        list.setVisibleRowCount(LIST_ROWS);
+        list.addListSelectionListener(new ListSelectionListener() {
+            @Override
+            public void valueChanged(ListSelectionEvent e) {
+                if (!updating && !e.getValueIsAdjusting()
+                        && list.getSelectedIndex() >= 0) {
+                    canvas.setActiveLayer(toLayer(list.getSelectedIndex()));
+                }
+            }
+        });
+        this.add(new JScrollPane(list), BorderLayout.CENTER);
+
+        add.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                canvas.addLayer();
+            }
+        });
+        remove.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                canvas.removeLayer(active());
+            }
+        });
+        up.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                canvas.moveLayer(active(), active() + 1);
+            }
+        });
+        down.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                canvas.moveLayer(active(), active() - 1);
+            }
+        });
+        visible.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                canvas.setLayerVisible(active(), visible.isSelected());
+            }
+        });
+
+        opacity.setPaintTicks(true);
+        opacity.setMajorTickSpacing(OPACITY_MAJOR_TICKS);
+        opacity.addChangeListener(new ChangeListener() {
+            @Override
+            public void stateChanged(ChangeEvent e) {
+                if (!updating && !opacity.getValueIsAdjusting()) {
+                    canvas.setLayerOpacity(active(), opacity.getValue() / 100f);
+                }
+            }
+        });
+
+        JPanel buttons = new JPanel(new GridLayout(2, 2));
+        buttons.add(add);
+        buttons.add(remove);
+        buttons.add(up);
+        buttons.add(down);
+        JPanel controls = new JPanel(new BorderLayout());
+        controls.add(buttons, BorderLayout.NORTH);
+        controls.add(visible, BorderLayout.CENTER);
+        controls.add(opacity, BorderLayout.SOUTH);
+        this.add(controls, BorderLayout.SOUTH);
+
+        canvas.addPropertyChangeListener("layers", layersListener);
+        refresh();
+    }
+
+    /**
+     * Switches to showing the layers of another canvas.
+     */
+    public void setCanvas(Canvas c) {
+        canvas.removePropertyChangeListener("layers", layersListener);
+        this.canvas = c;
+        canvas.addPropertyChangeListener("layers", layersListener);
+        refresh();
+    }
+
+    /**
+     * Makes the list and controls match the layers of the canvas.
+     */
+    private void refresh() {
+        LayerStack layers = canvas.getLayers();
+        updating = true;
+        names.clear();
+        if (layers != null) {
+            int count = layers.size();
+            for (int i = count - 1; i >= 0; --i) {
+                LayerStack.Layer l = layers.getLayer(i);
+                String name = l.getName();
+                if (!l.isVisible()) {
+                    name += " (hidden)";
+                } else if (l.getOpacity() < 1) {
+                    name += " (" + Math.round(l.getOpacity() * 100) + "%)";
+                }
+                names.addElement(name);
+            }
+            LayerStack.Layer current = layers.getActive();
+            int index = layers.getActiveIndex();
+            list.setSelectedIndex(toRow(index));
+            visible.setSelected(current.isVisible());
+            opacity.setValue(Math.round(current.getOpacity() * 100));
+            remove.setEnabled(count > 1);
+            up.setEnabled(index < count - 1);
+            down.setEnabled(index > 0);
+        }
+        updating = false;
+    }
+
+    private int active() {
+        return canvas.getLayers().getActiveIndex();
+    }
+
+    // The list shows the top layer first
+    private int toLayer(int row) {
+        return names.getSize() - 1 - row;
+    }
+
+    private int toRow(int layer) {
+        return names.getSize() - 1 - layer;
+    }
+}
@@ -0,0 +1,563 @@
+import java.awt.AlphaComposite;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The layers of a doodle, composited bottom to top over white paper. One
+ * layer is active and is the only one that is drawn on.
+ * <p>
+ * Painting keeps two composites cached around the active layer: one of the
+ * layers below it over the paper, and one of the layers above it. Drawing on
+ * the active layer leaves both alone, so a repaint is three blits however
+ * many layers there are. The composites are thrown away only when the stack
+ * itself changes, and are then made again a tile at a time as they are
+ * painted.
+ * <p>
+ * Changes to the stack must be made with the canvas image lock held.
+ */
+public class LayerStack {
+    private static final Color PAPER = Color.WHITE;
+
+    /**
+     * One layer of the stack, with its own undo history.
+     */
+    public static class Layer {
+        private final TiledImage image;
+        private final UndoHistory history;
+        private final String name;
+        private volatile boolean visible = true;
+        private volatile float opacity = 1;
+
+        private Layer(TiledImage image, long undoBudget, String name) {
+            this.image = image;
+            this.history = new UndoHistory(image, undoBudget);
+            this.name = name;
+        }
+
+        public TiledImage getImage() {
+            return image;
+        }
+
+        public UndoHistory getHistory() {
+            return history;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public boolean isVisible() {
+            return visible;
+        }
+
+        public float getOpacity() {
+            return opacity;
+        }
+
+        public String toString() {
+            return name;
+        }
+    }
+
+    private int width, height;
+    private int cols, rows;
+    // A tile of bare paper
+    private final BufferedImage paper;
+    private final List<Layer> layers = new ArrayList<Layer>();
+    private int active = 0;
+    private int named = 1;
+    private long undoBudget;
+
+    // Composites of the layers below and above the active one, with the
+    // tiles of each that have been made so far. Null until painted.
+    private TiledImage below, above;
+    private final BitSet belowMade = new BitSet();
+    private final BitSet aboveMade = new BitSet();
+
+    private final List<TiledImage.TileListener> listeners =
+            new CopyOnWriteArrayList<TiledImage.TileListener>();
+    // Passes on changes to the tiles of every layer
+    private final TiledImage.TileListener forwarder =
+            new TiledImage.TileListener() {
+                @Override
+                public void tileWillChange(int col, int row,
+                        BufferedImage tile) {
+                    for (TiledImage.TileListener l : listeners) {
+                        l.tileWillChange(col, row, tile);
+                    }
+                }
+            };
+
+    /**
+     * Makes a stack holding one opaque background layer.
+     */
+    public LayerStack(TiledImage background, long undoBudget) {
+        this.width = background.getWidth();
+        this.height = background.getHeight();
+        this.cols = background.getColumns();
+        this.rows = background.getRows();
+        this.undoBudget = undoBudget;
+        this.paper = new TiledImage(1, 1).getTile(0, 0);
+        insert(0, new Layer(background, undoBudget, "Background"));
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getColumns() {
+        return cols;
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    /**
+     * Returns the part of the image covered by the given tile.
+     */
+    public Rectangle getTileBounds(int col, int row) {
+        return getActive().image.getTileBounds(col, row);
+    }
+
+    /**
+     * Returns the tiles that intersect a region, as in
+     * {@link TiledImage#tilesIn(Rectangle)}.
+     */
+    public Rectangle tilesIn(Rectangle r) {
+        return getActive().image.tilesIn(r);
+    }
+
+    public synchronized int size() {
+        return layers.size();
+    }
+
+    /**
+     * @param index
+     *            counted from the bottom
+     */
+    public synchronized Layer getLayer(int index) {
+        return layers.get(index);
+    }
+
+    public synchronized int getActiveIndex() {
+        return active;
+    }
+
+    public synchronized Layer getActive() {
+        return layers.get(active);
+    }
+
+    /**
+     * Adds a listener that is told about changes to the tiles of any layer,
+     * and about tiles whose composite changes with the stack. For the latter
+     * the tile given is null.
+     */
+    public void addTileListener(TiledImage.TileListener l) {
+        listeners.add(l);
+    }
+
+    public void removeTileListener(TiledImage.TileListener l) {
+        listeners.remove(l);
+    }
+
+    /**
+     * Returns whether the stack is only an opaque background that is shown as
+     * it is, so the composite is the background itself.
+     */
+    public synchronized boolean isPlain() {
+        if (layers.size() != 1) {
+            return false;
+        }
+        Layer l = layers.get(0);
+        return !l.image.isTransparent() && l.visible && l.opacity == 1;
+    }
+
+    /**
+     * Sets the undo budget of every layer.
+     */
+    public synchronized void setUndoBudget(long bytes) {
+        undoBudget = bytes;
+        for (Layer l : layers) {
+            l.history.setBudget(bytes);
+        }
+    }
+
+    /**
+     * Adds a transparent layer above the active one and makes it active.
+     */
+    public synchronized void add() {
+        ++named;
+        insert(active + 1, new Layer(new TiledImage(width, height, true),
+                undoBudget, "Layer " + named));
+        active = active + 1;
+        invalidate();
+    }
+
+    /**
+     * Removes a layer. The last layer cannot be removed.
+     *
+     * @return the region whose composite changed, or null if none did
+     */
+    public synchronized Rectangle remove(int index) {
+        if (layers.size() == 1) {
+            return null;
+        }
+        Layer removed = layers.get(index);
+        Rectangle changed = shows(removed) ? fireComposite(removed) : null;
+        layers.remove(index);
+        removed.image.removeTileListener(forwarder);
+        // Removing the active layer makes the one below it active
+        if (active > index || active == index && index > 0) {
+            --active;
+        }
+        invalidate();
+        return changed;
+    }
+
+    /**
+     * Moves a layer to another position, keeping the same layer active.
+     *
+     * @return the region whose composite changed, or null if none did
+     */
+    public synchronized Rectangle move(int from, int to) {
+        if (from == to) {
+            return null;
+        }
+        Layer activeLayer = layers.get(active);
+        Layer moved = layers.get(from);
+        Rectangle changed = shows(moved) ? fireComposite(moved) : null;
+        layers.add(to, layers.remove(from));
+        active = layers.indexOf(activeLayer);
+        invalidate();
+        return changed;
+    }
+
+    /**
+     * @return the region whose composite changed, or null if none did
+     */
+    public synchronized Rectangle setVisible(int index, boolean visible) {
+        Layer l = layers.get(index);
+        if (l.visible == visible) {
+            return null;
+        }
+        l.visible = visible;
+        invalidate();
+        return fireComposite(l);
+    }
+
+    /**
+     * @param opacity
+     *            from 0 to 1
+     * @return the region whose composite changed, or null if none did
+     */
+    public synchronized Rectangle setOpacity(int index, float opacity) {
+        Layer l = layers.get(index);
+        if (l.opacity == opacity) {
+            return null;
+        }
+        l.opacity = opacity;
+        invalidate();
+        return fireComposite(l);
+    }
+
+    /**
+     * Makes another layer the one that is drawn on. The composite stays the
+     * same, but the cached composites around the active layer do not.
+     */
+    public synchronized void setActive(int index) {
+        if (index != active) {
+            active = index;
+            invalidate();
+        }
+    }
+
+    /**
+     * Draws the composite of a region, with an overlay blended into the
+     * active layer, as the cached composite below it, the active layer and
+     * the cached composite above it.
+     */
+    public void drawTo(Graphics2D g, Rectangle region,
+            StrokeOverlay.Tiles overlay) {
+        TiledImage b, a;
+        Layer layer;
+        synchronized (this) {
+            b = made(false, region);
+            a = made(true, region);
+            layer = layers.get(active);
+        }
+        b.drawTo(g, region, 0, 0);
+        if (layer.visible) {
+            Graphics2D lg = (Graphics2D) g.create();
+            if (layer.opacity < 1) {
+                lg.setComposite(AlphaComposite.SrcOver.derive(layer.opacity));
+            }
+            layer.image.drawTo(lg, region, 0, 0);
+            if (overlay != null) {
+                overlay.drawTo(lg, region, 0, 0);
+            }
+            lg.dispose();
+        }
+        if (a != null) {
+            a.drawTo(g, region, 0, 0);
+        }
+    }
+
+    /**
+     * Returns one tile of the whole composite, for reading only. Must be
+     * called with the image unchanging.
+     */
+    public synchronized BufferedImage getCompositeTile(int col, int row) {
+        if (isPlain()) {
+            return layers.get(0).image.getTile(col, row);
+        }
+        BufferedImage tile = compose(col, row, 0, layers.size(), false);
+        return tile != null ? tile : paper;
+    }
+
+    /**
+     * Returns the composite of the whole stack as an opaque image that later
+     * drawing does not affect.
+     */
+    public synchronized TiledImage flatten() {
+        if (isPlain()) {
+            return layers.get(0).image.snapshot();
+        }
+        BitSet all = new BitSet();
+        all.set(0, cols * rows);
+        return flatten(all);
+    }
+
+    /**
+     * Returns the composite of the given tiles, numbered row by row from
+     * zero, as an opaque image that is blank elsewhere.
+     */
+    public synchronized TiledImage flatten(BitSet only) {
+        if (isPlain()) {
+            return layers.get(0).image.snapshot(only);
+        }
+        TiledImage result = new TiledImage(width, height);
+        for (int i = only.nextSetBit(0); i >= 0 && i < cols * rows; i = only
+                .nextSetBit(i + 1)) {
+            BufferedImage tile = compose(i % cols, i / cols, 0, layers.size(),
+                    false);
+            if (tile != null) {
+                result.setTile(i % cols, i / cols, tile);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Parks every layer, for a doodle that will not be looked at for a
+     * while, and throws away the cached composites.
+     *
+     * @see TiledImage#park()
+     */
+    public synchronized void park() {
+        invalidate();
+        for (Layer l : layers) {
+            l.image.park();
+        }
+    }
+
+    /**
+     * Moves the compressed tiles of every parked layer out to temporary files
+     * in the given directory.
+     */
+    public synchronized void spill(File directory) throws IOException {
+        for (Layer l : layers) {
+            l.image.spill(directory);
+        }
+    }
+
+    /**
+     * Brings back the tiles of every parked layer.
+     */
+    public synchronized void unpark() {
+        for (Layer l : layers) {
+            l.image.unpark();
+        }
+    }
+
+    /**
+     * Returns whether any layer is parked.
+     */
+    public synchronized boolean isParked() {
+        for (Layer l : layers) {
+            if (l.image.isParked()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Lets go of the parked tiles of every layer for good.
+     */
+    public synchronized void discardParked() {
+        for (Layer l : layers) {
+            l.image.discardParked();
+        }
+    }
+
+    /**
+     * Returns roughly how many bytes of memory the pixels of the layers and
+     * the cached composites take.
+     */
+    public synchronized long getMemoryUsed() {
+        long bytes = 0;
+        for (Layer l : layers) {
+            bytes += l.image.getMemoryUsed();
+        }
+        if (below != null) {
+            bytes += below.getMemoryUsed();
+        }
+        if (above != null) {
+            bytes += above.getMemoryUsed();
+        }
+        return bytes;
+    }
+
+    /**
+     * Changes the size of every layer, clearing their undo histories.
+     */
+    public synchronized void resize(int newWidth, int newHeight) {
+        for (Layer l : layers) {
+            l.image.resize(newWidth, newHeight);
+            l.history.clear();
+        }
+        TiledImage first = layers.get(0).image;
+        width = first.getWidth();
+        height = first.getHeight();
+        cols = first.getColumns();
+        rows = first.getRows();
+        invalidate();
+    }
+
+    private void insert(int index, Layer layer) {
+        layers.add(index, layer);
+        layer.image.addTileListener(forwarder);
+    }
+
+    private static boolean shows(Layer l) {
+        return l.visible && l.opacity > 0;
+    }
+
+    private void invalidate() {
+        below = null;
+        above = null;
+        belowMade.clear();
+        aboveMade.clear();
+    }
+
+    /**
+     * Tells the listeners about every tile a layer shows something on, and
+     * returns the region they cover.
+     */
+    private Rectangle fireComposite(Layer layer) {
+        Rectangle changed = null;
+        for (int row = 0; row < rows; ++row) {
+            for (int col = 0; col < cols; ++col) {
+                // Blank tiles of an opaque layer are paper
+                if (layer.image.isTransparent()
+                        && layer.image.isBlank(col, row)) {
+                    continue;
+                }
+                forwarder.tileWillChange(col, row, null);
+                Rectangle r = layer.image.getTileBounds(col, row);
+                if (changed == null) {
+                    changed = r;
+                } else {
+                    changed.add(r);
+                }
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Returns the composite below or above the active layer with the tiles
+     * under a region made, or null for an empty composite above.
+     */
+    private TiledImage made(boolean upper, Rectangle region) {
+        int from = upper ? active + 1 : 0;
+        int to = upper ? layers.size() : active;
+        if (upper && from == to) {
+            return null;
+        }
+        TiledImage composite = upper ? above : below;
+        BitSet made = upper ? aboveMade : belowMade;
+        if (composite == null) {
+            composite = new TiledImage(width, height, upper);
+            if (upper) {
+                above = composite;
+            } else {
+                below = composite;
+            }
+        }
+        Rectangle span = composite.tilesIn(region);
+        for (int row = span.y; row < span.y + span.height; ++row) {
+            for (int col = span.x; col < span.x + span.width; ++col) {
+                int index = row * cols + col;
+                if (!made.get(index)) {
+                    BufferedImage tile = compose(col, row, from, to, upper);
+                    if (tile != null) {
+                        composite.setTile(col, row, tile);
+                    }
+                    made.set(index);
+                }
+            }
+        }
+        return composite;
+    }
+
+    /**
+     * Composites one tile of a range of layers, over the paper unless it is
+     * to stay transparent.
+     *
+     * @return the tile, or null if no layer shows anything on it
+     */
+    private BufferedImage compose(int col, int row, int from, int to,
+            boolean transparent) {
+        BufferedImage tile = null;
+        Graphics2D g = null;
+        for (int i = from; i < to; ++i) {
+            Layer l = layers.get(i);
+            if (!shows(l) || l.image.isTransparent()
+                    && l.image.isBlank(col, row)) {
+                continue;
+            }
+            if (tile == null) {
+                tile = new BufferedImage(TiledImage.TILE_SIZE,
+                        TiledImage.TILE_SIZE,
+                        transparent ? BufferedImage.TYPE_INT_ARGB_PRE
+                                : BufferedImage.TYPE_INT_RGB);
+                g = tile.createGraphics();
+                if (!transparent) {
+                    g.setColor(PAPER);
+                    g.fillRect(0, 0, TiledImage.TILE_SIZE,
+                            TiledImage.TILE_SIZE);
+                }
+            }
+            g.setComposite(AlphaComposite.SrcOver.derive(l.opacity));
+            g.drawImage(l.image.getTile(col, row), 0, 0, null);
+        }
+        if (g != null) {
+            g.dispose();
+        }
+        return tile;
+    }
+}
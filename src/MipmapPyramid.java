@@ -0,0 +1,161 @@
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.BitSet;
+
+/**
+ * Copies of the composite of a {@link LayerStack} downsampled by 2, 4 and 8,
+ * for showing the image zoomed out without scaling all of it every frame.
+ * Each level is made from the one above it by averaging squares of four
+ * pixels.
+ * <p>
+ * Levels are made the first time they are asked for. After that, changes to
+ * the image only mark the tiles they touched, and a level brings just those
+ * tiles up to date the next time it is asked for. Levels that are not asked
+ * for are left alone.
+ */
+public class MipmapPyramid {
+    public static final int LEVELS = 3;
+
+    private final LayerStack layers;
+    private final int cols;
+    // Index 0 is unused; level k is downsampled by 2^k
+    private final BufferedImage[] levels = new BufferedImage[LEVELS + 1];
+    // Image tiles whose part of each level is out of date
+    private final BitSet[] dirty = new BitSet[LEVELS + 1];
+
+    public MipmapPyramid(LayerStack layers) {
+        this.layers = layers;
+        this.cols = layers.getColumns();
+        for (int k = 1; k <= LEVELS; ++k) {
+            dirty[k] = new BitSet();
+        }
+    }
+
+    public LayerStack getLayers() {
+        return layers;
+    }
+
+    /**
+     * Marks a region of the image as changed. May be called from any thread.
+     */
+    public void invalidate(Rectangle r) {
+        Rectangle span = layers.tilesIn(r);
+        synchronized (dirty) {
+            for (int row = span.y; row < span.y + span.height; ++row) {
+                int from = row * cols + span.x;
+                for (int k = 1; k <= LEVELS; ++k) {
+                    dirty[k].set(from, from + span.width);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the image downsampled by 2^level, bringing it and the levels
+     * above it up to date first. Must be called with the image unchanging,
+     * and from one thread at a time.
+     *
+     * @param level
+     *            from 1 to {@link #LEVELS}
+     */
+    public BufferedImage getLevel(int level) {
+        for (int k = 1; k <= level; ++k) {
+            BitSet stale;
+            synchronized (dirty) {
+                if (levels[k] == null) {
+                    int round = (1 << k) - 1;
+                    levels[k] = new BufferedImage(
+                            (layers.getWidth() + round) >> k,
+                            (layers.getHeight() + round) >> k,
+                            BufferedImage.TYPE_INT_RGB);
+                    dirty[k].set(0, cols * layers.getRows());
+                }
+                stale = (BitSet) dirty[k].clone();
+                dirty[k].clear();
+            }
+            for (int i = stale.nextSetBit(0); i >= 0; i = stale
+                    .nextSetBit(i + 1)) {
+                refresh(k, i % cols, i / cols);
+            }
+        }
+        return levels[level];
+    }
+
+    /**
+     * Returns how many bytes of memory the levels made so far take. May be
+     * called from any thread.
+     */
+    public long getMemoryUsed() {
+        long bytes = 0;
+        synchronized (dirty) {
+            for (int k = 1; k <= LEVELS; ++k) {
+                if (levels[k] != null) {
+                    bytes += 4L * levels[k].getWidth() * levels[k].getHeight();
+                }
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Remakes the part of a level that covers one tile of the image.
+     */
+    private void refresh(int k, int col, int row) {
+        BufferedImage dst = levels[k];
+        int[] dstPixels = pixelsOf(dst);
+        int dstScan = dst.getWidth();
+        // The tile covers this many pixels of the level above
+        int block = TiledImage.TILE_SIZE >> (k - 1);
+        int dstOffset = (row * block / 2) * dstScan + col * block / 2;
+
+        if (k == 1) {
+            Rectangle r = layers.getTileBounds(col, row);
+            downsample(pixelsOf(layers.getCompositeTile(col, row)), 0,
+                    TiledImage.TILE_SIZE, r.width, r.height, dstPixels,
+                    dstOffset, dstScan);
+        } else {
+            BufferedImage src = levels[k - 1];
+            int srcScan = src.getWidth();
+            int x = col * block;
+            int y = row * block;
+            downsample(pixelsOf(src), y * srcScan + x, srcScan, Math.min(
+                    block, src.getWidth() - x), Math.min(block, src
+                    .getHeight() - y), dstPixels, dstOffset, dstScan);
+        }
+    }
+
+    /**
+     * Averages each square of four pixels in a block into one pixel. An odd
+     * last row or column is averaged with itself.
+     */
+    private static void downsample(int[] src, int srcOffset, int srcScan,
+            int width, int height, int[] dst, int dstOffset, int dstScan) {
+        int dstWidth = (width + 1) / 2;
+        int dstHeight = (height + 1) / 2;
+        for (int y = 0; y < dstHeight; ++y) {
+            int row0 = srcOffset + 2 * y * srcScan;
+            int row1 = 2 * y + 1 < height ? row0 + srcScan : row0;
+            int out = dstOffset + y * dstScan;
+            for (int x = 0; x < dstWidth; ++x) {
+                int x0 = 2 * x;
+                int x1 = x0 + 1 < width ? x0 + 1 : x0;
+                int a = src[row0 + x0];
+                int b = src[row0 + x1];
+                int c = src[row1 + x0];
+                int d = src[row1 + x1];
+                int r = ((a >> 16 & 0xFF) + (b >> 16 & 0xFF)
+                        + (c >> 16 & 0xFF) + (d >> 16 & 0xFF) + 2) >> 2;
+                int g = ((a >> 8 & 0xFF) + (b >> 8 & 0xFF) + (c >> 8 & 0xFF)
+                        + (d >> 8 & 0xFF) + 2) >> 2;
+                int bl = ((a & 0xFF) + (b & 0xFF) + (c & 0xFF) + (d & 0xFF)
+                        + 2) >> 2;
+                dst[out + x] = r << 16 | g << 8 | bl;
+            }
+        }
+    }
+
+    private static int[] pixelsOf(BufferedImage image) {
+        return ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+    }
+}
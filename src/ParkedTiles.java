@@ -0,0 +1,120 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * The tiles of a parked {@link TiledImage}, compressed with
+ * {@link TileCodec}. They stay in memory until they are spilled to a
+ * temporary file, which lasts until they are read back for the last time or
+ * discarded.
+ */
+public class ParkedTiles {
+    // The compressed tiles by tile number, null for blank tiles, or null
+    // once spilled
+    private byte[][] data;
+    // The length of each tile in the spill file, or -1 for blank tiles
+    private final int[] lengths;
+    private final long bytes;
+    private File file = null;
+
+    public ParkedTiles(byte[][] data) {
+        this.data = data;
+        this.lengths = new int[data.length];
+        long total = 0;
+        for (int i = 0; i < data.length; ++i) {
+            lengths[i] = data[i] == null ? -1 : data[i].length;
+            total += Math.max(0, lengths[i]);
+        }
+        this.bytes = total;
+    }
+
+    /**
+     * Returns how many bytes the tiles take in memory, which is none once
+     * they are spilled.
+     */
+    public long getMemoryUsed() {
+        return file == null ? bytes : 0;
+    }
+
+    public boolean isSpilled() {
+        return file != null;
+    }
+
+    /**
+     * Returns the file the tiles were spilled to, or null.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Writes the tiles to a new temporary file in the given directory and
+     * lets go of them in memory.
+     */
+    public void spill(File directory) throws IOException {
+        File temp = File.createTempFile(".doodler-parked", ".tmp", directory);
+        // In case Doodler exits while the tiles are still out there
+        temp.deleteOnExit();
+        boolean done = false;
+        try {
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(
+                    temp));
+            try {
+                for (byte[] tile : data) {
+                    if (tile != null) {
+                        out.write(tile);
+                    }
+                }
+            } finally {
+                out.close();
+            }
+            done = true;
+        } finally {
+            if (!done) {
+                temp.delete();
+            }
+        }
+        file = temp;
+        data = null;
+    }
+
+    /**
+     * Returns the compressed tiles by tile number, reading them back from
+     * the spill file if they were spilled.
+     */
+    public byte[][] read() throws IOException {
+        if (file == null) {
+            return data;
+        }
+        byte[][] result = new byte[lengths.length][];
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)));
+        try {
+            for (int i = 0; i < lengths.length; ++i) {
+                if (lengths[i] >= 0) {
+                    result[i] = new byte[lengths[i]];
+                    in.readFully(result[i]);
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return result;
+    }
+
+    /**
+     * Lets go of the tiles, deleting the spill file if there is one.
+     */
+    public void discard() {
+        data = null;
+        if (file != null) {
+            file.delete();
+            file = null;
+        }
+    }
+}
@@ -0,0 +1,456 @@
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a {@link TiledImage} as an RGB PNG, filtering and compressing bands
+ * of rows in parallel. Each band is deflated on its own with the end of the
+ * previous band as a preset dictionary and ends on a sync flush, so the bands
+ * can be joined into one standard zlib stream.
+ */
+public class PngWriter {
+    /**
+     * Trades encoding speed against file size.
+     */
+    public enum Speed {
+        FASTEST(1), FAST(3), BALANCED(6), SMALLEST(9);
+
+        private final int level;
+
+        private Speed(int level) {
+            this.level = level;
+        }
+
+        public String toString() {
+            String word = name();
+            return word.charAt(0) + word.substring(1).toLowerCase();
+        }
+    }
+
+    public interface ProgressListener {
+        /**
+         * @param fraction
+         *            how much of the image has been written, from 0 to 1
+         * @return false to cancel the write
+         */
+        boolean progress(float fraction);
+    }
+
+    private static final byte[] SIGNATURE = { (byte) 137, 80, 78, 71, 13, 10,
+            26, 10 };
+    private static final int BAND_BYTES = 1 << 20;
+    private static final int WINDOW_SIZE = 32768;
+    private static final int BUFFER_SIZE = 65536;
+    private static final int ADLER_BASE = 65521;
+
+    private static final int FILTER_NONE = 0;
+    private static final int FILTER_SUB = 1;
+    private static final int FILTER_UP = 2;
+    private static final int FILTER_AVERAGE = 3;
+    private static final int FILTER_PAETH = 4;
+
+    private static ExecutorService sharedExecutor = null;
+
+    private final ExecutorService executor;
+    private final int threads;
+    private Speed speed = Speed.BALANCED;
+    private boolean adaptive = false;
+
+    public PngWriter() {
+        this(sharedExecutor(), Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param threads
+     *            how many bands may be encoded at once
+     */
+    public PngWriter(ExecutorService executor, int threads) {
+        this.executor = executor;
+        this.threads = Math.max(1, threads);
+    }
+
+    public Speed getSpeed() {
+        return speed;
+    }
+
+    public void setSpeed(Speed speed) {
+        this.speed = speed;
+    }
+
+    public boolean isAdaptiveFiltering() {
+        return adaptive;
+    }
+
+    /**
+     * Chooses a PNG filter for each row instead of leaving rows unfiltered.
+     * This makes photographs noticeably smaller but makes doodles, which are
+     * mostly flat color, slightly larger and slower to write.
+     */
+    public void setAdaptiveFiltering(boolean adaptive) {
+        this.adaptive = adaptive;
+    }
+
+    /**
+     * Writes the image. The image must not change while it is written, so
+     * pass a snapshot of a live image.
+     *
+     * @return false if the listener cancelled the write
+     */
+    public boolean write(TiledImage image, OutputStream out,
+            ProgressListener listener) throws IOException {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int rowBytes = 1 + width * 3;
+        int bandRows = Math.max(1, BAND_BYTES / rowBytes);
+
+        DataOutputStream data = new DataOutputStream(out);
+        data.write(SIGNATURE);
+        writeHeader(data, width, height);
+
+        // zlib header for a 32K window, without a preset dictionary
+        byte[] zlibHeader = { 0x78, (byte) (speed.level < 6 ? 0x01 : 0x9C) };
+        writeChunk(data, "IDAT", zlibHeader, zlibHeader.length);
+
+        // Keep a bounded number of bands in flight, written out in order
+        Queue<Future<Band>> pending = new ArrayDeque<Future<Band>>();
+        long adler = 1;
+        int next = 0;
+        int done = 0;
+        try {
+            while (done < height) {
+                while (next < height && pending.size() < threads * 2) {
+                    int rows = Math.min(bandRows, height - next);
+                    pending.add(executor.submit(new BandEncoder(image, next,
+                            rows, next + rows == height)));
+                    next += rows;
+                }
+
+                Band band = pending.remove().get();
+                writeChunk(data, "IDAT", band.compressed, band.length);
+                adler = combineAdler(adler, band.adler, band.rawLength);
+                done += band.rows;
+
+                if (listener != null
+                        && !listener.progress((float) done / height)) {
+                    return false;
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while writing PNG", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to encode PNG", e.getCause());
+        } finally {
+            for (Future<Band> f : pending) {
+                f.cancel(true);
+            }
+        }
+
+        byte[] trailer = { (byte) (adler >>> 24), (byte) (adler >>> 16),
+                (byte) (adler >>> 8), (byte) adler };
+        writeChunk(data, "IDAT", trailer, trailer.length);
+        writeChunk(data, "IEND", new byte[0], 0);
+        data.flush();
+        return true;
+    }
+
+    private static class Band {
+        int rows;
+        byte[] compressed;
+        int length;
+        long adler;
+        long rawLength;
+    }
+
+    /**
+     * Filters and deflates one band of rows.
+     */
+    private class BandEncoder implements Callable<Band> {
+        private final TiledImage image;
+        private final int y0, rows;
+        private final boolean last;
+
+        BandEncoder(TiledImage image, int y0, int rows, boolean last) {
+            this.image = image;
+            this.y0 = y0;
+            this.rows = rows;
+            this.last = last;
+        }
+
+        @Override
+        public Band call() {
+            int width = image.getWidth();
+            int rowBytes = 1 + width * 3;
+            RowFilter filter = new RowFilter(width, adaptive);
+            Deflater deflater = new Deflater(speed.level, true);
+            try {
+                // Prime the window with the end of the previous band, which
+                // the decoder will already have seen at this point
+                if (y0 > 0) {
+                    int dictRows = Math.min(y0, (WINDOW_SIZE + rowBytes - 1)
+                            / rowBytes);
+                    byte[] dict = new byte[dictRows * rowBytes];
+                    filter.reset(y0 - dictRows > 0 ? rowAt(y0 - dictRows - 1)
+                            : null);
+                    for (int i = 0; i < dictRows; ++i) {
+                        filter.filter(rowAt(y0 - dictRows + i), dict, i
+                                * rowBytes);
+                    }
+                    int off = Math.max(0, dict.length - WINDOW_SIZE);
+                    deflater.setDictionary(dict, off, dict.length - off);
+                } else {
+                    filter.reset(null);
+                }
+
+                byte[] raw = new byte[rows * rowBytes];
+                for (int i = 0; i < rows; ++i) {
+                    filter.filter(rowAt(y0 + i), raw, i * rowBytes);
+                }
+
+                Band band = new Band();
+                band.rows = rows;
+                band.rawLength = raw.length;
+                band.adler = adler32(raw);
+
+                deflater.setInput(raw);
+                byte[] buffer = new byte[Math.max(BUFFER_SIZE,
+                        raw.length / 4)];
+                int length = 0;
+                if (last) {
+                    deflater.finish();
+                }
+                while (true) {
+                    if (length == buffer.length) {
+                        byte[] bigger = new byte[buffer.length * 2];
+                        System.arraycopy(buffer, 0, bigger, 0, length);
+                        buffer = bigger;
+                    }
+                    int n = last ? deflater.deflate(buffer, length,
+                            buffer.length - length) : deflater.deflate(buffer,
+                            length, buffer.length - length,
+                            Deflater.SYNC_FLUSH);
+                    length += n;
+                    if (last ? deflater.finished() : length < buffer.length) {
+                        break;
+                    }
+                }
+                band.compressed = buffer;
+                band.length = length;
+                return band;
+            } finally {
+                deflater.end();
+            }
+        }
+
+        private int[] rowAt(int y) {
+            int[] row = new int[image.getWidth()];
+            image.getRow(y, row);
+            return row;
+        }
+    }
+
+    /**
+     * Applies PNG filters to consecutive rows, remembering the previous row.
+     */
+    private static class RowFilter {
+        private final int width;
+        private final boolean adaptive;
+        private byte[] prior, current;
+        private final byte[][] candidates;
+
+        RowFilter(int width, boolean adaptive) {
+            this.width = width;
+            this.adaptive = adaptive;
+            this.prior = new byte[width * 3];
+            this.current = new byte[width * 3];
+            this.candidates = new byte[5][width * 3];
+        }
+
+        void reset(int[] priorRow) {
+            if (priorRow == null) {
+                Arrays.fill(prior, (byte) 0);
+            } else {
+                unpack(priorRow, prior);
+            }
+        }
+
+        void filter(int[] row, byte[] dst, int off) {
+            unpack(row, current);
+            if (!adaptive) {
+                dst[off] = FILTER_NONE;
+                System.arraycopy(current, 0, dst, off + 1, current.length);
+            } else {
+                // Pick the filter whose output has the smallest sum of
+                // absolute values, as recommended by the PNG specification
+                int best = FILTER_NONE;
+                long bestSum = Long.MAX_VALUE;
+                for (int f = FILTER_NONE; f <= FILTER_PAETH; ++f) {
+                    applyFilter(f, current, prior, candidates[f], 0);
+                    long sum = 0;
+                    for (byte b : candidates[f]) {
+                        sum += Math.abs((int) b);
+                    }
+                    if (sum < bestSum) {
+                        bestSum = sum;
+                        best = f;
+                    }
+                }
+                dst[off] = (byte) best;
+                System.arraycopy(candidates[best], 0, dst, off + 1,
+                        current.length);
+            }
+
+            byte[] t = prior;
+            prior = current;
+            current = t;
+        }
+
+        private void unpack(int[] row, byte[] dst) {
+            for (int x = 0, i = 0; x < width; ++x) {
+                int p = row[x];
+                dst[i++] = (byte) (p >> 16);
+                dst[i++] = (byte) (p >> 8);
+                dst[i++] = (byte) p;
+            }
+        }
+
+        private static void applyFilter(int filter, byte[] cur, byte[] up,
+                byte[] dst, int off) {
+            int n = cur.length;
+            switch (filter) {
+            case FILTER_NONE:
+                System.arraycopy(cur, 0, dst, off, n);
+                break;
+            case FILTER_SUB:
+                for (int i = 0; i < n; ++i) {
+                    int a = i >= 3 ? cur[i - 3] & 0xFF : 0;
+                    dst[off + i] = (byte) (cur[i] - a);
+                }
+                break;
+            case FILTER_UP:
+                for (int i = 0; i < n; ++i) {
+                    dst[off + i] = (byte) (cur[i] - up[i]);
+                }
+                break;
+            case FILTER_AVERAGE:
+                for (int i = 0; i < n; ++i) {
+                    int a = i >= 3 ? cur[i - 3] & 0xFF : 0;
+                    int b = up[i] & 0xFF;
+                    dst[off + i] = (byte) (cur[i] - ((a + b) >> 1));
+                }
+                break;
+            case FILTER_PAETH:
+                for (int i = 0; i < n; ++i) {
+                    int a = i >= 3 ? cur[i - 3] & 0xFF : 0;
+                    int b = up[i] & 0xFF;
+                    int c = i >= 3 ? up[i - 3] & 0xFF : 0;
+                    dst[off + i] = (byte) (cur[i] - paeth(a, b, c));
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Bad filter: " + filter);
+            }
+        }
+
+        private static int paeth(int a, int b, int c) {
+            int p = a + b - c;
+            int pa = Math.abs(p - a);
+            int pb = Math.abs(p - b);
+            int pc = Math.abs(p - c);
+            if (pa <= pb && pa <= pc) {
+                return a;
+            }
+            return pb <= pc ? b : c;
+        }
+    }
+
+    private static void writeHeader(DataOutputStream out, int width,
+            int height) throws IOException {
+        byte[] ihdr = new byte[13];
+        putInt(ihdr, 0, width);
+        putInt(ihdr, 4, height);
+        ihdr[8] = 8; // bit depth
+        ihdr[9] = 2; // truecolor
+        ihdr[10] = 0; // deflate
+        ihdr[11] = 0; // adaptive filtering
+        ihdr[12] = 0; // no interlace
+        writeChunk(out, "IHDR", ihdr, ihdr.length);
+    }
+
+    private static void writeChunk(DataOutputStream out, String type,
+            byte[] data, int length) throws IOException {
+        byte[] typeBytes = type.getBytes("US-ASCII");
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data, 0, length);
+        out.writeInt(length);
+        out.write(typeBytes);
+        out.write(data, 0, length);
+        out.writeInt((int) crc.getValue());
+    }
+
+    private static void putInt(byte[] b, int off, int v) {
+        b[off] = (byte) (v >>> 24);
+        b[off + 1] = (byte) (v >>> 16);
+        b[off + 2] = (byte) (v >>> 8);
+        b[off + 3] = (byte) v;
+    }
+
+    private static long adler32(byte[] data) {
+        Adler32 adler = new Adler32();
+        adler.update(data);
+        return adler.getValue();
+    }
+
+    /**
+     * Computes the Adler-32 of two pieces of data joined together from their
+     * separate checksums, as zlib's adler32_combine does.
+     */
+    private static long combineAdler(long adler1, long adler2, long len2) {
+        long rem = len2 % ADLER_BASE;
+        long sum1 = adler1 & 0xFFFF;
+        long sum2 = (rem * sum1) % ADLER_BASE;
+        sum1 += (adler2 & 0xFFFF) + ADLER_BASE - 1;
+        sum2 += ((adler1 >> 16) & 0xFFFF) + ((adler2 >> 16) & 0xFFFF)
+                + ADLER_BASE - rem;
+        if (sum1 >= ADLER_BASE) {
+            sum1 -= ADLER_BASE;
+        }
+        if (sum1 >= ADLER_BASE) {
+            sum1 -= ADLER_BASE;
+        }
+        if (sum2 >= (ADLER_BASE << 1)) {
+            sum2 -= (ADLER_BASE << 1);
+        }
+        if (sum2 >= ADLER_BASE) {
+            sum2 -= ADLER_BASE;
+        }
+        return sum1 | (sum2 << 16);
+    }
+
+    private static synchronized ExecutorService sharedExecutor() {
+        if (sharedExecutor == null) {
+            sharedExecutor = Executors.newFixedThreadPool(Runtime.getRuntime()
+                    .availableProcessors(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Doodler PNG encoder");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return sharedExecutor;
+    }
+}
@@ -0,0 +1,219 @@
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A least-recently-used cache of stamp shapes rasterized into coverage masks.
+ * Stamping with a cached mask is a blend of the mask into the image instead of
+ * a fresh geometry fill, and the same mask serves every color.
+ */
+public class StampCache {
+    /**
+     * The coverage of a rendered shape, from 0 to 255 per pixel, relative to
+     * the point the shape was rendered at.
+     */
+    public static class Mask {
+        private final byte[] coverage;
+        private final int x, y, width, height;
+
+        private Mask(byte[] coverage, int x, int y, int width, int height) {
+            this.coverage = coverage;
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+        }
+
+        public byte[] getCoverage() {
+            return coverage;
+        }
+
+        /**
+         * Returns the area the mask covers when stamped at the given point.
+         */
+        public Rectangle getBounds(int px, int py) {
+            return new Rectangle(px + x, py + y, width, height);
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+    }
+
+    private static final class Key {
+        private final Shape shape;
+        private final int size;
+        private final boolean antialias;
+
+        Key(Shape shape, int size, boolean antialias) {
+            this.shape = shape;
+            this.size = size;
+            this.antialias = antialias;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return shape == k.shape && size == k.size
+                    && antialias == k.antialias;
+        }
+
+        @Override
+        public int hashCode() {
+            return (shape.ordinal() * 31 + size) * 2 + (antialias ? 1 : 0);
+        }
+    }
+
+    private final LinkedHashMap<Key, Mask> masks = new LinkedHashMap<Key, Mask>(
+            16, 0.75f, true);
+    private final long budget;
+    private long bytes = 0;
+    private long hits = 0, misses = 0;
+
+    /**
+     * @param budget
+     *            how many bytes of masks to keep
+     */
+    public StampCache(long budget) {
+        this.budget = budget;
+    }
+
+    public synchronized Mask get(Shape shape, int size, boolean antialias) {
+        Key key = new Key(shape, size, antialias);
+        Mask mask = masks.get(key);
+        if (mask != null) {
+            ++hits;
+            return mask;
+        }
+
+        ++misses;
+        mask = rasterize(shape, size, antialias);
+        masks.put(key, mask);
+        bytes += mask.coverage.length;
+
+        // Evict the least recently used masks, but always keep the new one
+        Iterator<Map.Entry<Key, Mask>> it = masks.entrySet().iterator();
+        while (bytes > budget && masks.size() > 1) {
+            bytes -= it.next().getValue().coverage.length;
+            it.remove();
+        }
+        return mask;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Blends a color into a block of RGB pixels through a mask.
+     *
+     * @param pixels
+     *            the destination pixels
+     * @param stride
+     *            the number of pixels in a row of the destination
+     * @param dst
+     *            the area to blend, in destination coordinates
+     * @param mx
+     *            the mask column that lines up with the left of dst
+     * @param my
+     *            the mask row that lines up with the top of dst
+     */
+    public static void blend(Mask mask, Color color, int[] pixels, int stride,
+            Rectangle dst, int mx, int my) {
+        blend(mask, color, pixels, stride, dst, mx, my, false);
+    }
+
+    /**
+     * @param premultiplied
+     *            whether the pixels are premultiplied ARGB rather than RGB
+     */
+    public static void blend(Mask mask, Color color, int[] pixels, int stride,
+            Rectangle dst, int mx, int my, boolean premultiplied) {
+        int rgb = color.getRGB() & 0xFFFFFF;
+        int alpha = color.getAlpha();
+        int sr = (rgb >> 16) & 0xFF;
+        int sg = (rgb >> 8) & 0xFF;
+        int sb = rgb & 0xFF;
+        byte[] coverage = mask.coverage;
+        for (int row = 0; row < dst.height; ++row) {
+            int m = (my + row) * mask.width + mx;
+            int d = (dst.y + row) * stride + dst.x;
+            for (int col = 0; col < dst.width; ++col, ++m, ++d) {
+                int a = coverage[m] & 0xFF;
+                if (a == 0) {
+                    continue;
+                }
+                if (alpha != 255) {
+                    a = (a * alpha + 127) / 255;
+                }
+                if (a == 255) {
+                    pixels[d] = premultiplied ? 0xFF000000 | rgb : rgb;
+                } else if (premultiplied) {
+                    // Source over, with the source premultiplied by a
+                    int p = pixels[d];
+                    int na = 255 - a;
+                    int pa = ((p >>> 24) * na + 255 * a + 127) / 255;
+                    int r = (((p >> 16) & 0xFF) * na + sr * a + 127) / 255;
+                    int g = (((p >> 8) & 0xFF) * na + sg * a + 127) / 255;
+                    int b = ((p & 0xFF) * na + sb * a + 127) / 255;
+                    pixels[d] = pa << 24 | r << 16 | g << 8 | b;
+                } else {
+                    int p = pixels[d];
+                    int r = (p >> 16) & 0xFF;
+                    int g = (p >> 8) & 0xFF;
+                    int b = p & 0xFF;
+                    r += ((sr - r) * a + 127) / 255;
+                    g += ((sg - g) * a + 127) / 255;
+                    b += ((sb - b) * a + 127) / 255;
+                    pixels[d] = r << 16 | g << 8 | b;
+                }
+            }
+        }
+    }
+
+    private static Mask rasterize(Shape shape, int size, boolean antialias) {
+        // Every shape is placed relative to the point it is rendered at, so
+        // one mask rendered at the origin serves every point
+        java.awt.Shape s = shape.render(new Point(0, 0), size);
+        Rectangle bounds = s.getBounds();
+        bounds.grow(1, 1);
+
+        BufferedImage image = new BufferedImage(bounds.width, bounds.height,
+                BufferedImage.TYPE_BYTE_GRAY);
+        Graphics2D g = image.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+                antialias ? RenderingHints.VALUE_ANTIALIAS_ON
+                        : RenderingHints.VALUE_ANTIALIAS_OFF);
+        g.setColor(Color.WHITE);
+        g.translate(-bounds.x, -bounds.y);
+        g.fill(s);
+        g.dispose();
+
+        byte[] coverage = ((DataBufferByte) image.getRaster().getDataBuffer())
+                .getData();
+        return new Mask(coverage, bounds.x, bounds.y, bounds.width,
+                bounds.height);
+    }
+}
@@ -0,0 +1,27 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Recorded by the drawing thread for each batch of input it draws.
+ */
+@Name("doodler.StrokeBatch")
+@Label("Stroke Batch")
+@Category("Doodler")
+@Description("A batch of mouse input drawn into the image")
+public class StrokeBatchEvent extends jdk.jfr.Event {
+    @Label("Events")
+    public int events;
+
+    @Label("Queue Depth")
+    @Description("Events waiting in the input queue when the batch was taken")
+    public int queueDepth;
+
+    @Label("Oldest Input Age")
+    @Description("Time from the oldest event in the batch being received to"
+            + " the batch being drawn")
+    @Timespan(Timespan.NANOSECONDS)
+    public long oldestInputAge;
+}
@@ -0,0 +1,393 @@
+import java.awt.Color;
+import java.awt.Rectangle;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.BitSet;
+import java.util.zip.CRC32;
+
+/**
+ * Records what is drawn on the canvas as a stream of journal records, to be
+ * appended to a {@link JournalFile} when the doodle is saved. Strokes are kept
+ * as their brush and the points of the mouse, so a record costs a few bytes
+ * per point; changes that are not strokes, such as undo, are kept as the
+ * tiles they produced.
+ * <p>
+ * Each record is a type byte, the payload length and the CRC-32 of the
+ * payload as big-endian ints, then the payload. Numbers inside payloads are
+ * unsigned LEB128 varints, with signed numbers zigzag encoded first.
+ * <ul>
+ * <li>{@link #STROKE}: tool ordinal, ARGB color, shape ordinal, tool size,
+ * the fill tolerance if the tool is {@link Tool#FILL}, a flags byte, the
+ * number of points, the first point, the change from each point to the next,
+ * then the number of flush points followed by the change in point index from
+ * each to the next. The last point is the release unless
+ * {@link #FLAG_UNRELEASED} is set.</li>
+ * <li>{@link #TILES} and {@link #CHECKPOINT}: for a checkpoint the image width
+ * and height; then the number of tiles, and for each its column, row and the
+ * length of its {@link TileCodec} data followed by the data. A length of zero
+ * makes the tile blank.</li>
+ * </ul>
+ * Nothing writes a type byte of zero. Reading stops at one only so that
+ * recovery journals still open if an earlier, memory-mapped autosave padded
+ * them with zeros past their records.
+ * <p>
+ * All recording happens with the canvas image lock held.
+ */
+public class StrokeJournal {
+    public static final int STROKE = 1;
+    public static final int TILES = 2;
+    public static final int CHECKPOINT = 3;
+
+    /** Set in a stroke's flags if the pen stroke was committed antialiased. */
+    static final int FLAG_PREVIEW = 1;
+    /**
+     * Set in a stroke's flags if it ended without a release, in which case
+     * its last point is a drag.
+     */
+    static final int FLAG_UNRELEASED = 2;
+    /**
+     * Set in a stroke's flags if the pen stroke was drawn with
+     * {@link StrokeRenderer.PenEngine#DABS}.
+     */
+    static final int FLAG_DABS = 4;
+    /**
+     * Set in a stroke's flags if its stamps were spaced along the path rather
+     * than put down every so many points.
+     */
+    static final int FLAG_SPACED = 8;
+
+    static final int HEADER_SIZE = 9;
+    // Records beyond this are dropped, and the next save writes the image
+    private static final int MAX_PENDING = 16 << 20;
+
+    /**
+     * Records taken from the journal in one go.
+     */
+    public static class Records {
+        private final byte[] data;
+        private final int strokes;
+        private final long generation;
+        private final boolean complete;
+
+        private Records(byte[] data, int strokes, long generation,
+                boolean complete) {
+            this.data = data;
+            this.strokes = strokes;
+            this.generation = generation;
+            this.complete = complete;
+        }
+
+        public byte[] getData() {
+            return data;
+        }
+
+        /**
+         * Returns the generation of the image the records were drawn on.
+         * Replacing the image starts a new generation.
+         */
+        public long getGeneration() {
+            return generation;
+        }
+
+        public int getStrokes() {
+            return strokes;
+        }
+
+        /**
+         * Returns whether these are all the changes made since the last
+         * records were taken. If not, the image itself must be saved.
+         */
+        public boolean isComplete() {
+            return complete;
+        }
+    }
+
+    private final Buffer pending = new Buffer();
+    private int pendingStrokes = 0;
+    private long generation = 0;
+    private boolean complete = true;
+
+    // The stroke in progress
+    private boolean inStroke = false;
+    private final Buffer brush = new Buffer();
+    private int[] points = new int[256];
+    private int pointCount = 0;
+    private int[] flushes = new int[16];
+    private int flushCount = 0;
+
+    /**
+     * Forgets everything recorded, because the image was replaced.
+     */
+    public void restart() {
+        pending.reset();
+        pendingStrokes = 0;
+        inStroke = false;
+        ++generation;
+        complete = true;
+    }
+
+    public long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Drops the records made so far, because the image changed in a way that
+     * records cannot describe. The next save has to write the whole image.
+     */
+    public void invalidate() {
+        pending.reset();
+        pendingStrokes = 0;
+        inStroke = false;
+        complete = false;
+    }
+
+    /**
+     * Takes the records made since the last call.
+     */
+    public Records drain() {
+        Records r = new Records(pending.toByteArray(), pendingStrokes,
+                generation, complete);
+        pending.reset();
+        pendingStrokes = 0;
+        complete = true;
+        return r;
+    }
+
+    public void beginStroke(Tool tool, Color color, Shape shape, int size,
+            int tolerance, boolean preview, boolean dabs, boolean spaced,
+            int x, int y) {
+        brush.reset();
+        brush.write(tool.ordinal());
+        writeVarint(brush, color.getRGB() & 0xFFFFFFFFL);
+        brush.write(shape.ordinal());
+        writeVarint(brush, size);
+        if (tool == Tool.FILL) {
+            writeVarint(brush, tolerance);
+        }
+        brush.write((preview ? FLAG_PREVIEW : 0) | (dabs ? FLAG_DABS : 0)
+                | (spaced ? FLAG_SPACED : 0));
+        pointCount = 0;
+        flushCount = 0;
+        inStroke = true;
+        addPoint(x, y);
+    }
+
+    public void addPoint(int x, int y) {
+        if (!inStroke) {
+            return;
+        }
+        if (pointCount * 2 + 2 > points.length) {
+            int[] grown = new int[points.length * 2];
+            System.arraycopy(points, 0, grown, 0, pointCount * 2);
+            points = grown;
+        }
+        points[pointCount * 2] = x;
+        points[pointCount * 2 + 1] = y;
+        ++pointCount;
+    }
+
+    /**
+     * Notes that the stroke was rendered up to the last point added. Pen
+     * strokes drawn straight into the image are drawn a piece at a time, and
+     * replaying them exactly needs the same pieces.
+     */
+    public void flushed() {
+        if (!inStroke) {
+            return;
+        }
+        if (flushCount == flushes.length) {
+            int[] grown = new int[flushes.length * 2];
+            System.arraycopy(flushes, 0, grown, 0, flushCount);
+            flushes = grown;
+        }
+        flushes[flushCount++] = pointCount;
+    }
+
+    public void endStroke(int x, int y) {
+        if (!inStroke) {
+            return;
+        }
+        addPoint(x, y);
+        writeStroke();
+    }
+
+    /**
+     * Ends the stroke in progress, which was cut short rather than released.
+     */
+    public void abandonStroke() {
+        if (!inStroke) {
+            return;
+        }
+        // The flags are the last byte of the brush
+        brush.data()[brush.size() - 1] |= FLAG_UNRELEASED;
+        writeStroke();
+    }
+
+    private void writeStroke() {
+        inStroke = false;
+
+        Buffer payload = new Buffer();
+        payload.write(brush.data(), 0, brush.size());
+        writeVarint(payload, pointCount);
+        int lastX = 0, lastY = 0;
+        for (int i = 0; i < pointCount; ++i) {
+            int px = points[i * 2];
+            int py = points[i * 2 + 1];
+            writeSigned(payload, px - lastX);
+            writeSigned(payload, py - lastY);
+            lastX = px;
+            lastY = py;
+        }
+        writeVarint(payload, flushCount);
+        int last = 0;
+        for (int i = 0; i < flushCount; ++i) {
+            writeVarint(payload, flushes[i] - last);
+            last = flushes[i];
+        }
+        if (add(STROKE, payload)) {
+            ++pendingStrokes;
+        }
+    }
+
+    /**
+     * Records the current contents of every tile in a region, after a change
+     * that was not a stroke.
+     */
+    public void recordTiles(TiledImage image, Rectangle changed) {
+        Rectangle span = image.tilesIn(changed);
+        Buffer payload = new Buffer();
+        writeVarint(payload, span.width * span.height);
+        for (int row = span.y; row < span.y + span.height; ++row) {
+            for (int col = span.x; col < span.x + span.width; ++col) {
+                writeTile(payload, image, col, row);
+            }
+        }
+        add(TILES, payload);
+    }
+
+    /**
+     * Writes a tiles record holding the given tiles, numbered row by row from
+     * zero.
+     */
+    public static void writeTiles(OutputStream out, TiledImage image,
+            BitSet tiles) throws IOException {
+        Buffer payload = new Buffer();
+        writeVarint(payload, tiles.cardinality());
+        int cols = image.getColumns();
+        for (int i = tiles.nextSetBit(0); i >= 0; i = tiles.nextSetBit(i + 1)) {
+            writeTile(payload, image, i % cols, i / cols);
+        }
+        writeRecord(out, TILES, payload);
+    }
+
+    /**
+     * Writes a checkpoint record holding every tile of the image that is not
+     * blank.
+     */
+    public static void writeCheckpoint(OutputStream out, TiledImage image)
+            throws IOException {
+        int count = 0;
+        for (int row = 0; row < image.getRows(); ++row) {
+            for (int col = 0; col < image.getColumns(); ++col) {
+                if (!image.isBlank(col, row)) {
+                    ++count;
+                }
+            }
+        }
+
+        Buffer payload = new Buffer();
+        writeVarint(payload, image.getWidth());
+        writeVarint(payload, image.getHeight());
+        writeVarint(payload, count);
+        for (int row = 0; row < image.getRows(); ++row) {
+            for (int col = 0; col < image.getColumns(); ++col) {
+                if (!image.isBlank(col, row)) {
+                    writeTile(payload, image, col, row);
+                }
+            }
+        }
+        writeRecord(out, CHECKPOINT, payload);
+    }
+
+    /**
+     * @return whether the record was kept
+     */
+    private boolean add(int type, Buffer payload) {
+        if (!complete) {
+            return false;
+        }
+        if (pending.size() + HEADER_SIZE + payload.size() > MAX_PENDING) {
+            // Nobody is saving the journal; stop keeping it
+            pending.reset();
+            pendingStrokes = 0;
+            complete = false;
+            return false;
+        }
+        try {
+            writeRecord(pending, type, payload);
+        } catch (IOException e) {
+            // Writing to memory cannot fail
+            throw new AssertionError(e);
+        }
+        return true;
+    }
+
+    private static void writeTile(Buffer out, TiledImage image, int col,
+            int row) {
+        writeVarint(out, col);
+        writeVarint(out, row);
+        if (image.isBlank(col, row)) {
+            writeVarint(out, 0);
+        } else {
+            byte[] data = TileCodec.compress(image.getTile(col, row));
+            writeVarint(out, data.length);
+            out.write(data, 0, data.length);
+        }
+    }
+
+    private static void writeRecord(OutputStream out, int type, Buffer payload)
+            throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(payload.data(), 0, payload.size());
+        byte[] header = new byte[HEADER_SIZE];
+        header[0] = (byte) type;
+        putInt(header, 1, payload.size());
+        putInt(header, 5, (int) crc.getValue());
+        out.write(header);
+        out.write(payload.data(), 0, payload.size());
+    }
+
+    static void putInt(byte[] b, int off, int v) {
+        b[off] = (byte) (v >>> 24);
+        b[off + 1] = (byte) (v >>> 16);
+        b[off + 2] = (byte) (v >>> 8);
+        b[off + 3] = (byte) v;
+    }
+
+    static int getInt(byte[] b, int off) {
+        return (b[off] & 0xFF) << 24 | (b[off + 1] & 0xFF) << 16
+                | (b[off + 2] & 0xFF) << 8 | (b[off + 3] & 0xFF);
+    }
+
+    private static void writeVarint(Buffer out, long v) {
+        while ((v & ~0x7FL) != 0) {
+            out.write((int) (v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        out.write((int) v);
+    }
+
+    private static void writeSigned(Buffer out, int v) {
+        writeVarint(out, ((v << 1) ^ (v >> 31)) & 0xFFFFFFFFL);
+    }
+
+    /**
+     * A byte array output stream whose array can be read without a copy.
+     */
+    private static class Buffer extends ByteArrayOutputStream {
+        byte[] data() {
+            return buf;
+        }
+    }
+}
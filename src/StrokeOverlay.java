@@ -0,0 +1,169 @@
+import java.awt.AlphaComposite;
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+
+/**
+ * A transparent layer over the image that a pen stroke is previewed on while
+ * it is being drawn. It is drawn on quickly, without antialiasing, and only
+ * the tiles the stroke has crossed are allocated. Drawing must happen on one
+ * thread; painting may happen on any other.
+ */
+public class StrokeOverlay {
+    /**
+     * The tiles of the overlay at one moment. Clearing the overlay switches
+     * to a second set of tiles rather than erasing these, so a painter holding
+     * on to them keeps showing the stroke until it has painted the image
+     * underneath. They are erased for reuse on the clear after that.
+     */
+    public static class Tiles {
+        private final BufferedImage[] tiles;
+        private final int cols;
+        // Used only by the drawing thread
+        private final Graphics2D[] contexts;
+        private Rectangle bounds = null;
+
+        private Tiles(int cols, int rows) {
+            this.tiles = new BufferedImage[cols * rows];
+            this.contexts = new Graphics2D[cols * rows];
+            this.cols = cols;
+        }
+
+        private void erase() {
+            if (bounds == null) {
+                return;
+            }
+            // Only what was drawn on needs erasing. The Src composite writes
+            // the transparent alpha rather than blending it.
+            for (Graphics2D g : contexts) {
+                if (g != null) {
+                    g.setColor(TRANSPARENT);
+                    g.fill(bounds);
+                }
+            }
+            bounds = null;
+        }
+
+        /**
+         * Composites the overlay over a region of the image drawn at (dx, dy).
+         */
+        public void drawTo(Graphics2D g, Rectangle region, int dx, int dy) {
+            if (region.isEmpty()) {
+                return;
+            }
+            int rows = tiles.length / cols;
+            int size = TiledImage.TILE_SIZE;
+            int col0 = Math.max(0, region.x / size);
+            int row0 = Math.max(0, region.y / size);
+            int col1 = Math.min(cols - 1, (region.x + region.width - 1) / size);
+            int row1 = Math.min(rows - 1, (region.y + region.height - 1) / size);
+            for (int row = row0; row <= row1; ++row) {
+                for (int col = col0; col <= col1; ++col) {
+                    BufferedImage tile = tiles[row * cols + col];
+                    if (tile != null) {
+                        g.drawImage(tile, col * size + dx, row * size + dy,
+                                null);
+                    }
+                }
+            }
+        }
+    }
+
+    private static final Color TRANSPARENT = new Color(0, 0, 0, 0);
+
+    private final int width, height, cols;
+    private volatile Tiles tiles;
+    private Tiles spare;
+
+    public StrokeOverlay(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.cols = (width + TiledImage.TILE_SIZE - 1) / TiledImage.TILE_SIZE;
+        int rows = (height + TiledImage.TILE_SIZE - 1) / TiledImage.TILE_SIZE;
+        this.tiles = new Tiles(cols, rows);
+        this.spare = new Tiles(cols, rows);
+    }
+
+    public Tiles getTiles() {
+        return tiles;
+    }
+
+    /**
+     * Strokes the outline of a shape onto the overlay.
+     *
+     * @return the bounds the stroke may have touched, or null if it lies
+     *         outside the image
+     */
+    public Rectangle draw(java.awt.Shape s, BasicStroke stroke, Color color) {
+        int pad = (int) Math.ceil(stroke.getLineWidth() / 2) + 1;
+        Rectangle r = s.getBounds();
+        r.grow(pad, pad);
+        r = r.intersection(new Rectangle(0, 0, width, height));
+        if (r.isEmpty()) {
+            return null;
+        }
+
+        int size = TiledImage.TILE_SIZE;
+        for (int row = r.y / size; row <= (r.y + r.height - 1) / size; ++row) {
+            for (int col = r.x / size; col <= (r.x + r.width - 1) / size; ++col) {
+                Graphics2D g = contextFor(col, row);
+                if (g.getStroke() != stroke) {
+                    g.setStroke(stroke);
+                }
+                if (g.getColor() != color) {
+                    g.setColor(color);
+                }
+                g.draw(s);
+            }
+        }
+
+        Tiles t = tiles;
+        if (t.bounds == null) {
+            t.bounds = new Rectangle(r);
+        } else {
+            t.bounds.add(r);
+        }
+        return r;
+    }
+
+    /**
+     * Removes everything from the overlay.
+     *
+     * @return the area that had been drawn on, or null if none
+     */
+    public Rectangle clear() {
+        Tiles old = tiles;
+        Rectangle cleared = old.bounds;
+        if (cleared == null) {
+            return null;
+        }
+        // The spare set was last shown a whole stroke ago
+        spare.erase();
+        tiles = spare;
+        spare = old;
+        return new Rectangle(cleared);
+    }
+
+    private Graphics2D contextFor(int col, int row) {
+        int index = row * cols + col;
+        Tiles t = tiles;
+        Graphics2D g = t.contexts[index];
+        if (g == null) {
+            int size = TiledImage.TILE_SIZE;
+            BufferedImage tile = new BufferedImage(size, size,
+                    BufferedImage.TYPE_INT_ARGB_PRE);
+            g = tile.createGraphics();
+            g.translate(-col * size, -row * size);
+            // Overlapping segments of a translucent color must not build up
+            g.setComposite(AlphaComposite.Src);
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+                    RenderingHints.VALUE_ANTIALIAS_OFF);
+            t.contexts[index] = g;
+            t.tiles[index] = tile;
+        }
+        return g;
+    }
+}
@@ -0,0 +1,497 @@
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.geom.Path2D;
+
+/**
+ * Turns presses, drags and releases into pen strokes, stamps and fills on a
+ * {@link TiledImage}. This holds the drawing logic of the canvas without any
+ * Swing, so it can also run headless. Strokes are not thread-safe; press,
+ * drag, release and flush must come from one thread at a time. The tool
+ * settings may be changed from any thread. They are kept as a
+ * {@link BrushState}, and each stroke keeps drawing with the one it began
+ * with.
+ * <p>
+ * With stroke previews on, a pen stroke is drawn in two phases. While the
+ * mouse is dragged each new segment is drawn cheaply onto a
+ * {@link StrokeOverlay}, and on release the whole stroke is drawn once into the
+ * image, antialiased and with proper joins all along it.
+ * <p>
+ * Pen strokes are drawn by Java2D, or by a {@link DabBrush} that writes the
+ * tile pixels itself. Dabs are antialiased already, so strokes drawn with
+ * them go straight into the image and are never previewed.
+ * <p>
+ * Stamps are put down a fixed distance apart along the path of the mouse,
+ * relative to the tool size, so how many there are does not depend on how
+ * often the mouse reports its position. They are queued as the path is
+ * followed and blended all at once on the next flush.
+ */
+public class StrokeRenderer {
+    /**
+     * What pen strokes are drawn with.
+     */
+    public enum PenEngine {
+        JAVA2D("Java2D"), DABS("Dabs");
+
+        private final String label;
+
+        private PenEngine(String label) {
+            this.label = label;
+        }
+
+        public String toString() {
+            return label;
+        }
+    }
+
+    // Stamps are this many percent of the tool size apart
+    private static final int STAMP_SPACING_PERCENT = 100;
+    // Journals from before stamps were spaced stamp on every this many drags
+    private static final int STAMP_FREQUENCY = 15;
+    private static final int PEN_SIZE_CONVERSION = 5;
+    private static final long STAMP_CACHE_BUDGET = 4L << 20;
+    private static final int DEFAULT_FILL_TOLERANCE = 32;
+
+    private TiledImage image;
+    private UndoHistory history;
+    private volatile StrokeOverlay overlay;
+    private final StampCache stampCache;
+    private StrokeJournal journal = null;
+
+    // Replaced as a whole, under the lock of this renderer
+    private volatile BrushState brush;
+    private volatile boolean spacedStamps = true;
+    // The tip of the last dab stroke, kept for the next one of the same size
+    private DabBrush.Tip dabTip = null;
+
+    // State of the stroke in progress
+    private TiledGraphics g = null;
+    private BrushState stroke;
+    private BasicStroke penStroke;
+    private boolean previewing;
+    // Draws the pen stroke in progress if it uses dabs
+    private DabBrush dabs = null;
+    // Segments added since the last flush
+    private final Path2D.Float path = new Path2D.Float();
+    private boolean pathOpen = false;
+    // The whole stroke, kept while previewing to be drawn on release
+    private final Path2D.Float strokePath = new Path2D.Float();
+    private boolean strokeOpen = false;
+    private Rectangle bounds = null;
+    private final Point lastPoint = new Point();
+    // How far along the path the last stamp was put down, and where the
+    // stamps put down since the last flush go
+    private boolean spaced;
+    private double stampTravel;
+    private int counter;
+    private int[] stampXs = new int[64];
+    private int[] stampYs = new int[64];
+    private int stampCount = 0;
+
+    public StrokeRenderer(Tool tool, Color color, Shape shape, int toolSize) {
+        this(tool, color, shape, toolSize, new StampCache(STAMP_CACHE_BUDGET));
+    }
+
+    public StrokeRenderer(Tool tool, Color color, Shape shape, int toolSize,
+            StampCache stampCache) {
+        this.brush = new BrushState(tool, color, shape, toolSize,
+                DEFAULT_FILL_TOLERANCE, true, PenEngine.JAVA2D);
+        this.stampCache = stampCache;
+    }
+
+    public Color getColor() {
+        return brush.getColor();
+    }
+
+    /**
+     * Returns the layer that pen strokes are previewed on, or null before a
+     * target has been set.
+     */
+    public StrokeOverlay getOverlay() {
+        return overlay;
+    }
+
+    public Shape getShape() {
+        return brush.getShape();
+    }
+
+    public int getFillTolerance() {
+        return brush.getFillTolerance();
+    }
+
+    public PenEngine getPenEngine() {
+        return brush.getPenEngine();
+    }
+
+    public StrokeJournal getJournal() {
+        return journal;
+    }
+
+    public StampCache getStampCache() {
+        return stampCache;
+    }
+
+    public Tool getTool() {
+        return brush.getTool();
+    }
+
+    public int getToolSize() {
+        return brush.getToolSize();
+    }
+
+    /**
+     * Returns the tool settings that the next stroke will be drawn with.
+     */
+    public BrushState getBrush() {
+        return brush;
+    }
+
+    public boolean isDrawing() {
+        return g != null;
+    }
+
+    public boolean isPreviewStrokes() {
+        return brush.isPreviewStrokes();
+    }
+
+    public boolean isSpacedStamps() {
+        return spacedStamps;
+    }
+
+    public synchronized void setColor(Color c) {
+        brush = brush.withColor(c);
+    }
+
+    /**
+     * Sets how far each channel of a pixel may be from the color clicked on
+     * for the fill tool to fill it, from 0 to 255.
+     */
+    public synchronized void setFillTolerance(int tolerance) {
+        brush = brush.withFillTolerance(tolerance);
+    }
+
+    /**
+     * Sets what pen strokes are drawn with. Takes effect from the next
+     * stroke.
+     */
+    public synchronized void setPenEngine(PenEngine engine) {
+        brush = brush.withPenEngine(engine);
+    }
+
+    /**
+     * Sets whether pen strokes are previewed while dragging and drawn into
+     * the image on release, rather than drawn into the image as they go.
+     * Takes effect from the next stroke.
+     */
+    public synchronized void setPreviewStrokes(boolean preview) {
+        brush = brush.withPreviewStrokes(preview);
+    }
+
+    /**
+     * Sets all the tool settings at once, from the next stroke on.
+     */
+    public synchronized void setBrush(BrushState brush) {
+        this.brush = brush;
+    }
+
+    /**
+     * Sets whether stamps are spaced along the path, or put down on every
+     * {@value #STAMP_FREQUENCY}th drag as journals from before spacing
+     * expect. Takes effect from the next stroke.
+     */
+    public void setSpacedStamps(boolean spaced) {
+        this.spacedStamps = spaced;
+    }
+
+    /**
+     * Sets the journal that each stroke is recorded in, or null for none.
+     */
+    public void setJournal(StrokeJournal journal) {
+        this.journal = journal;
+    }
+
+    public synchronized void setShape(Shape s) {
+        brush = brush.withShape(s);
+    }
+
+    public synchronized void setTool(Tool t) {
+        brush = brush.withTool(t);
+    }
+
+    public synchronized void setToolSize(int size) {
+        brush = brush.withToolSize(size);
+    }
+
+    /**
+     * Sets the image to draw on and the history that records each stroke,
+     * which may be null. Any stroke in progress is finished first, and its
+     * unflushed changes are not reported.
+     */
+    public void setTarget(TiledImage image, UndoHistory history) {
+        if (g != null) {
+            abandonStroke();
+        }
+        bounds = null;
+        this.image = image;
+        this.history = history;
+        this.overlay = new StrokeOverlay(image.getWidth(), image.getHeight());
+    }
+
+    public void press(int x, int y) {
+        if (g != null) {
+            // A second button was pressed before the first was released
+            abandonStroke();
+        }
+        if (history != null) {
+            history.beginEdit();
+        }
+
+        // The settings may change while the stroke is drawn
+        stroke = brush;
+        spaced = spacedStamps;
+        // Strokes on a grayscale image stay gray so its tiles stay packed
+        Color strokeColor = stroke.getColor();
+        if (image.getStorage() == TiledImage.Storage.GRAYSCALE) {
+            strokeColor = toGray(strokeColor);
+        }
+        // One graphics context serves the whole stroke
+        g = image.createGraphics();
+        g.setColor(strokeColor);
+        previewing = false;
+        switch (stroke.getTool()) {
+        case PEN:
+            penStroke = new BasicStroke(stroke.getToolSize() / PEN_SIZE_CONVERSION,
+                    BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND);
+            g.setStroke(penStroke);
+            if (stroke.getPenEngine() == PenEngine.DABS) {
+                dabs = new DabBrush(image, dabTip(), strokeColor);
+                break;
+            }
+            previewing = stroke.isPreviewStrokes();
+            if (previewing) {
+                g.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+                        RenderingHints.VALUE_ANTIALIAS_ON);
+                strokePath.reset();
+                strokePath.moveTo(x, y);
+                strokeOpen = false;
+            }
+            break;
+        case STAMP:
+            counter = 0;
+            if (spaced) {
+                stampTravel = 0;
+                queueStamp(x, y);
+            }
+            break;
+        case FILL:
+            bounds = union(bounds, new FloodFill(image, strokeColor,
+                    stroke.getFillTolerance()).fill(x, y));
+            break;
+        default:
+            throw new IllegalStateException("Bad tool selected");
+        }
+        lastPoint.setLocation(x, y);
+        if (journal != null) {
+            journal.beginStroke(stroke.getTool(), strokeColor,
+                    stroke.getShape(), stroke.getToolSize(),
+                    stroke.getFillTolerance(), previewing, dabs != null,
+                    spaced, x, y);
+        }
+    }
+
+    public void drag(int x, int y) {
+        if (g == null || stroke.getTool() == Tool.FILL) {
+            // A fill is done on the press
+            return;
+        }
+        if (journal != null) {
+            journal.addPoint(x, y);
+        }
+        switch (stroke.getTool()) {
+        case PEN:
+            if (!pathOpen) {
+                path.moveTo(lastPoint.x, lastPoint.y);
+                pathOpen = true;
+            }
+            path.lineTo(x, y);
+            if (previewing) {
+                strokePath.lineTo(x, y);
+                strokeOpen = true;
+            }
+            break;
+        case STAMP:
+            if (spaced) {
+                stampAlong(x, y);
+            } else if (counter == STAMP_FREQUENCY) {
+                queueStamp(x, y);
+                counter = 0;
+            } else {
+                ++counter;
+                return;
+            }
+            break;
+        default:
+            throw new IllegalStateException("Bad tool selected");
+        }
+        lastPoint.setLocation(x, y);
+    }
+
+    public void release(int x, int y) {
+        if (g == null) {
+            return;
+        }
+        if (stroke.getTool() == Tool.STAMP) {
+            if (spaced) {
+                stampAlong(x, y);
+            } else {
+                queueStamp(x, y);
+            }
+        }
+        endStroke();
+        if (journal != null) {
+            journal.endStroke(x, y);
+        }
+    }
+
+    /**
+     * Renders whatever has been added to the stroke since the last flush.
+     *
+     * @return the region of the image changed since the last flush, or null
+     *         if nothing changed
+     */
+    public Rectangle flush() {
+        if (stampCount > 0) {
+            bounds = union(bounds, g.stamp(stampCache.get(stroke.getShape(),
+                    stroke.getToolSize(), false), stampXs, stampYs,
+                    stampCount));
+            stampCount = 0;
+        }
+        if (pathOpen) {
+            if (previewing) {
+                bounds = union(bounds, overlay.draw(path, penStroke,
+                        g.getColor()));
+            } else {
+                bounds = union(bounds, dabs != null ? dabs.draw(path) : g
+                        .draw(path));
+                if (journal != null) {
+                    journal.flushed();
+                }
+            }
+            path.reset();
+            pathOpen = false;
+        }
+        Rectangle changed = bounds;
+        bounds = null;
+        return changed;
+    }
+
+    private void endStroke() {
+        if (previewing) {
+            // The segments not yet previewed are part of the whole stroke
+            path.reset();
+            pathOpen = false;
+            commit();
+        } else {
+            // Keep the changes pending so the next flush reports them
+            bounds = flush();
+        }
+        g.dispose();
+        g = null;
+        dabs = null;
+        if (history != null) {
+            history.endEdit();
+        }
+    }
+
+    /**
+     * Ends a stroke that was never released.
+     */
+    private void abandonStroke() {
+        endStroke();
+        if (journal != null) {
+            journal.abandonStroke();
+        }
+    }
+
+    /**
+     * Draws the whole previewed stroke into the image, then takes the preview
+     * away. The image is changed first so the stroke never disappears from
+     * the screen.
+     */
+    private void commit() {
+        if (strokeOpen) {
+            bounds = union(bounds, g.draw(strokePath));
+            strokePath.reset();
+            strokeOpen = false;
+        }
+        bounds = union(bounds, overlay.clear());
+    }
+
+    private DabBrush.Tip dabTip() {
+        // A zero width Java2D pen draws the thinnest line it can
+        float diameter = Math.max(1, stroke.getToolSize()
+                / PEN_SIZE_CONVERSION);
+        if (dabTip == null || dabTip.getDiameter() != diameter) {
+            dabTip = new DabBrush.Tip(diameter);
+        }
+        return dabTip;
+    }
+
+    /**
+     * Returns the gray of the same brightness as a color, keeping its alpha.
+     */
+    private static Color toGray(Color c) {
+        int gray = (77 * c.getRed() + 150 * c.getGreen() + 29 * c.getBlue()
+                + 128) >> 8;
+        return new Color(gray, gray, gray, c.getAlpha());
+    }
+
+    /**
+     * Queues a stamp at each spacing along the line from the last point to
+     * (x, y), carrying what is left of the spacing over to the next line.
+     */
+    private void stampAlong(int x, int y) {
+        double spacing = Math.max(1, stroke.getToolSize()
+                * STAMP_SPACING_PERCENT / 100.0);
+        double dx = x - lastPoint.x;
+        double dy = y - lastPoint.y;
+        double length = Math.sqrt(dx * dx + dy * dy);
+        double next = spacing - stampTravel;
+        while (next <= length) {
+            double t = next / length;
+            queueStamp((int) Math.round(lastPoint.x + dx * t),
+                    (int) Math.round(lastPoint.y + dy * t));
+            next += spacing;
+        }
+        stampTravel = length - (next - spacing);
+    }
+
+    /**
+     * Puts down a stamp on the next flush.
+     */
+    private void queueStamp(int x, int y) {
+        if (stampCount == stampXs.length) {
+            int[] grownXs = new int[stampCount * 2];
+            int[] grownYs = new int[stampCount * 2];
+            System.arraycopy(stampXs, 0, grownXs, 0, stampCount);
+            System.arraycopy(stampYs, 0, grownYs, 0, stampCount);
+            stampXs = grownXs;
+            stampYs = grownYs;
+        }
+        stampXs[stampCount] = x;
+        stampYs[stampCount] = y;
+        ++stampCount;
+    }
+
+    private static Rectangle union(Rectangle a, Rectangle b) {
+        if (a == null) {
+            return b;
+        }
+        if (b != null) {
+            a.add(b);
+        }
+        return a;
+    }
+}
@@ -0,0 +1,86 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.ByteArrayOutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses the pixels of a tile into a byte array and back. Alpha is kept
+ * only for premultiplied ARGB tiles, so data must go back into a tile of the
+ * same type it came from. Packed tiles are compressed as RGB and come back
+ * unpacked.
+ */
+public class TileCodec {
+    private static final int BUFFER_SIZE = 8192;
+
+    public static byte[] compress(BufferedImage tile) {
+        int[] pixels = TiledImage.readPixels(tile);
+        boolean alpha = hasAlpha(tile);
+        byte[] raw = new byte[pixels.length * (alpha ? 4 : 3)];
+        for (int i = 0, j = 0; i < pixels.length; ++i) {
+            int p = pixels[i];
+            if (alpha) {
+                raw[j++] = (byte) (p >>> 24);
+            }
+            raw[j++] = (byte) (p >> 16);
+            raw[j++] = (byte) (p >> 8);
+            raw[j++] = (byte) p;
+        }
+
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        deflater.setInput(raw);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        while (!deflater.finished()) {
+            int n = deflater.deflate(buffer);
+            out.write(buffer, 0, n);
+        }
+        deflater.end();
+        return out.toByteArray();
+    }
+
+    /**
+     * Overwrites the pixels of a tile with data made by
+     * {@link #compress(BufferedImage)}.
+     */
+    public static void decompress(byte[] data, BufferedImage tile) {
+        int[] pixels = pixelsOf(tile);
+        boolean alpha = hasAlpha(tile);
+        byte[] raw = new byte[pixels.length * (alpha ? 4 : 3)];
+        Inflater inflater = new Inflater();
+        inflater.setInput(data);
+        try {
+            int off = 0;
+            while (off < raw.length && !inflater.finished()) {
+                int n = inflater.inflate(raw, off, raw.length - off);
+                if (n == 0 && inflater.needsInput()) {
+                    break;
+                }
+                off += n;
+            }
+            if (off != raw.length) {
+                throw new IllegalArgumentException("Truncated tile data");
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Corrupt tile data", e);
+        } finally {
+            inflater.end();
+        }
+
+        for (int i = 0, j = 0; i < pixels.length; ++i) {
+            int a = alpha ? (raw[j++] & 0xFF) << 24 : 0;
+            pixels[i] = a | (raw[j++] & 0xFF) << 16 | (raw[j++] & 0xFF) << 8
+                    | (raw[j++] & 0xFF);
+        }
+    }
+
+    private static boolean hasAlpha(BufferedImage tile) {
+        return tile.getType() == BufferedImage.TYPE_INT_ARGB_PRE;
+    }
+
+    private static int[] pixelsOf(BufferedImage tile) {
+        return ((DataBufferInt) tile.getRaster().getDataBuffer()).getData();
+    }
+}
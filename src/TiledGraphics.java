@@ -0,0 +1,205 @@
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.Stroke;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+
+/**
+ * Draws onto a {@link TiledImage}. A graphics context is created for each tile
+ * the first time it is drawn on and reused until {@link #dispose()}.
+ */
+public class TiledGraphics {
+    private final TiledImage target;
+    private final Graphics2D[] contexts;
+    private final BufferedImage[] contextTiles;
+    private final RenderingHints hints = new RenderingHints(null);
+    private Color color = Color.BLACK;
+    private Stroke stroke = null;
+
+    TiledGraphics(TiledImage target) {
+        this.target = target;
+        int count = target.getColumns() * target.getRows();
+        this.contexts = new Graphics2D[count];
+        this.contextTiles = new BufferedImage[count];
+    }
+
+    public Color getColor() {
+        return color;
+    }
+
+    public Stroke getStroke() {
+        return stroke;
+    }
+
+    public void setColor(Color c) {
+        this.color = c;
+        for (Graphics2D g : contexts) {
+            if (g != null) {
+                g.setColor(c);
+            }
+        }
+    }
+
+    public void setStroke(Stroke s) {
+        this.stroke = s;
+        for (Graphics2D g : contexts) {
+            if (g != null) {
+                g.setStroke(s);
+            }
+        }
+    }
+
+    public void setRenderingHint(RenderingHints.Key key, Object value) {
+        hints.put(key, value);
+        for (Graphics2D g : contexts) {
+            if (g != null) {
+                g.setRenderingHint(key, value);
+            }
+        }
+    }
+
+    /**
+     * Strokes the outline of a shape.
+     *
+     * @return the bounds the stroke may have touched
+     */
+    public Rectangle draw(java.awt.Shape s) {
+        Rectangle bounds;
+        BasicStroke basic = stroke instanceof BasicStroke ? (BasicStroke) stroke
+                : null;
+        if (basic != null && basic.getLineJoin() != BasicStroke.JOIN_MITER) {
+            // Round and bevel joins never reach past half the line width
+            int pad = (int) Math.ceil(basic.getLineWidth() / 2) + 1;
+            bounds = s.getBounds();
+            bounds.grow(pad, pad);
+        } else {
+            bounds = stroke.createStrokedShape(s).getBounds();
+            bounds.grow(1, 1);
+        }
+        for (Graphics2D g : contextsIn(bounds)) {
+            g.draw(s);
+        }
+        return bounds;
+    }
+
+    /**
+     * Fills the interior of a shape.
+     *
+     * @return the bounds the fill may have touched
+     */
+    public Rectangle fill(java.awt.Shape s) {
+        Rectangle bounds = s.getBounds();
+        bounds.grow(1, 1);
+        for (Graphics2D g : contextsIn(bounds)) {
+            g.fill(s);
+        }
+        return bounds;
+    }
+
+    /**
+     * Blends the current color through a stamp mask placed at (x, y),
+     * writing the tile pixels directly.
+     *
+     * @return the bounds the stamp may have touched
+     */
+    public Rectangle stamp(StampCache.Mask mask, int x, int y) {
+        return stamp(mask, new int[] { x }, new int[] { y }, 1);
+    }
+
+    /**
+     * Blends the current color through a stamp mask placed at each of the
+     * given points, in order, writing the tile pixels directly. Each tile is
+     * fetched once for all the stamps that touch it.
+     *
+     * @return the bounds the stamps may have touched, or null if there were
+     *         none
+     */
+    public Rectangle stamp(StampCache.Mask mask, int[] xs, int[] ys, int count) {
+        if (count == 0) {
+            return null;
+        }
+        Rectangle[] stamps = new Rectangle[count];
+        Rectangle bounds = null;
+        for (int i = 0; i < count; ++i) {
+            stamps[i] = mask.getBounds(xs[i], ys[i]);
+            if (bounds == null) {
+                bounds = new Rectangle(stamps[i]);
+            } else {
+                bounds.add(stamps[i]);
+            }
+        }
+        boolean premultiplied = target.isTransparent();
+        Rectangle span = target.tilesIn(bounds);
+        for (int row = span.y; row < span.y + span.height; ++row) {
+            for (int col = span.x; col < span.x + span.width; ++col) {
+                Rectangle r = target.getTileBounds(col, row);
+                int[] pixels = null;
+                for (Rectangle stamp : stamps) {
+                    Rectangle dst = r.intersection(stamp);
+                    if (dst.isEmpty()) {
+                        continue;
+                    }
+                    if (pixels == null) {
+                        BufferedImage tile = target.getWritableTile(col, row);
+                        pixels = ((DataBufferInt) tile.getRaster()
+                                .getDataBuffer()).getData();
+                    }
+                    Rectangle local = new Rectangle(dst.x - r.x, dst.y - r.y,
+                            dst.width, dst.height);
+                    StampCache.blend(mask, color, pixels,
+                            TiledImage.TILE_SIZE, local, dst.x - stamp.x,
+                            dst.y - stamp.y, premultiplied);
+                }
+            }
+        }
+        return bounds;
+    }
+
+    public void dispose() {
+        for (int i = 0; i < contexts.length; ++i) {
+            if (contexts[i] != null) {
+                contexts[i].dispose();
+                contexts[i] = null;
+                contextTiles[i] = null;
+            }
+        }
+    }
+
+    private Graphics2D[] contextsIn(Rectangle bounds) {
+        Rectangle span = target.tilesIn(bounds);
+        Graphics2D[] result = new Graphics2D[span.width * span.height];
+        int n = 0;
+        for (int row = span.y; row < span.y + span.height; ++row) {
+            for (int col = span.x; col < span.x + span.width; ++col) {
+                result[n++] = contextFor(col, row);
+            }
+        }
+        return result;
+    }
+
+    private Graphics2D contextFor(int col, int row) {
+        int index = row * target.getColumns() + col;
+        BufferedImage tile = target.getWritableTile(col, row);
+        if (contextTiles[index] != tile) {
+            // The tile was allocated or replaced since the context was made
+            if (contexts[index] != null) {
+                contexts[index].dispose();
+            }
+            Rectangle r = target.getTileBounds(col, row);
+            Graphics2D g = tile.createGraphics();
+            g.translate(-r.x, -r.y);
+            g.clip(r);
+            g.setRenderingHints(hints);
+            g.setColor(color);
+            if (stroke != null) {
+                g.setStroke(stroke);
+            }
+            contexts[index] = g;
+            contextTiles[index] = tile;
+        }
+        return contexts[index];
+    }
+}
@@ -0,0 +1,805 @@
+import java.awt.AlphaComposite;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A sparse image made of fixed-size tiles. Tiles are only allocated once
+ * something is drawn on them; until then they are represented by a single
+ * shared blank tile.
+ * <p>
+ * An image is either opaque, with RGB tiles that are white when blank, or
+ * transparent, with premultiplied ARGB tiles that are clear when blank.
+ * <p>
+ * An opaque image can keep its tiles packed at one byte per pixel, as set by
+ * its {@link Storage}. Tiles are drawn on unpacked and packed again by
+ * {@link #compact()}; a tile whose pixels do not fit stays unpacked. Packed
+ * tiles are drawn and read by row as they are, and unpacked into a new tile
+ * whenever one is asked for.
+ * <p>
+ * An image that will not be looked at for a while can be parked, which
+ * compresses all of its tiles and lets go of the pixels. The tiles come back
+ * the first time anything reads or draws on the image.
+ */
+public class TiledImage {
+    /**
+     * How the tiles of an opaque image are kept once they are compacted.
+     */
+    public enum Storage {
+        /** Four bytes per pixel. */
+        FULL_COLOR,
+        /** One byte per pixel, indexing a palette of up to 256 colors. */
+        INDEXED,
+        /** One byte per pixel of gray. */
+        GRAYSCALE;
+
+        public String toString() {
+            String words = name().replace('_', ' ');
+            return words.charAt(0) + words.substring(1).toLowerCase();
+        }
+    }
+
+    /**
+     * Notified whenever a tile is about to be drawn on or replaced.
+     */
+    public interface TileListener {
+        /**
+         * @param tile
+         *            the tile as it is before the change, or null if it is
+         *            blank
+         */
+        void tileWillChange(int col, int row, BufferedImage tile);
+    }
+
+    /**
+     * Exposes the tiles as one flat bank of RGB pixels, so that code written
+     * for ordinary rasters, such as image decoders, can write into them.
+     */
+    private class TileDataBuffer extends DataBuffer {
+        // The tile last written to, cached since decoders write whole rows
+        private int cachedIndex = -1;
+        private BufferedImage cachedTile;
+        private int[] cachedPixels;
+
+        TileDataBuffer() {
+            super(TYPE_INT, width * height);
+        }
+
+        @Override
+        public int getElem(int bank, int i) {
+            restore();
+            int x = i % width;
+            int y = i / width;
+            BufferedImage tile = tiles[(y / TILE_SIZE) * cols + x / TILE_SIZE];
+            int offset = (y % TILE_SIZE) * TILE_SIZE + x % TILE_SIZE;
+            if (tile == null) {
+                return pixelsOf(blankTile)[offset];
+            }
+            if (isPacked(tile)) {
+                int index = bytesOf(tile)[offset] & 0xFF;
+                return ((IndexColorModel) tile.getColorModel()).getRGB(index)
+                        & 0xFFFFFF;
+            }
+            return pixelsOf(tile)[offset];
+        }
+
+        @Override
+        public void setElem(int bank, int i, int val) {
+            int x = i % width;
+            int y = i / width;
+            int col = x / TILE_SIZE;
+            int row = y / TILE_SIZE;
+            int index = row * cols + col;
+            if (index != cachedIndex || shared[index]
+                    || tiles[index] != cachedTile) {
+                cachedTile = getWritableTile(col, row);
+                cachedPixels = pixelsOf(cachedTile);
+                cachedIndex = index;
+            }
+            cachedPixels[(y % TILE_SIZE) * TILE_SIZE + x % TILE_SIZE] = val;
+        }
+    }
+
+    public static final int TILE_SIZE = 256;
+    private static final Color BACKGROUND = Color.WHITE;
+    private static final IndexColorModel GRAY_RAMP = grayRamp();
+
+    private int width, height;
+    private int cols, rows;
+    private BufferedImage[] tiles;
+    // Tiles that are also referenced by a snapshot and must be copied
+    // before they are drawn on
+    private boolean[] shared;
+    private final BufferedImage blankTile;
+    private final boolean transparent;
+    private Storage storage = Storage.FULL_COLOR;
+    // Tiles drawn on or replaced since they were last compacted
+    private BitSet loose = new BitSet();
+    // The compressed tiles while the image is parked, or null
+    private ParkedTiles parked = null;
+    private final List<TileListener> listeners =
+            new CopyOnWriteArrayList<TileListener>();
+
+    public TiledImage(int width, int height) {
+        this(width, height, false);
+    }
+
+    public TiledImage(int width, int height, boolean transparent) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Bad image size: " + width
+                    + "x" + height);
+        }
+        this.width = width;
+        this.height = height;
+        this.cols = tilesFor(width);
+        this.rows = tilesFor(height);
+        this.tiles = new BufferedImage[cols * rows];
+        this.shared = new boolean[cols * rows];
+        this.transparent = transparent;
+        this.blankTile = newTile();
+        fillBlank(blankTile, 0, 0, TILE_SIZE, TILE_SIZE);
+    }
+
+    /**
+     * Returns a copy of the image that shares its tiles with this one. A
+     * shared tile is copied by whichever image draws on it first, so taking a
+     * snapshot costs nothing until the image changes, and then only as much
+     * as the changed tiles.
+     */
+    public TiledImage snapshot() {
+        restore();
+        TiledImage copy = new TiledImage(width, height, transparent);
+        copy.storage = storage;
+        copy.loose = (BitSet) loose.clone();
+        System.arraycopy(tiles, 0, copy.tiles, 0, tiles.length);
+        for (int i = 0; i < tiles.length; ++i) {
+            if (tiles[i] != null) {
+                shared[i] = true;
+                copy.shared[i] = true;
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * Returns a snapshot like {@link #snapshot()} that holds only the given
+     * tiles, numbered row by row from zero, and is blank elsewhere. This
+     * costs as much as the number of tiles given rather than the size of the
+     * image.
+     */
+    public TiledImage snapshot(BitSet only) {
+        restore();
+        TiledImage copy = new TiledImage(width, height, transparent);
+        copy.storage = storage;
+        for (int i = only.nextSetBit(0); i >= 0 && i < tiles.length; i = only
+                .nextSetBit(i + 1)) {
+            if (tiles[i] != null) {
+                copy.tiles[i] = tiles[i];
+                copy.loose.set(i, loose.get(i));
+                shared[i] = true;
+                copy.shared[i] = true;
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * Returns an RGB image that reads and writes the pixels of this image
+     * directly. Access through it goes pixel by pixel, so it is much slower
+     * than drawing on the tiles, but it needs no extra memory.
+     */
+    public BufferedImage createView() {
+        DirectColorModel model = new DirectColorModel(24, 0xFF0000, 0xFF00,
+                0xFF);
+        WritableRaster raster = Raster.createWritableRaster(model
+                .createCompatibleSampleModel(width, height),
+                new TileDataBuffer(), null);
+        return new BufferedImage(model, raster, false, null);
+    }
+
+    /**
+     * Copies an image into a new tiled image. Tiles that come out entirely
+     * blank are not allocated.
+     */
+    public static TiledImage fromImage(BufferedImage source) {
+        TiledImage result = new TiledImage(source.getWidth(),
+                source.getHeight());
+        int blank = BACKGROUND.getRGB();
+        for (int row = 0; row < result.rows; ++row) {
+            for (int col = 0; col < result.cols; ++col) {
+                BufferedImage tile = result.newTile();
+                Graphics2D g = tile.createGraphics();
+                g.setColor(BACKGROUND);
+                g.fillRect(0, 0, TILE_SIZE, TILE_SIZE);
+                g.drawImage(source, -col * TILE_SIZE, -row * TILE_SIZE, null);
+                g.dispose();
+
+                if (!isFilledWith(tile, blank)) {
+                    result.tiles[row * result.cols + col] = tile;
+                }
+            }
+        }
+        return result;
+    }
+
+    public void addTileListener(TileListener l) {
+        listeners.add(l);
+    }
+
+    public void removeTileListener(TileListener l) {
+        listeners.remove(l);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getColumns() {
+        return cols;
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    /**
+     * Returns the tile at the given column and row for reading. Blank tiles
+     * are returned as the shared blank tile, which must not be drawn on, and
+     * packed tiles as a new unpacked copy.
+     */
+    public BufferedImage getTile(int col, int row) {
+        restore();
+        BufferedImage tile = tiles[row * cols + col];
+        if (tile == null) {
+            return blankTile;
+        }
+        return isPacked(tile) ? unpack(tile) : tile;
+    }
+
+    public Storage getStorage() {
+        return storage;
+    }
+
+    public boolean isTransparent() {
+        return transparent;
+    }
+
+    /**
+     * Changes how the tiles are kept from the next {@link #compact()} on,
+     * which looks at all of them again. Tiles already packed stay packed
+     * until they are drawn on. A transparent image always keeps its tiles in
+     * full color.
+     */
+    public void setStorage(Storage storage) {
+        if (transparent) {
+            return;
+        }
+        this.storage = storage;
+        for (int i = 0; i < tiles.length; ++i) {
+            if (tiles[i] != null) {
+                loose.set(i);
+            }
+        }
+    }
+
+    /**
+     * Packs the tiles drawn on since the last compaction, if the storage
+     * allows and their pixels fit, and lets go of any that came out blank.
+     * The pixels do not change, so listeners are not told. Must not be
+     * called while anything holds on to the pixels of a tile to draw on it.
+     */
+    public void compact() {
+        if (storage == Storage.FULL_COLOR) {
+            loose.clear();
+            return;
+        }
+        for (int i = loose.nextSetBit(0); i >= 0; i = loose.nextSetBit(i + 1)) {
+            BufferedImage tile = tiles[i];
+            if (tile == null || isPacked(tile)) {
+                continue;
+            }
+            int[] pixels = pixelsOf(tile);
+            if (isFilledWith(tile, BACKGROUND.getRGB())) {
+                tiles[i] = null;
+                shared[i] = false;
+                continue;
+            }
+            BufferedImage packed = storage == Storage.GRAYSCALE ? packGray(pixels)
+                    : packIndexed(pixels);
+            if (packed != null) {
+                tiles[i] = packed;
+                shared[i] = false;
+            }
+        }
+        loose.clear();
+    }
+
+    /**
+     * Compresses every tile and lets go of the pixels. Listeners are not
+     * told, since the pixels do not change.
+     */
+    public void park() {
+        if (parked != null) {
+            return;
+        }
+        byte[][] data = new byte[tiles.length][];
+        for (int i = 0; i < tiles.length; ++i) {
+            if (tiles[i] != null) {
+                data[i] = TileCodec.compress(tiles[i]);
+                tiles[i] = null;
+                shared[i] = false;
+            }
+        }
+        loose.clear();
+        parked = new ParkedTiles(data);
+    }
+
+    public boolean isParked() {
+        return parked != null;
+    }
+
+    /**
+     * Moves the compressed tiles of a parked image out of memory, into a
+     * temporary file in the given directory.
+     */
+    public void spill(File directory) throws IOException {
+        if (parked != null && !parked.isSpilled()) {
+            parked.spill(directory);
+        }
+    }
+
+    /**
+     * Brings back the tiles of a parked image. They come back unpacked, to
+     * be packed again by the next {@link #compact()}.
+     *
+     * @throws UncheckedIOException
+     *             if the tiles were spilled and cannot be read back, in which
+     *             case the image stays parked
+     */
+    public void unpark() {
+        if (parked == null) {
+            return;
+        }
+        byte[][] data;
+        try {
+            data = parked.read();
+        } catch (IOException e) {
+            throw new UncheckedIOException("The doodle could not be read back"
+                    + " from " + parked.getFile() + ".", e);
+        }
+        parked.discard();
+        parked = null;
+        for (int i = 0; i < data.length; ++i) {
+            if (data[i] != null) {
+                tiles[i] = newTile();
+                TileCodec.decompress(data[i], tiles[i]);
+                loose.set(i);
+            }
+        }
+    }
+
+    /**
+     * Lets go of the compressed tiles of a parked image for good, deleting
+     * any file they were spilled to. The image is blank afterwards.
+     */
+    public void discardParked() {
+        if (parked != null) {
+            parked.discard();
+            parked = null;
+        }
+    }
+
+    /**
+     * Returns roughly how many bytes of memory the pixels of the image take,
+     * counting tiles shared with snapshots in full.
+     */
+    public long getMemoryUsed() {
+        if (parked != null) {
+            return parked.getMemoryUsed();
+        }
+        long bytes = 0;
+        for (BufferedImage tile : tiles) {
+            if (tile != null) {
+                bytes += isPacked(tile) ? TILE_SIZE * TILE_SIZE
+                        : 4 * TILE_SIZE * TILE_SIZE;
+            }
+        }
+        return bytes;
+    }
+
+    public boolean isBlank(int col, int row) {
+        restore();
+        return tiles[row * cols + col] == null;
+    }
+
+    /**
+     * Returns the tile at the given column and row for writing, allocating it
+     * if it is still blank.
+     */
+    BufferedImage getWritableTile(int col, int row) {
+        restore();
+        int index = row * cols + col;
+        BufferedImage tile = tiles[index];
+        fireTileWillChange(col, row, tile);
+        loose.set(index);
+        if (tile == null) {
+            tile = newTile();
+            fillBlank(tile, 0, 0, TILE_SIZE, TILE_SIZE);
+            tiles[index] = tile;
+        } else if (isPacked(tile)) {
+            tile = unpack(tile);
+            tiles[index] = tile;
+            shared[index] = false;
+        } else if (shared[index]) {
+            tile = copyTile(tile);
+            tiles[index] = tile;
+            shared[index] = false;
+        }
+        return tile;
+    }
+
+    /**
+     * Replaces the tile at the given column and row. A null tile makes it
+     * blank again.
+     */
+    void setTile(int col, int row, BufferedImage tile) {
+        restore();
+        int index = row * cols + col;
+        fireTileWillChange(col, row, tiles[index]);
+        tiles[index] = tile;
+        shared[index] = false;
+        loose.set(index);
+    }
+
+    /**
+     * Creates an unattached tile with undefined contents.
+     */
+    BufferedImage createTile() {
+        return newTile();
+    }
+
+    /**
+     * Returns the part of the image covered by the given tile.
+     */
+    public Rectangle getTileBounds(int col, int row) {
+        Rectangle r = new Rectangle(col * TILE_SIZE, row * TILE_SIZE,
+                TILE_SIZE, TILE_SIZE);
+        return r.intersection(new Rectangle(0, 0, width, height));
+    }
+
+    /**
+     * Returns the columns and rows of the tiles that intersect the given
+     * region, clamped to the image, as a rectangle in tile units. The result
+     * is empty if the region lies outside the image.
+     */
+    public Rectangle tilesIn(Rectangle r) {
+        Rectangle area = r.intersection(new Rectangle(0, 0, width, height));
+        if (area.isEmpty()) {
+            return new Rectangle();
+        }
+        int col1 = area.x / TILE_SIZE;
+        int row1 = area.y / TILE_SIZE;
+        int col2 = (area.x + area.width - 1) / TILE_SIZE;
+        int row2 = (area.y + area.height - 1) / TILE_SIZE;
+        return new Rectangle(col1, row1, col2 - col1 + 1, row2 - row1 + 1);
+    }
+
+    public TiledGraphics createGraphics() {
+        return new TiledGraphics(this);
+    }
+
+    /**
+     * Draws the part of the image inside the given region, placing the image
+     * origin at (dx, dy).
+     */
+    public void drawTo(Graphics2D g, Rectangle region, int dx, int dy) {
+        restore();
+        Rectangle span = tilesIn(region);
+        for (int row = span.y; row < span.y + span.height; ++row) {
+            for (int col = span.x; col < span.x + span.width; ++col) {
+                Rectangle r = getTileBounds(col, row);
+                BufferedImage tile = tiles[row * cols + col];
+                if (tile == null) {
+                    if (transparent) {
+                        continue;
+                    }
+                    g.setColor(BACKGROUND);
+                    g.fillRect(r.x + dx, r.y + dy, r.width, r.height);
+                } else {
+                    int x = r.x + dx;
+                    int y = r.y + dy;
+                    g.drawImage(tile, x, y, x + r.width, y + r.height, 0, 0,
+                            r.width, r.height, null);
+                }
+            }
+        }
+    }
+
+    /**
+     * Copies one row of pixels into dst, as RGB values without alpha, or as
+     * premultiplied ARGB values if the image is transparent.
+     */
+    public void getRow(int y, int[] dst) {
+        restore();
+        int row = y / TILE_SIZE;
+        int offset = (y % TILE_SIZE) * TILE_SIZE;
+        int blank = transparent ? 0 : BACKGROUND.getRGB() & 0xFFFFFF;
+        for (int col = 0; col < cols; ++col) {
+            int x = col * TILE_SIZE;
+            int n = Math.min(TILE_SIZE, width - x);
+            BufferedImage tile = tiles[row * cols + col];
+            if (tile == null) {
+                Arrays.fill(dst, x, x + n, blank);
+            } else if (isPacked(tile)) {
+                byte[] indices = bytesOf(tile);
+                int[] colors = colorsOf(tile);
+                for (int i = 0; i < n; ++i) {
+                    dst[x + i] = colors[indices[offset + i] & 0xFF];
+                }
+            } else {
+                System.arraycopy(pixelsOf(tile), offset, dst, x, n);
+            }
+        }
+    }
+
+    /**
+     * Flattens the tiles into a single image.
+     */
+    public BufferedImage toBufferedImage() {
+        BufferedImage result = new BufferedImage(width, height,
+                BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = result.createGraphics();
+        drawTo(g, new Rectangle(0, 0, width, height), 0, 0);
+        g.dispose();
+        return result;
+    }
+
+    /**
+     * Changes the size of the image. Tiles that stay inside the image are
+     * kept as they are, so this costs only as much as the edge tiles.
+     */
+    public void resize(int newWidth, int newHeight) {
+        restore();
+        int newCols = tilesFor(newWidth);
+        int newRows = tilesFor(newHeight);
+        BufferedImage[] newTiles = new BufferedImage[newCols * newRows];
+        boolean[] newShared = new boolean[newCols * newRows];
+        for (int row = 0; row < Math.min(rows, newRows); ++row) {
+            System.arraycopy(tiles, row * cols, newTiles, row * newCols,
+                    Math.min(cols, newCols));
+            System.arraycopy(shared, row * cols, newShared, row * newCols,
+                    Math.min(cols, newCols));
+        }
+
+        int oldWidth = width;
+        int oldHeight = height;
+        width = newWidth;
+        height = newHeight;
+        cols = newCols;
+        rows = newRows;
+        tiles = newTiles;
+        shared = newShared;
+        // Tile numbers change with the number of columns
+        BitSet unpacked = new BitSet();
+        for (int i = 0; i < tiles.length; ++i) {
+            if (tiles[i] != null && !isPacked(tiles[i])) {
+                unpacked.set(i);
+            }
+        }
+        loose = unpacked;
+
+        // Clear whatever was cropped off the tiles along the new edges
+        if (newWidth < oldWidth) {
+            int col = newCols - 1;
+            int x = newWidth - col * TILE_SIZE;
+            for (int row = 0; row < newRows; ++row) {
+                if (!isBlank(col, row)) {
+                    fillBlank(getWritableTile(col, row), x, 0, TILE_SIZE - x,
+                            TILE_SIZE);
+                }
+            }
+        }
+        if (newHeight < oldHeight) {
+            int row = newRows - 1;
+            int y = newHeight - row * TILE_SIZE;
+            for (int col = 0; col < newCols; ++col) {
+                if (!isBlank(col, row)) {
+                    fillBlank(getWritableTile(col, row), 0, y, TILE_SIZE,
+                            TILE_SIZE - y);
+                }
+            }
+        }
+    }
+
+    private void restore() {
+        if (parked != null) {
+            unpark();
+        }
+    }
+
+    private void fireTileWillChange(int col, int row, BufferedImage tile) {
+        for (TileListener l : listeners) {
+            l.tileWillChange(col, row, tile);
+        }
+    }
+
+    private static int[] pixelsOf(BufferedImage tile) {
+        return ((DataBufferInt) tile.getRaster().getDataBuffer()).getData();
+    }
+
+    /**
+     * Returns the RGB pixels of a tile, unpacked into a new array if the
+     * tile is packed.
+     */
+    static int[] readPixels(BufferedImage tile) {
+        if (!isPacked(tile)) {
+            return pixelsOf(tile);
+        }
+        byte[] indices = bytesOf(tile);
+        int[] colors = colorsOf(tile);
+        int[] pixels = new int[indices.length];
+        for (int i = 0; i < indices.length; ++i) {
+            pixels[i] = colors[indices[i] & 0xFF];
+        }
+        return pixels;
+    }
+
+    private static boolean isPacked(BufferedImage tile) {
+        return tile.getRaster().getDataBuffer() instanceof DataBufferByte;
+    }
+
+    private static byte[] bytesOf(BufferedImage tile) {
+        return ((DataBufferByte) tile.getRaster().getDataBuffer()).getData();
+    }
+
+    /**
+     * Returns the RGB value of each index of a packed tile.
+     */
+    private static int[] colorsOf(BufferedImage tile) {
+        int[] colors = new int[256];
+        IndexColorModel model = (IndexColorModel) tile.getColorModel();
+        model.getRGBs(colors);
+        for (int i = 0; i < colors.length; ++i) {
+            colors[i] &= 0xFFFFFF;
+        }
+        return colors;
+    }
+
+    private BufferedImage unpack(BufferedImage packed) {
+        BufferedImage tile = newTile();
+        int[] pixels = readPixels(packed);
+        System.arraycopy(pixels, 0, pixelsOf(tile), 0, pixels.length);
+        return tile;
+    }
+
+    /**
+     * Packs the pixels of a tile as indices into a palette of their colors.
+     *
+     * @return the packed tile, or null if there are more than 256 colors
+     */
+    private static BufferedImage packIndexed(int[] pixels) {
+        int[] colors = new int[256];
+        int count = 0;
+        // Open addressing from color to index; colors are 24 bits, so -1
+        // marks an empty slot
+        int[] keys = new int[512];
+        byte[] values = new byte[512];
+        Arrays.fill(keys, -1);
+        byte[] indices = new byte[pixels.length];
+        int last = -1;
+        byte lastIndex = 0;
+        for (int i = 0; i < pixels.length; ++i) {
+            int c = pixels[i] & 0xFFFFFF;
+            if (c != last) {
+                int slot = (c * 0x9E3779B9) >>> 23;
+                while (keys[slot] != -1 && keys[slot] != c) {
+                    slot = (slot + 1) & 511;
+                }
+                if (keys[slot] == -1) {
+                    if (count == colors.length) {
+                        return null;
+                    }
+                    keys[slot] = c;
+                    values[slot] = (byte) count;
+                    colors[count++] = c;
+                }
+                last = c;
+                lastIndex = values[slot];
+            }
+            indices[i] = lastIndex;
+        }
+        return packed(indices, new IndexColorModel(8, count, colors, 0,
+                false, -1, DataBuffer.TYPE_BYTE));
+    }
+
+    /**
+     * Packs the pixels of a tile as gray levels.
+     *
+     * @return the packed tile, or null if any pixel is not gray
+     */
+    private static BufferedImage packGray(int[] pixels) {
+        byte[] levels = new byte[pixels.length];
+        for (int i = 0; i < pixels.length; ++i) {
+            int p = pixels[i];
+            int b = p & 0xFF;
+            if (((p >> 8) & 0xFF) != b || ((p >> 16) & 0xFF) != b) {
+                return null;
+            }
+            levels[i] = (byte) b;
+        }
+        return packed(levels, GRAY_RAMP);
+    }
+
+    private static BufferedImage packed(byte[] indices, IndexColorModel model) {
+        WritableRaster raster = Raster.createInterleavedRaster(
+                new DataBufferByte(indices, indices.length), TILE_SIZE,
+                TILE_SIZE, TILE_SIZE, 1, new int[] { 0 }, null);
+        return new BufferedImage(model, raster, false, null);
+    }
+
+    private static IndexColorModel grayRamp() {
+        byte[] levels = new byte[256];
+        for (int i = 0; i < levels.length; ++i) {
+            levels[i] = (byte) i;
+        }
+        return new IndexColorModel(8, 256, levels, levels, levels);
+    }
+
+    private BufferedImage copyTile(BufferedImage tile) {
+        BufferedImage copy = newTile();
+        int[] src = pixelsOf(tile);
+        System.arraycopy(src, 0, pixelsOf(copy), 0, src.length);
+        return copy;
+    }
+
+    private BufferedImage newTile() {
+        return new BufferedImage(TILE_SIZE, TILE_SIZE,
+                transparent ? BufferedImage.TYPE_INT_ARGB_PRE
+                        : BufferedImage.TYPE_INT_RGB);
+    }
+
+    private void fillBlank(BufferedImage tile, int x, int y, int w, int h) {
+        Graphics2D g = tile.createGraphics();
+        if (transparent) {
+            g.setComposite(AlphaComposite.Clear);
+        }
+        g.setColor(BACKGROUND);
+        g.fillRect(x, y, w, h);
+        g.dispose();
+    }
+
+    private static boolean isFilledWith(BufferedImage tile, int rgb) {
+        int[] pixels = pixelsOf(tile);
+        // The alpha byte of a TYPE_INT_RGB pixel is undefined
+        int value = rgb & 0xFFFFFF;
+        for (int p : pixels) {
+            if ((p & 0xFFFFFF) != value) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int tilesFor(int length) {
+        return (length + TILE_SIZE - 1) / TILE_SIZE;
+    }
+}
@@ -0,0 +1,277 @@
+import java.awt.Color;
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Plays an {@link InputTrace} back through a {@link DrawingThread} without
+ * any window, for measuring the drawing pipeline on input that was recorded
+ * from a real session. Input is fed at the pace it was recorded at, or as
+ * fast as the drawing thread takes it. The image starts out blank at the
+ * recorded size and is drawn on as the canvas draws on it, with an undo
+ * history, a stroke journal and tile packing.
+ * <p>
+ * Reports the input drawn per second, the percentiles of the time from
+ * feeding each input to it being drawn into the image, and a hash of the
+ * pixels drawn, so that a regression run can check the output along with the
+ * speed.
+ * <p>
+ * Usage: {@code TraceReplay [-realtime] [-expect <hash>] [-histogram <file>]
+ * <trace file>}
+ */
+public class TraceReplay {
+    private static final long UNDO_BUDGET = 64L << 20;
+    // How often the feeder checks whether the drawing thread has caught up
+    private static final long POLL_NANOS = 100000;
+    private static final double MILLIS = 1e6;
+
+    private final InputTrace trace;
+    private final boolean realTime;
+    private final LatencyMonitor latency = new LatencyMonitor();
+    private LayerStack layers;
+    private long elapsed = 0;
+
+    /**
+     * @param realTime
+     *            whether to feed the input at the pace it was recorded at,
+     *            rather than as fast as possible
+     */
+    public TraceReplay(InputTrace trace, boolean realTime) {
+        this.trace = trace;
+        this.realTime = realTime;
+    }
+
+    /**
+     * Plays the whole trace back onto a new blank image, returning once
+     * every input has been drawn.
+     */
+    public void run() throws InterruptedException {
+        TiledImage target = new TiledImage(trace.getWidth(), trace
+                .getHeight());
+        target.setStorage(trace.getStorage());
+        layers = new LayerStack(target, UNDO_BUDGET);
+        final LayerStack.Layer active = layers.getActive();
+        final StrokeRenderer renderer = new StrokeRenderer(Tool.PEN,
+                Color.BLACK, Shape.CIRCLE, 0);
+        renderer.setJournal(new StrokeJournal());
+        renderer.setTarget(active.getImage(), active.getHistory());
+        final Object lock = new Object();
+        DrawingThread worker = new DrawingThread(renderer, lock,
+                new DrawingThread.Listener() {
+                    @Override
+                    public void imageChanged(Rectangle bounds) {
+                        // Packed between strokes, as on the canvas
+                        if (!renderer.isDrawing()) {
+                            active.getImage().compact();
+                        }
+                    }
+                }, latency);
+        worker.start();
+
+        int n = trace.size();
+        long first = n > 0 ? trace.getTime(0) : 0;
+        long start = System.nanoTime();
+        BrushState brush = null;
+        try {
+            for (int i = 0; i < n; ++i) {
+                if (trace.getBrush(i) != brush) {
+                    // Strokes take the settings when they are drawn, so
+                    // everything before has to be drawn with the old ones
+                    waitFor(worker, i);
+                    brush = trace.getBrush(i);
+                    renderer.setBrush(brush);
+                }
+                if (realTime) {
+                    long due = start + trace.getTime(i) - first;
+                    long wait;
+                    while ((wait = due - System.nanoTime()) > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+                }
+                feed(worker, trace.getEvent(i));
+            }
+            waitFor(worker, n);
+            elapsed = System.nanoTime() - start;
+        } finally {
+            worker.interrupt();
+            worker.join();
+        }
+    }
+
+    /**
+     * Returns how long the input took to play back and draw, in nanoseconds.
+     */
+    public long getElapsed() {
+        return elapsed;
+    }
+
+    public LatencyHistogram getLatency() {
+        return latency.getRasterLatency();
+    }
+
+    /**
+     * Returns whether the trace has pen strokes drawn by Java2D without
+     * previews. Those are drawn a batch of input at a time, and where the
+     * batches end changes their pixels, so the hash of a trace with them may
+     * differ from one run to the next.
+     */
+    public boolean isBatchDependent() {
+        for (int i = 0; i < trace.size(); ++i) {
+            BrushState b = trace.getBrush(i);
+            if (InputBuffer.kind(trace.getEvent(i)) == InputBuffer.PRESS
+                    && b.getTool() == Tool.PEN && !b.isPreviewStrokes()
+                    && b.getPenEngine() == StrokeRenderer.PenEngine.JAVA2D) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the SHA-256 of the image played back, flattened, as hex. Only
+     * the color channels count for opaque images, whose alpha is undefined.
+     */
+    public String getPixelHash() {
+        TiledImage flat = layers.flatten();
+        int w = flat.getWidth();
+        int mask = flat.isTransparent() ? 0xFFFFFFFF : 0xFFFFFF;
+        int[] row = new int[w];
+        byte[] bytes = new byte[w * 4];
+        MessageDigest sha;
+        try {
+            sha = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform has SHA-256
+            throw new IllegalStateException(e);
+        }
+        for (int y = 0; y < flat.getHeight(); ++y) {
+            flat.getRow(y, row);
+            for (int x = 0; x < w; ++x) {
+                int v = row[x] & mask;
+                bytes[x * 4] = (byte) (v >>> 24);
+                bytes[x * 4 + 1] = (byte) (v >>> 16);
+                bytes[x * 4 + 2] = (byte) (v >>> 8);
+                bytes[x * 4 + 3] = (byte) v;
+            }
+            sha.update(bytes);
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : sha.digest()) {
+            hex.append(String.format("%02x", b & 0xFF));
+        }
+        return hex.toString();
+    }
+
+    private static void feed(DrawingThread worker, long event) {
+        int x = InputBuffer.x(event);
+        int y = InputBuffer.y(event);
+        long now = System.nanoTime();
+        switch (InputBuffer.kind(event)) {
+        case InputBuffer.PRESS:
+            worker.addPressedPoint(x, y, now);
+            break;
+        case InputBuffer.DRAG:
+            worker.addDraggedPoint(x, y, now);
+            break;
+        case InputBuffer.RELEASE:
+            worker.addReleasedPoint(x, y, now);
+            break;
+        default:
+            throw new IllegalStateException("Bad input event");
+        }
+    }
+
+    /**
+     * Waits until the drawing thread has drawn the given number of inputs.
+     */
+    private static void waitFor(DrawingThread worker, long count) {
+        while (worker.getProcessed() < count) {
+            LockSupport.parkNanos(POLL_NANOS);
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        System.setProperty("java.awt.headless", "true");
+
+        boolean realTime = false;
+        String expected = null;
+        File histogram = null;
+        int arg = 0;
+        while (arg < args.length - 1 && args[arg].startsWith("-")) {
+            if (args[arg].equals("-realtime")) {
+                realTime = true;
+                ++arg;
+            } else if (args[arg].equals("-expect")) {
+                expected = args[arg + 1];
+                arg += 2;
+            } else if (args[arg].equals("-histogram")) {
+                histogram = new File(args[arg + 1]);
+                arg += 2;
+            } else {
+                break;
+            }
+        }
+        if (args.length - arg != 1) {
+            System.err.println("Usage: TraceReplay [-realtime] "
+                    + "[-expect <hash>] [-histogram <file>] <trace file>");
+            System.exit(2);
+        }
+
+        InputTrace trace;
+        try {
+            trace = InputTrace.read(new File(args[arg]));
+        } catch (IOException e) {
+            System.err.println(args[arg] + ": " + e.getMessage());
+            System.exit(2);
+            return;
+        }
+
+        TraceReplay replay = new TraceReplay(trace, realTime);
+        replay.run();
+        double seconds = replay.getElapsed() / 1e9;
+        LatencyHistogram latency = replay.getLatency();
+        String hash = replay.getPixelHash();
+
+        System.out.printf("Replayed %d inputs on a %dx%d image in %.3f s "
+                + "(%.0f inputs/s, %s)%n", trace.size(), trace.getWidth(),
+                trace.getHeight(), seconds, trace.size() / seconds,
+                realTime ? "at the recorded pace" : "as fast as possible");
+        System.out.printf("Input to drawn in image (ms): p50 %.3f, "
+                + "p90 %.3f, p99 %.3f, p99.9 %.3f, max %.3f%n", latency
+                .getValueAtPercentile(50) / MILLIS, latency
+                .getValueAtPercentile(90) / MILLIS, latency
+                .getValueAtPercentile(99) / MILLIS, latency
+                .getValueAtPercentile(99.9) / MILLIS, latency.getMax()
+                / MILLIS);
+        System.out.println("Pixel hash: " + hash);
+        if (replay.isBatchDependent()) {
+            System.out.println("The trace has pen strokes drawn without "
+                    + "previews, whose pixels depend on how input is "
+                    + "batched, so the hash may differ between runs");
+        }
+
+        if (histogram != null) {
+            try {
+                PrintWriter out = new PrintWriter(histogram, "UTF-8");
+                try {
+                    out.println("# Input to drawn in image (ms)");
+                    latency.write(out, MILLIS);
+                } finally {
+                    out.close();
+                }
+            } catch (IOException e) {
+                System.err.println(histogram + ": " + e.getMessage());
+                System.exit(2);
+            }
+        }
+        if (expected != null && !expected.equalsIgnoreCase(hash)) {
+            System.out.println("The pixels do not match the expected hash "
+                    + expected);
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,197 @@
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Undo and redo for a {@link TiledImage} at stroke granularity. Each edit
+ * keeps a compressed copy of only the tiles the stroke changed, taken just
+ * before the stroke first touched them. The oldest edits are dropped once the
+ * stored copies exceed the memory budget.
+ */
+public class UndoHistory implements TiledImage.TileListener {
+    private static class TileState {
+        final int col, row;
+        // Compressed pixels, or null if the tile was blank
+        final byte[] data;
+
+        TileState(int col, int row, BufferedImage tile) {
+            this.col = col;
+            this.row = row;
+            this.data = tile == null ? null : TileCodec.compress(tile);
+        }
+
+        long size() {
+            return data == null ? 0 : data.length;
+        }
+    }
+
+    private static class Edit {
+        final List<TileState> tiles = new ArrayList<TileState>();
+        long bytes;
+
+        void add(TileState t) {
+            tiles.add(t);
+            bytes += t.size();
+        }
+    }
+
+    private final TiledImage image;
+    private final LinkedList<Edit> undoStack = new LinkedList<Edit>();
+    private final LinkedList<Edit> redoStack = new LinkedList<Edit>();
+    private long budget;
+    private long used = 0;
+
+    private Edit current = null;
+    private final BitSet touched = new BitSet();
+
+    public UndoHistory(TiledImage image, long budget) {
+        this.image = image;
+        this.budget = budget;
+        image.addTileListener(this);
+    }
+
+    public synchronized boolean canUndo() {
+        return !undoStack.isEmpty();
+    }
+
+    public synchronized boolean canRedo() {
+        return !redoStack.isEmpty();
+    }
+
+    public synchronized long getMemoryUsed() {
+        return used;
+    }
+
+    public synchronized void setBudget(long budget) {
+        this.budget = budget;
+        evict();
+    }
+
+    /**
+     * Starts recording the tiles changed by a stroke.
+     */
+    public synchronized void beginEdit() {
+        current = new Edit();
+        touched.clear();
+    }
+
+    /**
+     * Finishes the stroke started by {@link #beginEdit()} and makes it the
+     * newest undoable edit.
+     */
+    public synchronized void endEdit() {
+        if (current == null) {
+            return;
+        }
+        if (!current.tiles.isEmpty()) {
+            undoStack.addLast(current);
+            used += current.bytes;
+            for (Edit e : redoStack) {
+                used -= e.bytes;
+            }
+            redoStack.clear();
+            evict();
+        }
+        current = null;
+    }
+
+    @Override
+    public synchronized void tileWillChange(int col, int row,
+            BufferedImage tile) {
+        if (current == null) {
+            return;
+        }
+        int index = row * image.getColumns() + col;
+        if (!touched.get(index)) {
+            touched.set(index);
+            current.add(new TileState(col, row, tile));
+        }
+    }
+
+    /**
+     * Reverts the newest edit.
+     *
+     * @return the region of the image that changed, or null if there was
+     *         nothing to undo
+     */
+    public synchronized Rectangle undo() {
+        return move(undoStack, redoStack);
+    }
+
+    /**
+     * Reapplies the newest undone edit.
+     *
+     * @return the region of the image that changed, or null if there was
+     *         nothing to redo
+     */
+    public synchronized Rectangle redo() {
+        return move(redoStack, undoStack);
+    }
+
+    public synchronized void clear() {
+        undoStack.clear();
+        redoStack.clear();
+        used = 0;
+        current = null;
+    }
+
+    /**
+     * Restores the tiles of the newest edit in one stack, saving their
+     * current contents as an edit on the other.
+     */
+    private Rectangle move(LinkedList<Edit> from, LinkedList<Edit> to) {
+        if (from.isEmpty() || current != null) {
+            return null;
+        }
+        Edit edit = from.removeLast();
+        Edit inverse = new Edit();
+        Rectangle changed = null;
+        for (TileState t : edit.tiles) {
+            BufferedImage tile = image.isBlank(t.col, t.row) ? null : image
+                    .getTile(t.col, t.row);
+            inverse.add(new TileState(t.col, t.row, tile));
+
+            if (t.data == null) {
+                image.setTile(t.col, t.row, null);
+            } else {
+                BufferedImage restored = image.createTile();
+                TileCodec.decompress(t.data, restored);
+                image.setTile(t.col, t.row, restored);
+            }
+
+            Rectangle r = image.getTileBounds(t.col, t.row);
+            if (changed == null) {
+                changed = r;
+            } else {
+                changed.add(r);
+            }
+        }
+        to.addLast(inverse);
+        used += inverse.bytes - edit.bytes;
+        // The current tiles can compress worse than the ones they replaced
+        evict(inverse);
+        return changed;
+    }
+
+    private void evict() {
+        evict(null);
+    }
+
+    /**
+     * Drops the oldest edits until the history fits its budget, keeping the
+     * given edit even if the history stays over budget.
+     */
+    private void evict(Edit keep) {
+        while (used > budget && !undoStack.isEmpty()
+                && undoStack.getFirst() != keep) {
+            used -= undoStack.removeFirst().bytes;
+        }
+        while (used > budget && !redoStack.isEmpty()
+                && redoStack.getFirst() != keep) {
+            used -= redoStack.removeFirst().bytes;
+        }
+    }
+}
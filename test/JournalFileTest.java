@@ -0,0 +1,201 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.awt.Color;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.function.Executable;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Writes journals the way saving does and checks that opening them gives
+ * back the image, including when the end of the file is torn or corrupt.
+ */
+public class JournalFileTest {
+    private static final int WIDTH = 600;
+    private static final int HEIGHT = 400;
+
+    @TempDir
+    File directory;
+
+    private File file;
+    private TiledImage image;
+    private StrokeJournal journal;
+    private StrokeRenderer renderer;
+    private JournalFile journalFile;
+    private int strokes;
+
+    @BeforeEach
+    void writeBlankJournal() throws IOException {
+        file = new File(directory, "test" + JournalFile.EXTENSION);
+        image = new TiledImage(WIDTH, HEIGHT);
+        journal = new StrokeJournal();
+        renderer = new StrokeRenderer(Tool.PEN, Color.BLACK, Shape.CIRCLE, 12);
+        renderer.setJournal(journal);
+        renderer.setTarget(image, null);
+
+        OutputStream out = new FileOutputStream(file);
+        try {
+            journalFile = JournalFile.write(out, file, image.snapshot(),
+                    journal.getGeneration());
+        } finally {
+            out.close();
+        }
+    }
+
+    @Test
+    void blank() throws IOException {
+        assertPixels(image, JournalFile.open(file).getImage());
+    }
+
+    @Test
+    void appendedStrokes() throws IOException {
+        drawStrokes(5);
+        save();
+        drawStrokes(7);
+        save();
+        assertPixels(image, JournalFile.open(file).getImage());
+    }
+
+    @Test
+    void appendedCheckpoint() throws IOException {
+        // Enough strokes for a checkpoint, then some to replay after it
+        drawStrokes(300);
+        save();
+        drawStrokes(10);
+        save();
+        assertPixels(image, JournalFile.open(file).getImage());
+    }
+
+    @Test
+    void tornTail() throws IOException {
+        drawStrokes(5);
+        save();
+        drawStrokes(4);
+        TiledImage saved = image.snapshot();
+        drawStrokes(1);
+        save();
+
+        // Only the last stroke is torn; the ones before it still replay
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(raf.length() - 3);
+        } finally {
+            raf.close();
+        }
+        assertPixels(saved, JournalFile.open(file).getImage());
+    }
+
+    @Test
+    void corruptTail() throws IOException {
+        drawStrokes(5);
+        save();
+        TiledImage saved = image.snapshot();
+        long start = journalFile.getLength();
+        drawStrokes(1);
+        save();
+
+        flipByte(start + StrokeJournal.HEADER_SIZE + 2);
+        assertPixels(saved, JournalFile.open(file).getImage());
+    }
+
+    @Test
+    void corruptLastCheckpoint() throws IOException {
+        drawStrokes(10);
+        save();
+        long start = journalFile.getLength();
+        drawStrokes(300);
+        // The records come first, then the checkpoint
+        long checkpoint = start + save();
+
+        flipByte(checkpoint + StrokeJournal.HEADER_SIZE + 20);
+        // Replayed from the first checkpoint, up to the damaged one
+        JournalFile.Contents contents = JournalFile.open(file);
+        assertPixels(image, contents.getImage());
+        assertEquals(checkpoint, contents.attach(0).getLength());
+    }
+
+    @Test
+    void notAJournal() throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write("not a doodle".getBytes("US-ASCII"));
+        } finally {
+            out.close();
+        }
+        assertThrows(IOException.class, new Executable() {
+            @Override
+            public void execute() throws IOException {
+                JournalFile.open(file);
+            }
+        });
+    }
+
+    /**
+     * Draws short strokes in changing colors, each a little lower and to the
+     * right of the one before.
+     */
+    private void drawStrokes(int count) {
+        for (int i = 0; i < count; ++i) {
+            int n = strokes++;
+            renderer.setColor(new Color(n * 0x2F3D17 & 0xFFFFFF));
+            int x = 20 + n * 7 % (WIDTH - 80);
+            int y = 20 + n * 13 % (HEIGHT - 80);
+            renderer.press(x, y);
+            renderer.drag(x + 30, y + 10);
+            renderer.drag(x + 50, y + 45);
+            renderer.release(x + 50, y + 45);
+            renderer.flush();
+        }
+    }
+
+    /**
+     * Appends the strokes drawn since the last save.
+     *
+     * @return the number of bytes of records appended, not counting a
+     *         checkpoint
+     */
+    private int save() throws IOException {
+        StrokeJournal.Records records = journal.drain();
+        journalFile.append(records, image.snapshot());
+        return records.getData().length;
+    }
+
+    private void flipByte(long pos) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(pos);
+            int b = raf.read();
+            raf.seek(pos);
+            raf.write(b ^ 0xFF);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static void assertPixels(TiledImage expected, TiledImage actual) {
+        assertEquals(expected.getWidth(), actual.getWidth());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        int width = expected.getWidth();
+        int[] want = new int[width];
+        int[] got = new int[width];
+        for (int y = 0; y < expected.getHeight(); ++y) {
+            expected.getRow(y, want);
+            actual.getRow(y, got);
+            for (int x = 0; x < width; ++x) {
+                // Opaque tiles leave the alpha byte undefined
+                if ((want[x] & 0xFFFFFF) != (got[x] & 0xFFFFFF)) {
+                    assertEquals(Integer.toHexString(want[x] & 0xFFFFFF),
+                            Integer.toHexString(got[x] & 0xFFFFFF),
+                            "pixel at " + x + "," + y);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,142 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.imageio.ImageIO;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that what {@link PngWriter} writes decodes, through ImageIO, to
+ * exactly the pixels it was given.
+ */
+public class PngWriterTest {
+    private static ExecutorService executor;
+
+    @BeforeAll
+    static void startExecutor() {
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @AfterAll
+    static void stopExecutor() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    void singlePixel() throws IOException {
+        assertRoundTrip(image(1, 1, 1), 1, PngWriter.Speed.BALANCED, false);
+    }
+
+    @Test
+    void oneBand() throws IOException {
+        // Smaller than a tile and far smaller than a band
+        assertRoundTrip(image(100, 37, 2), 4, PngWriter.Speed.BALANCED,
+                false);
+    }
+
+    @Test
+    void manyBandsOneThread() throws IOException {
+        // About 174 rows a band, so six bands, the last one short
+        assertRoundTrip(image(2000, 900, 3), 1, PngWriter.Speed.FAST, false);
+    }
+
+    @Test
+    void manyBandsInParallel() throws IOException {
+        assertRoundTrip(image(2000, 900, 4), 4, PngWriter.Speed.BALANCED,
+                false);
+    }
+
+    @Test
+    void wideRows() throws IOException {
+        // 69 rows a band, so the bands do not line up with the tiles
+        assertRoundTrip(image(5000, 300, 5), 4, PngWriter.Speed.FASTEST,
+                false);
+    }
+
+    @Test
+    void adaptiveFilters() throws IOException {
+        assertRoundTrip(image(1500, 800, 6), 4, PngWriter.Speed.SMALLEST,
+                true);
+    }
+
+    @Test
+    void cancel() throws IOException {
+        TiledImage source = TiledImage.fromImage(image(2000, 900, 7));
+        PngWriter writer = new PngWriter(executor, 4);
+        boolean finished = writer.write(source, new ByteArrayOutputStream(),
+                new PngWriter.ProgressListener() {
+                    @Override
+                    public boolean progress(float fraction) {
+                        return false;
+                    }
+                });
+        assertFalse(finished);
+    }
+
+    private static void assertRoundTrip(BufferedImage expected, int threads,
+            PngWriter.Speed speed, boolean adaptive) throws IOException {
+        PngWriter writer = new PngWriter(executor, threads);
+        writer.setSpeed(speed);
+        writer.setAdaptiveFiltering(adaptive);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertTrue(writer.write(TiledImage.fromImage(expected), out, null));
+
+        BufferedImage actual = ImageIO.read(new ByteArrayInputStream(out
+                .toByteArray()));
+        assertEquals(expected.getWidth(), actual.getWidth());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        int width = expected.getWidth();
+        int[] want = new int[width];
+        int[] got = new int[width];
+        for (int y = 0; y < expected.getHeight(); ++y) {
+            expected.getRGB(0, y, width, 1, want, 0, width);
+            actual.getRGB(0, y, width, 1, got, 0, width);
+            for (int x = 0; x < width; ++x) {
+                if ((want[x] & 0xFFFFFF) != (got[x] & 0xFFFFFF)) {
+                    assertEquals(Integer.toHexString(want[x] & 0xFFFFFF),
+                            Integer.toHexString(got[x] & 0xFFFFFF),
+                            "pixel at " + x + "," + y);
+                }
+            }
+        }
+    }
+
+    /**
+     * Draws a mix of flat shapes, which compress to almost nothing, and
+     * noise, which does not compress at all.
+     */
+    private static BufferedImage image(int width, int height, long seed) {
+        Random random = new Random(seed);
+        BufferedImage image = new BufferedImage(width, height,
+                BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        g.setColor(Color.WHITE);
+        g.fillRect(0, 0, width, height);
+        for (int i = 0; i < 20; ++i) {
+            g.setColor(new Color(random.nextInt(0x1000000)));
+            g.fillOval(random.nextInt(width), random.nextInt(height),
+                    1 + random.nextInt(width), 1 + random.nextInt(height));
+        }
+        g.dispose();
+        int noiseHeight = Math.max(1, height / 4);
+        for (int y = 0; y < noiseHeight; ++y) {
+            for (int x = 0; x < width; x += 1 + random.nextInt(3)) {
+                image.setRGB(x, y, random.nextInt(0x1000000));
+            }
+        }
+        return image;
+    }
+}